@@ -76,9 +76,13 @@ public abstract class Reading extends NbActivity implements OnPageChangeListener
     // Activities navigate to a particular story by hash.
     // We can find it once we have the cursor.
     private String storyHash;
+    private boolean storyHashSearchRunning = false;
 
     protected final Object STORIES_MUTEX = new Object();
 	protected Cursor stories;
+    // how many stories of the reading session the loader should fetch
+    private int storyWindow = AppConstants.STORY_WINDOW_SIZE;
+    private boolean windowGrowing = false;
 
     @FindView(android.R.id.content) View contentView; // we use this a ton, so cache it
     @FindView(R.id.reading_overlay_left) Button overlayLeft;
@@ -220,7 +224,8 @@ public abstract class Reading extends NbActivity implements OnPageChangeListener
             finish();
             return null;
         }
-        return FeedUtils.dbHelper.getActiveStoriesLoader(fs);
+        // when just widening the window, the stories already loaded can be kept
+        return FeedUtils.dbHelper.getActiveStoriesLoader(fs, storyWindow, (windowGrowing ? stories : null));
     }
 
 	@Override
@@ -235,6 +240,7 @@ public abstract class Reading extends NbActivity implements OnPageChangeListener
 
             readingAdapter.swapCursor(cursor);
             stories = cursor;
+            windowGrowing = false;
 
             // if this is the first time we've found a cursor, we know the onCreate chain is done
             if (this.pager == null) {
@@ -264,24 +270,41 @@ public abstract class Reading extends NbActivity implements OnPageChangeListener
 
     private void skipPagerToStoryHash() {
         // if we already started and found our target story, this will be unset
-        if (storyHash == null) return;
-        stories.moveToPosition(-1);
-        while (stories.moveToNext()) {
-            if (stopLoading) return;
-            Story story = Story.fromCursor(stories);
-            if ( ((storyHash.equals(FIND_FIRST_UNREAD)) && (!story.read)) ||
-                 (story.storyHash.equals(storyHash)) ) {
-                // now that the pager is getting the right story, make it visible
-                pager.setVisibility(View.VISIBLE);
-                emptyViewText.setVisibility(View.INVISIBLE);
-                pager.setCurrentItem(stories.getPosition(), false);
-                this.onPageSelected(stories.getPosition());
-                storyHash = null;
-                return;
+        if ((storyHash == null) || storyHashSearchRunning) return;
+        storyHashSearchRunning = true;
+        final String targetHash = storyHash;
+        // the story may be anywhere in the session, so ask the DB where rather than walking the cursor
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                if (targetHash.equals(FIND_FIRST_UNREAD)) {
+                    return FeedUtils.dbHelper.getFirstUnreadSessionPosition(fs);
+                } else {
+                    return FeedUtils.dbHelper.getSessionPosition(fs, targetHash);
+                }
             }
-        }
-        // if the story wasn't found, try to get more stories into the cursor
-        this.checkStoryCount(readingAdapter.getCount()+1);
+            @Override
+            protected void onPostExecute(Integer position) {
+                storyHashSearchRunning = false;
+                if (stopLoading || (pager == null) || (readingAdapter == null)) return;
+                synchronized (STORIES_MUTEX) {
+                    if (position < 0) {
+                        // if the story wasn't found, try to get more stories into the cursor
+                        checkStoryCount(readingAdapter.getCount()+1);
+                    } else if (position >= readingAdapter.getCount()) {
+                        // the story is past the loaded window. we will look again once it has grown.
+                        checkStoryCount(position);
+                    } else {
+                        // now that the pager is getting the right story, make it visible
+                        pager.setVisibility(View.VISIBLE);
+                        emptyViewText.setVisibility(View.INVISIBLE);
+                        pager.setCurrentItem(position, false);
+                        onPageSelected(position);
+                        storyHash = null;
+                    }
+                }
+            }
+        }.execute();
     }
 
     private void setupPager() {
@@ -453,11 +476,14 @@ public abstract class Reading extends NbActivity implements OnPageChangeListener
                         }
                     }
                 }
-                checkStoryCount(position);
                 updateOverlayText();
                 enableOverlays();
                 return null;
             }
+            @Override
+            protected void onPostExecute(Void result) {
+                checkStoryCount(position);
+            }
         }.execute();
 	}
 
@@ -531,7 +557,7 @@ public abstract class Reading extends NbActivity implements OnPageChangeListener
         if (currentUnreadCount > this.startingUnreadCount ) {
             this.startingUnreadCount = currentUnreadCount;
         }
-        this.overlayLeft.setEnabled(this.getLastReadPosition(false) != -1);
+        this.overlayLeft.setEnabled(this.getLastReadStory() != null);
         this.overlayRight.setText((currentUnreadCount > 0) ? R.string.overlay_next : R.string.overlay_done);
         this.overlayRight.setBackgroundResource((currentUnreadCount > 0) ? R.drawable.selector_overlay_bg_right : R.drawable.selector_overlay_bg_right_done);
 
@@ -580,7 +606,7 @@ public abstract class Reading extends NbActivity implements OnPageChangeListener
      * While navigating the story list and at the specified position, see if it is possible
      * and desirable to start loading more stories in the background.  Note that if a load
      * is triggered, this method will be called again by the callback to ensure another
-     * load is not needed and all latches are tripped.
+     * load is not needed and all latches are tripped. Must be called on the UI thread.
      */
     private void checkStoryCount(int position) {
         if (stories == null ) {
@@ -591,7 +617,19 @@ public abstract class Reading extends NbActivity implements OnPageChangeListener
             }
             // if the pager is at or near the number of stories loaded, check for more unless we know we are at the end of the list
             if ((position + AppConstants.READING_STORY_PRELOAD) >= stories.getCount()) {
-                triggerRefresh(position + AppConstants.READING_STORY_PRELOAD);
+                if (windowGrowing) return;
+                if (stories.getCount() >= storyWindow) {
+                    // the loaded window is full, so there may be more local stories in the session. widen
+                    // the window to cover the position before asking the API for more
+                    windowGrowing = true;
+                    int desiredStoryCount = position + AppConstants.READING_STORY_PRELOAD;
+                    while (storyWindow <= desiredStoryCount) {
+                        storyWindow += AppConstants.STORY_WINDOW_SIZE;
+                    }
+                    updateCursor();
+                } else {
+                    triggerRefresh(position + AppConstants.READING_STORY_PRELOAD);
+                }
             }
         }
 	}
@@ -742,7 +780,11 @@ public abstract class Reading extends NbActivity implements OnPageChangeListener
             } else {
                 // trigger a check to see if there are any more to search before proceeding. By leaving the
                 // unreadSearchActive flag high, this method will be called again when a new cursor is loaded
-                this.checkStoryCount(readingAdapter.getCount()+1);
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        checkStoryCount(readingAdapter.getCount()+1);
+                    }
+                });
             }
         }
     }
@@ -751,33 +793,39 @@ public abstract class Reading extends NbActivity implements OnPageChangeListener
      * Click handler for the lefthand overlay nav button.
      */
     public void overlayLeft(View v) {
-        int targetPosition = this.getLastReadPosition(true);
-        if (targetPosition != -1) {
-            pager.setCurrentItem(targetPosition, true);
-        } else {
-            Log.e(this.getClass().getName(), "reading history contained item not found in cursor.");
-        }
+        final Story targetStory = this.getLastReadStory();
+        if (targetStory == null) return;
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                return FeedUtils.dbHelper.getSessionPosition(fs, targetStory.storyHash);
+            }
+            @Override
+            protected void onPostExecute(Integer targetPosition) {
+                if ((pager == null) || (readingAdapter == null)) return;
+                if ((targetPosition != -1) && (targetPosition < readingAdapter.getCount())) {
+                    synchronized (pageHistory) {
+                        // trim the history of the currently displayed page, since we are going back
+                        if (pageHistory.size() >= 2) pageHistory.remove(pageHistory.size()-1);
+                    }
+                    pager.setCurrentItem(targetPosition, true);
+                } else {
+                    Log.e(Reading.this.getClass().getName(), "reading history contained item not found in cursor.");
+                }
+            }
+        }.execute();
     }
 
     /**
-     * Get the pager position of the last story read during this activity or -1 if there is nothing
-     * in the history.
-     *
-     * @param trimHistory optionally trim the history of the currently displayed page iff the
-     *        back button has been pressed.
+     * Get the last story read during this activity or null if there is nothing in the history.
      */
-    private int getLastReadPosition(boolean trimHistory) {
+    private Story getLastReadStory() {
         synchronized (this.pageHistory) {
             // the last item is always the currently shown page, do not count it
             if (this.pageHistory.size() < 2) {
-                return -1;
-            }
-            Story targetStory = this.pageHistory.get(this.pageHistory.size()-2);
-            int targetPosition = this.readingAdapter.getPosition(targetStory);
-            if (trimHistory && (targetPosition != -1)) {
-                this.pageHistory.remove(this.pageHistory.size()-1);
+                return null;
             }
-            return targetPosition;
+            return this.pageHistory.get(this.pageHistory.size()-2);
         }
     }
 
@@ -84,19 +84,6 @@ public abstract class ReadingAdapter extends FragmentStatePagerAdapter {
 		}
 	}
 
-    public synchronized int getPosition(Story story) {
-        if (stories == null) return -1;
-        int pos = 0;
-        while (pos < stories.getCount()) {
-			stories.moveToPosition(pos);
-            if (Story.fromCursor(stories).equals(story)) {
-                return pos;
-            }
-            pos++;
-        }
-        return -1;
-    }
-	
 	@Override
 	public synchronized int getItemPosition(Object object) {
 		if (object instanceof LoadingFragment) {
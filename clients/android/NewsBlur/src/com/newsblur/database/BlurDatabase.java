@@ -1,13 +1,21 @@
 package com.newsblur.database;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 public class BlurDatabase extends SQLiteOpenHelper {
 
 	public final static String DB_NAME = "blur.db";
-	private final static int VERSION = 2;
+	private final static int VERSION = 12;
 
 	public BlurDatabase(Context context) {
 		super(context, DB_NAME, null, VERSION);
@@ -15,20 +23,54 @@ public class BlurDatabase extends SQLiteOpenHelper {
 
 	@Override
 	public void onCreate(SQLiteDatabase db) {
+        createSchema(db);
+    }
+
+    static void createSchema(SQLiteDatabase db) {
 		db.execSQL(DatabaseConstants.FEED_SQL);
 		db.execSQL(DatabaseConstants.SOCIAL_FEED_SQL);
 		db.execSQL(DatabaseConstants.FOLDER_SQL);
+        db.execSQL(DatabaseConstants.FOLDER_FEEDS_SQL);
 		db.execSQL(DatabaseConstants.USER_SQL);
 		db.execSQL(DatabaseConstants.STORY_SQL);
         db.execSQL(DatabaseConstants.READING_SESSION_SQL);
-        db.execSQL(DatabaseConstants.STORY_TEXT_SQL);
+        db.execSQL(DatabaseConstants.READING_SESSION_INDEX_SQL);
+        db.execSQL(DatabaseConstants.STORY_CONTENT_SQL);
+        db.execSQL(DatabaseConstants.STORY_SEARCH_SQL);
+        db.execSQL(DatabaseConstants.STORY_IMAGES_SQL);
+        db.execSQL(DatabaseConstants.STORY_IMAGES_INDEX_SQL);
 		db.execSQL(DatabaseConstants.COMMENT_SQL);
 		db.execSQL(DatabaseConstants.REPLY_SQL);
 		db.execSQL(DatabaseConstants.CLASSIFIER_SQL);
 		db.execSQL(DatabaseConstants.SOCIALFEED_STORIES_SQL);
         db.execSQL(DatabaseConstants.STARREDCOUNTS_SQL);
         db.execSQL(DatabaseConstants.ACTION_SQL);
+        db.execSQL(DatabaseConstants.LOCAL_COUNTS_SQL);
+        db.execSQL(DatabaseConstants.LOCAL_SOCIAL_COUNTS_SQL);
+        createIndices(db);
+        createTriggers(db);
 	}
+
+    /**
+     * Creates any indices not already present. Safe to run against an existing DB.
+     */
+    static void createIndices(SQLiteDatabase db) {
+        for (String sql : DatabaseConstants.STORY_INDEX_SQL) {
+            db.execSQL(sql);
+        }
+    }
+
+    static void createTriggers(SQLiteDatabase db) {
+        for (String sql : DatabaseConstants.LOCAL_COUNTS_TRIGGER_SQL) {
+            db.execSQL(sql);
+        }
+        for (String sql : DatabaseConstants.STORY_SEARCH_TRIGGER_SQL) {
+            db.execSQL(sql);
+        }
+        for (String sql : DatabaseConstants.STORY_IMAGES_TRIGGER_SQL) {
+            db.execSQL(sql);
+        }
+    }
 	
 	void dropAndRecreateTables() {
 		SQLiteDatabase db = getWritableDatabase();
@@ -36,9 +78,13 @@ public class BlurDatabase extends SQLiteOpenHelper {
 		db.execSQL(drop + DatabaseConstants.FEED_TABLE);
 		db.execSQL(drop + DatabaseConstants.SOCIALFEED_TABLE);
 		db.execSQL(drop + DatabaseConstants.FOLDER_TABLE);
+        db.execSQL(drop + DatabaseConstants.FOLDER_FEEDS_TABLE);
 		db.execSQL(drop + DatabaseConstants.STORY_TABLE);
         db.execSQL(drop + DatabaseConstants.READING_SESSION_TABLE);
         db.execSQL(drop + DatabaseConstants.STORY_TEXT_TABLE);
+        db.execSQL(drop + DatabaseConstants.STORY_CONTENT_TABLE);
+        db.execSQL(drop + DatabaseConstants.STORY_SEARCH_TABLE);
+        db.execSQL(drop + DatabaseConstants.STORY_IMAGES_TABLE);
 		db.execSQL(drop + DatabaseConstants.USER_TABLE);
 		db.execSQL(drop + DatabaseConstants.COMMENT_TABLE);
 		db.execSQL(drop + DatabaseConstants.REPLY_TABLE);
@@ -46,13 +92,139 @@ public class BlurDatabase extends SQLiteOpenHelper {
 		db.execSQL(drop + DatabaseConstants.SOCIALFEED_STORY_MAP_TABLE);
 		db.execSQL(drop + DatabaseConstants.STARREDCOUNTS_TABLE);
 		db.execSQL(drop + DatabaseConstants.ACTION_TABLE);
+        db.execSQL(drop + DatabaseConstants.LOCAL_COUNTS_TABLE);
+        db.execSQL(drop + DatabaseConstants.LOCAL_SOCIAL_COUNTS_TABLE);
 		
 		onCreate(db);
 	}
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int previousVersion, int nextVersion) {
-        // note: we drop all tables and recreate any time the schema changes on app upgrade
+        // note: we drop all tables and recreate any time the schema changes on app upgrade, but
+        // that happens later, at sync time. until then, the indices are still needed.
+        if (previousVersion < 3) {
+            createIndices(db);
+        }
+        if (previousVersion < 4) {
+            db.execSQL(DatabaseConstants.LOCAL_COUNTS_SQL);
+            db.execSQL(DatabaseConstants.LOCAL_SOCIAL_COUNTS_SQL);
+            createTriggers(db);
+            for (String sql : DatabaseConstants.LOCAL_COUNTS_REBUILD_SQL) {
+                db.execSQL(sql);
+            }
+        }
+        if (previousVersion < 5) {
+            // the session is transient, so it can just be rebuilt with positions
+            db.execSQL("DROP TABLE IF EXISTS " + DatabaseConstants.READING_SESSION_TABLE);
+            db.execSQL(DatabaseConstants.READING_SESSION_SQL);
+        }
+        if (previousVersion < 6) {
+            // content can't be compressed in SQL, so rather than migrate, let the wipe that comes
+            // with this app upgrade re-fetch it. the old content column just goes unused until then.
+            db.execSQL(DatabaseConstants.STORY_CONTENT_SQL);
+            db.execSQL("DROP TABLE IF EXISTS " + DatabaseConstants.STORY_TEXT_TABLE);
+        }
+        if (previousVersion < 7) {
+            // likewise, existing stories get indexed when they are re-fetched after the wipe
+            db.execSQL(DatabaseConstants.STORY_SEARCH_SQL);
+            for (String sql : DatabaseConstants.STORY_SEARCH_TRIGGER_SQL) {
+                db.execSQL(sql);
+            }
+        }
+        if (previousVersion < 8) {
+            // folder views read from this right away, so fill it from the folders we already have
+            db.execSQL(DatabaseConstants.FOLDER_FEEDS_SQL);
+            BlurDatabaseHelper.rebuildFolderFeeds(db);
+        }
+        if (previousVersion < 9) {
+            // the image prefetcher and cache cleanup depend on this, so move existing image lists over
+            db.execSQL(DatabaseConstants.STORY_IMAGES_SQL);
+            db.execSQL(DatabaseConstants.STORY_IMAGES_INDEX_SQL);
+            for (String sql : DatabaseConstants.STORY_IMAGES_TRIGGER_SQL) {
+                db.execSQL(sql);
+            }
+            migrateStoryImages(db);
+        }
+        if ((previousVersion < 10) && (previousVersion >= 6)) {
+            // existing rows are left without, and the reading view works them out on the fly until
+            // the wipe re-fetches them. the content table is already current if it was made above.
+            String alter = "ALTER TABLE " + DatabaseConstants.STORY_CONTENT_TABLE + " ADD COLUMN ";
+            db.execSQL(alter + DatabaseConstants.STORY_CONTENT_CONTENT_ALT_TEXTS + " TEXT");
+            db.execSQL(alter + DatabaseConstants.STORY_CONTENT_CONTENT_HASH + " INTEGER");
+            db.execSQL(alter + DatabaseConstants.STORY_CONTENT_TEXT_ALT_TEXTS + " TEXT");
+            db.execSQL(alter + DatabaseConstants.STORY_CONTENT_TEXT_HASH + " INTEGER");
+        }
+        if (previousVersion < 11) {
+            // the session is transient, so it can just be rebuilt with sort keys
+            db.execSQL("DROP TABLE IF EXISTS " + DatabaseConstants.READING_SESSION_TABLE);
+            db.execSQL(DatabaseConstants.READING_SESSION_SQL);
+            db.execSQL(DatabaseConstants.READING_SESSION_INDEX_SQL);
+        }
+        if (previousVersion < 12) {
+            // the search index is keyed by row ID, which is only safe from VACUUM once it is a
+            // real column, so rebuild the story table around one, keeping the old IDs
+            rebuildStoryTable(db);
+        }
+    }
+
+    /**
+     * Moves the stories into a table made with the current schema, carrying over their row IDs
+     * and whichever columns the old table has in common with it.
+     */
+    private static void rebuildStoryTable(SQLiteDatabase db) {
+        String newTable = DatabaseConstants.STORY_TABLE + "_new";
+        Set<String> oldColumns = getColumns(db, DatabaseConstants.STORY_TABLE);
+        db.execSQL(DatabaseConstants.STORY_SQL.replaceFirst(DatabaseConstants.STORY_TABLE, newTable));
+        List<String> columns = new ArrayList<String>();
+        for (String column : getColumns(db, newTable)) {
+            if (oldColumns.contains(column)) columns.add(column);
+        }
+        String columnList = TextUtils.join(", ", columns);
+        db.execSQL("INSERT INTO " + newTable + " (" + DatabaseConstants.STORY_ROW_ID + ", " + columnList + ")" +
+                   " SELECT rowid, " + columnList + " FROM " + DatabaseConstants.STORY_TABLE);
+        // dropping a table doesn't fire its delete triggers, so the counts and index are left be
+        db.execSQL("DROP TABLE " + DatabaseConstants.STORY_TABLE);
+        db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + DatabaseConstants.STORY_TABLE);
+        createIndices(db);
+        createTriggers(db);
+    }
+
+    private static Set<String> getColumns(SQLiteDatabase db, String table) {
+        Set<String> columns = new LinkedHashSet<String>();
+        Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (c.moveToNext()) {
+                columns.add(c.getString(c.getColumnIndexOrThrow("name")));
+            }
+        } finally {
+            c.close();
+        }
+        return columns;
+    }
+
+    private static void migrateStoryImages(SQLiteDatabase db) {
+        Cursor c = db.query(DatabaseConstants.STORY_TABLE, new String[]{DatabaseConstants.STORY_HASH, DatabaseConstants.STORY_IMAGE_URLS}, null, null, null, null, null);
+        try {
+            ContentValues values = new ContentValues();
+            while (c.moveToNext()) {
+                values.put(DatabaseConstants.STORY_IMAGES_STORY_HASH, c.getString(0));
+                for (String url : TextUtils.split(c.getString(1), ",")) {
+                    values.put(DatabaseConstants.STORY_IMAGES_URL, url);
+                    db.insertWithOnConflict(DatabaseConstants.STORY_IMAGES_TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // the local counts triggers rely on REPLACEs firing delete triggers
+        if (!db.isReadOnly()) {
+            db.execSQL("PRAGMA recursive_triggers = ON");
+        }
     }
 
     public SQLiteDatabase getRO() {
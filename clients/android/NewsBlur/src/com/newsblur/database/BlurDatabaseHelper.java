@@ -4,8 +4,10 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Loader;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import static android.database.DatabaseUtils.dumpCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.CancellationSignal;
@@ -20,6 +22,7 @@ import com.newsblur.domain.Reply;
 import com.newsblur.domain.SocialFeed;
 import com.newsblur.domain.StarredCount;
 import com.newsblur.domain.Story;
+import com.newsblur.domain.StoryBody;
 import com.newsblur.domain.UserProfile;
 import com.newsblur.network.domain.StoriesResponse;
 import com.newsblur.service.NBSyncService;
@@ -30,13 +33,16 @@ import com.newsblur.util.ReadingAction;
 import com.newsblur.util.ReadFilter;
 import com.newsblur.util.StateFilter;
 import com.newsblur.util.StoryOrder;
+import com.newsblur.util.StoryUtils;
 
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -53,6 +59,9 @@ public class BlurDatabaseHelper {
     // manual synchro isn't needed if you only use one DBHelper, but at present the app uses several
     public final static Object RW_MUTEX = new Object();
 
+    // the most bind args we will use in one statement, kept safely under SQLITE_MAX_VARIABLE_NUMBER
+    private final static int MAX_BIND_ARGS = 500;
+
     private Context context;
     private final BlurDatabase dbWrapper;
     private SQLiteDatabase dbRO;
@@ -65,6 +74,14 @@ public class BlurDatabaseHelper {
             dbWrapper = new BlurDatabase(context);
             dbRO = dbWrapper.getRO();
             dbRW = dbWrapper.getRW();
+            if (AppConstants.ENABLE_WAL && WalProbe.isWalSafe(context, dbRW)) {
+                // in WAL mode the framework gives queries not made inside a write transaction their
+                // own pooled connection, so reads see the last commit instead of queueing behind the
+                // writer. writes are still serialised by RW_MUTEX as usual.
+                if (!dbRW.enableWriteAheadLogging()) {
+                    Log.w(this.getClass().getName(), "could not enable WAL mode");
+                }
+            }
         }
     }
 
@@ -110,17 +127,6 @@ public class BlurDatabaseHelper {
         return feedIds;
     }
 
-    private List<String> getAllSocialFeeds() {
-        String q1 = "SELECT " + DatabaseConstants.SOCIAL_FEED_ID +
-                    " FROM " + DatabaseConstants.SOCIALFEED_TABLE;
-        Cursor c = dbRO.rawQuery(q1, null);
-        List<String> feedIds = new ArrayList<String>(c.getCount());
-        while (c.moveToNext()) {
-           feedIds.add(c.getString(c.getColumnIndexOrThrow(DatabaseConstants.SOCIAL_FEED_ID)));
-        }
-        c.close();
-        return feedIds;
-    }
 
     /**
      * Clean up stories from more than a month ago. This is the oldest an unread can be,
@@ -135,7 +141,7 @@ public class BlurDatabaseHelper {
         synchronized (RW_MUTEX) {
             int count = dbRW.delete(DatabaseConstants.STORY_TABLE, 
                         DatabaseConstants.STORY_TIMESTAMP + " < ?" +
-                        " AND " + DatabaseConstants.STORY_TEXT_STORY_HASH + " NOT IN " +
+                        " AND " + DatabaseConstants.STORY_HASH + " NOT IN " +
                         "( SELECT " + DatabaseConstants.READING_SESSION_STORY_HASH + " FROM " + DatabaseConstants.READING_SESSION_TABLE + ")",
                         new String[]{Long.toString(cutoffDate.getTime().getTime())});
         }
@@ -149,20 +155,32 @@ public class BlurDatabaseHelper {
         synchronized (RW_MUTEX) {
             int count = dbRW.delete(DatabaseConstants.STORY_TABLE, 
                         DatabaseConstants.STORY_READ + " = 1" +
-                        " AND " + DatabaseConstants.STORY_TEXT_STORY_HASH + " NOT IN " +
+                        " AND " + DatabaseConstants.STORY_HASH + " NOT IN " +
                         "( SELECT " + DatabaseConstants.READING_SESSION_STORY_HASH + " FROM " + DatabaseConstants.READING_SESSION_TABLE + ")",
                         null);
         }
     }
 
-    public void cleanupStoryText() {
-        String q = "DELETE FROM " + DatabaseConstants.STORY_TEXT_TABLE +
-                   " WHERE " + DatabaseConstants.STORY_TEXT_STORY_HASH + " NOT IN " +
+    /**
+     * Clean up story bodies and original text for stories that have since been removed.
+     */
+    public void cleanupStoryContent() {
+        String q = "DELETE FROM " + DatabaseConstants.STORY_CONTENT_TABLE +
+                   " WHERE " + DatabaseConstants.STORY_CONTENT_STORY_HASH + " NOT IN " +
                    "( SELECT " + DatabaseConstants.STORY_HASH + " FROM " + DatabaseConstants.STORY_TABLE +
                    ")";
         synchronized (RW_MUTEX) {dbRW.execSQL(q);}
     }
 
+    /**
+     * Merges the many small segments left in the search index by story churn. Index entries for
+     * removed stories are already gone (see STORY_SEARCH_TRIGGER_SQL), this just reclaims space.
+     */
+    public void optimizeSearchIndex() {
+        String q = "INSERT INTO " + DatabaseConstants.STORY_SEARCH_TABLE + "(" + DatabaseConstants.STORY_SEARCH_TABLE + ") VALUES ('optimize')";
+        synchronized (RW_MUTEX) {dbRW.execSQL(q);}
+    }
+
     public void vacuum() {
         synchronized (RW_MUTEX) {dbRW.execSQL("VACUUM");}
     }
@@ -231,11 +249,209 @@ public class BlurDatabaseHelper {
                 bulkInsertValuesExtSync(DatabaseConstants.FEED_TABLE, feedValues);
                 bulkInsertValuesExtSync(DatabaseConstants.SOCIALFEED_TABLE, socialFeedValues);
                 bulkInsertValuesExtSync(DatabaseConstants.STARREDCOUNTS_TABLE, starredCountValues);
+                rebuildFolderFeeds(dbRW);
+                dbRW.setTransactionSuccessful();
+            } finally {
+                dbRW.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * A gentler alternative to setFeedsFolders() that compares the incoming metadata with what
+     * is already stored and writes only rows that were added, changed or removed, so that a
+     * routine sync that finds nothing new doesn't rewrite thousands of rows.
+     *
+     * @return true if any of the tables were changed.
+     */
+    public boolean updateFeedsFolders(List<ContentValues> folderValues,
+                                      List<ContentValues> feedValues,
+                                      List<ContentValues> socialFeedValues,
+                                      List<ContentValues> starredCountValues) {
+        boolean changed = false;
+        synchronized (RW_MUTEX) {
+            dbRW.beginTransaction();
+            try {
+                if (!syncKeyedTableExtSync(DatabaseConstants.FOLDER_TABLE, DatabaseConstants.FOLDER_NAME, folderValues).isEmpty()) {
+                    rebuildFolderFeeds(dbRW);
+                    changed = true;
+                }
+                changed |= !syncKeyedTableExtSync(DatabaseConstants.FEED_TABLE, DatabaseConstants.FEED_ID, feedValues).isEmpty();
+                Set<String> removedSocialIds = syncKeyedTableExtSync(DatabaseConstants.SOCIALFEED_TABLE, DatabaseConstants.SOCIAL_FEED_ID, socialFeedValues);
+                changed |= !removedSocialIds.isEmpty();
+                for (String userId : removedSocialIds) {
+                    dbRW.delete(DatabaseConstants.SOCIALFEED_STORY_MAP_TABLE, DatabaseConstants.SOCIALFEED_STORY_USER_ID + " = ?", new String[]{userId});
+                }
+                // starred counts have no natural key, but are few enough to just compare wholesale
+                if (!tableMatchesExtSync(DatabaseConstants.STARREDCOUNTS_TABLE, starredCountValues)) {
+                    dbRW.delete(DatabaseConstants.STARREDCOUNTS_TABLE, null, null);
+                    bulkInsertValuesExtSync(DatabaseConstants.STARREDCOUNTS_TABLE, starredCountValues);
+                    changed = true;
+                }
                 dbRW.setTransactionSuccessful();
             } finally {
                 dbRW.endTransaction();
             }
         }
+        if (AppConstants.VERBOSE_LOG_DB) Log.d(this.getClass().getName(), "delta feed/folder sync changed tables: " + changed);
+        return changed;
+    }
+
+    /**
+     * Rebuilds the folder membership table from the folders table, resolving each folder to every
+     * feed beneath it. The folder tree is small but the API doesn't promise it is acyclic, so each
+     * folder is visited at most once per walk. Must be called with the write lock held, ideally
+     * in the same transaction that changed the folders.
+     */
+    static void rebuildFolderFeeds(SQLiteDatabase db) {
+        Map<String,Folder> folders = new HashMap<String,Folder>();
+        Cursor c = db.query(DatabaseConstants.FOLDER_TABLE, null, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                Folder folder = Folder.fromCursor(c);
+                folders.put(folder.name, folder);
+            }
+        } finally {
+            closeQuietly(c);
+        }
+        db.delete(DatabaseConstants.FOLDER_FEEDS_TABLE, null, null);
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + DatabaseConstants.FOLDER_FEEDS_TABLE +
+                                                     " (" + DatabaseConstants.FOLDER_FEEDS_FOLDER_NAME + ", " + DatabaseConstants.FOLDER_FEEDS_FEED_ID + ") VALUES (?, ?)");
+        try {
+            for (Folder folder : folders.values()) {
+                insert.bindString(1, folder.name);
+                Set<String> visited = new HashSet<String>();
+                List<Folder> toVisit = new ArrayList<Folder>();
+                toVisit.add(folder);
+                while (!toVisit.isEmpty()) {
+                    Folder f = toVisit.remove(toVisit.size() - 1);
+                    if (!visited.add(f.name)) continue;
+                    for (String feedId : f.feedIds) {
+                        insert.bindString(2, feedId);
+                        insert.executeInsert();
+                    }
+                    for (String childName : f.children) {
+                        Folder child = folders.get(childName);
+                        if (child != null) toVisit.add(child);
+                    }
+                }
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * Makes the rows of a table match the given values, writing only what differs. Rows are
+     * matched by keyColumn and compared on only the columns present in the new values.
+     *
+     * @return the keys of all rows that were touched, or an empty set if none were. Removed rows
+     *         are included.
+     */
+    private Set<String> syncKeyedTableExtSync(String table, String keyColumn, List<ContentValues> valuesList) {
+        Map<String,ContentValues> incoming = new HashMap<String,ContentValues>(valuesList.size());
+        for (ContentValues values : valuesList) {
+            incoming.put(values.getAsString(keyColumn), values);
+        }
+        // work out every change before making any, since writing to the table while a cursor
+        // over it is open can make the cursor skip rows when it refills its window
+        List<String> removed = new ArrayList<String>();
+        Map<String,ContentValues> changed = new HashMap<String,ContentValues>();
+        Cursor c = dbRW.query(table, null, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                String key = c.getString(c.getColumnIndexOrThrow(keyColumn));
+                ContentValues values = incoming.remove(key);
+                if (values == null) {
+                    removed.add(key);
+                } else if (!rowMatches(c, values)) {
+                    changed.put(key, values);
+                }
+            }
+        } finally {
+            closeQuietly(c);
+        }
+        Set<String> touched = new HashSet<String>();
+        for (String key : removed) {
+            dbRW.delete(table, keyColumn + " = ?", new String[]{key});
+            touched.add(key);
+        }
+        for (Map.Entry<String,ContentValues> entry : changed.entrySet()) {
+            dbRW.update(table, entry.getValue(), keyColumn + " = ?", new String[]{entry.getKey()});
+            touched.add(entry.getKey());
+        }
+        // whatever wasn't matched to an existing row is new
+        for (Map.Entry<String,ContentValues> entry : incoming.entrySet()) {
+            dbRW.insertWithOnConflict(table, null, entry.getValue(), SQLiteDatabase.CONFLICT_REPLACE);
+            touched.add(entry.getKey());
+        }
+        return touched;
+    }
+
+    /**
+     * Checks whether a table holds exactly the given rows, in any order.
+     */
+    private boolean tableMatchesExtSync(String table, List<ContentValues> valuesList) {
+        Cursor c = dbRW.query(table, null, null, null, null, null, null);
+        try {
+            if (c.getCount() != valuesList.size()) return false;
+            List<ContentValues> unmatched = new ArrayList<ContentValues>(valuesList);
+            rowloop: while (c.moveToNext()) {
+                for (Iterator<ContentValues> i = unmatched.iterator(); i.hasNext(); ) {
+                    if (rowMatches(c, i.next())) {
+                        i.remove();
+                        continue rowloop;
+                    }
+                }
+                return false;
+            }
+            return true;
+        } finally {
+            closeQuietly(c);
+        }
+    }
+
+    /**
+     * Compares the current row of a cursor to a set of values as SQLite would have stored them.
+     */
+    private static boolean rowMatches(Cursor c, ContentValues values) {
+        for (Map.Entry<String,Object> entry : values.valueSet()) {
+            int index = c.getColumnIndex(entry.getKey());
+            if (index < 0) return false;
+            Object value = entry.getValue();
+            String expected;
+            if (value == null) {
+                expected = null;
+            } else if (value instanceof Boolean) {
+                // booleans are bound as integers
+                expected = ((Boolean) value) ? "1" : "0";
+            } else {
+                expected = value.toString();
+            }
+            if (!TextUtils.equals(expected, c.getString(index))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes comments, replies and social story mappings for stories that are no longer
+     * stored.
+     */
+    public void cleanupSocialData() {
+        synchronized (RW_MUTEX) {
+            dbRW.delete(DatabaseConstants.COMMENT_TABLE, 
+                        DatabaseConstants.COMMENT_STORYID + " NOT IN " +
+                        "( SELECT " + DatabaseConstants.STORY_ID + " FROM " + DatabaseConstants.STORY_TABLE + ")",
+                        null);
+            dbRW.delete(DatabaseConstants.REPLY_TABLE, 
+                        DatabaseConstants.REPLY_COMMENTID + " NOT IN " +
+                        "( SELECT " + DatabaseConstants.COMMENT_ID + " FROM " + DatabaseConstants.COMMENT_TABLE + ")",
+                        null);
+            dbRW.delete(DatabaseConstants.SOCIALFEED_STORY_MAP_TABLE, 
+                        DatabaseConstants.SOCIALFEED_STORY_STORYID + " NOT IN " +
+                        "( SELECT " + DatabaseConstants.STORY_ID + " FROM " + DatabaseConstants.STORY_TABLE + ")",
+                        null);
+        }
     }
 
     public void setStarredCounts(List<ContentValues> values) {
@@ -280,151 +496,63 @@ public class BlurDatabaseHelper {
     }
 
     public Set<String> getAllStoryImages() {
-        Cursor c = dbRO.query(DatabaseConstants.STORY_TABLE, new String[]{DatabaseConstants.STORY_IMAGE_URLS}, null, null, null, null, null);
+        Cursor c = dbRO.query(true, DatabaseConstants.STORY_IMAGES_TABLE, new String[]{DatabaseConstants.STORY_IMAGES_URL}, null, null, null, null, null, null);
         Set<String> urls = new HashSet<String>(c.getCount());
         while (c.moveToNext()) {
-            for (String url : TextUtils.split(c.getString(c.getColumnIndexOrThrow(DatabaseConstants.STORY_IMAGE_URLS)), ",")) {
-                urls.add(url);
-            }
+            urls.add(c.getString(0));
         }
         c.close();
         return urls;
     }
 
-    public void insertStories(StoriesResponse apiResponse, boolean forImmediateReading) {
-        StateFilter intelState = PrefsUtils.getStateFilter(context);
-        synchronized (RW_MUTEX) {
-            // do not attempt to use beginTransactionNonExclusive() to reduce lock time for this very heavy set
-            // of calls. most versions of Android incorrectly implement the underlying SQLite calls and will
-            // result in crashes that poison the DB beyond repair
-            dbRW.beginTransaction();
+    /**
+     * Of the given image URLs, find those that belong to at least one unread story. Meant for
+     * small batches of candidates, as each is looked up by index.
+     */
+    public Set<String> getUnreadStoryImages(Collection<String> candidateUrls) {
+        Set<String> urls = new HashSet<String>(candidateUrls.size());
+        List<String> candidates = new ArrayList<String>(candidateUrls);
+        for (int start=0; start<candidates.size(); start+=MAX_BIND_ARGS) {
+            List<String> chunk = candidates.subList(start, Math.min(start + MAX_BIND_ARGS, candidates.size()));
+            String q = "SELECT DISTINCT " + DatabaseConstants.STORY_IMAGES_URL +
+                       " FROM " + DatabaseConstants.STORY_IMAGES_TABLE +
+                       " INNER JOIN " + DatabaseConstants.STORY_TABLE +
+                       " ON " + DatabaseConstants.STORY_TABLE + "." + DatabaseConstants.STORY_HASH + " = " + DatabaseConstants.STORY_IMAGES_TABLE + "." + DatabaseConstants.STORY_IMAGES_STORY_HASH +
+                       " WHERE " + DatabaseConstants.STORY_IMAGES_URL + " IN (" + makeBindList(chunk.size()) + ")" +
+                       " AND " + DatabaseConstants.STORY_READ + " = 0";
+            Cursor c = dbRO.rawQuery(q, chunk.toArray(new String[chunk.size()]));
             try {
-            
-                // to insert classifiers, we need to determine the feed ID of the stories in this
-                // response, so sniff one out.
-                String impliedFeedId = null;
-
-                // handle users
-                if (apiResponse.users != null) {
-                    List<ContentValues> userValues = new ArrayList<ContentValues>(apiResponse.users.length);
-                    for (UserProfile user : apiResponse.users) {
-                        userValues.add(user.getValues());
-                    }
-                    bulkInsertValuesExtSync(DatabaseConstants.USER_TABLE, userValues);
-                }
-
-                // handle supplemental feed data that may have been included (usually in social requests)
-                if (apiResponse.feeds != null) {
-                    List<ContentValues> feedValues = new ArrayList<ContentValues>(apiResponse.feeds.size());
-                    for (Feed feed : apiResponse.feeds) {
-                        feedValues.add(feed.getValues());
-                    }
-                    bulkInsertValuesExtSync(DatabaseConstants.FEED_TABLE, feedValues);
-                }
-
-                // handle story content
-                List<ContentValues> socialStoryValues = new ArrayList<ContentValues>();
-                for (Story story : apiResponse.stories) {
-                    ContentValues values = story.getValues();
-                    // immediate insert the story data
-                    dbRW.insertWithOnConflict(DatabaseConstants.STORY_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
-                    // if a story was shared by a user, also insert it into the social table under their userid, too
-                    for (String sharedUserId : story.sharedUserIds) {
-                        ContentValues socialValues = new ContentValues();
-                        socialValues.put(DatabaseConstants.SOCIALFEED_STORY_USER_ID, sharedUserId);
-                        socialValues.put(DatabaseConstants.SOCIALFEED_STORY_STORYID, values.getAsString(DatabaseConstants.STORY_ID));
-                        socialStoryValues.add(socialValues);
-                    }
-                    // if the story is being fetched for the immediate session, also add the hash to the session table
-                    if (forImmediateReading && story.isStoryVisibileInState(intelState)) {
-                        ContentValues sessionHashValues = new ContentValues();
-                        sessionHashValues.put(DatabaseConstants.READING_SESSION_STORY_HASH, story.storyHash);
-                        dbRW.insert(DatabaseConstants.READING_SESSION_TABLE, null, sessionHashValues);
-                    }
-                    impliedFeedId = story.feedId;
-                }
-                if (socialStoryValues.size() > 0) {
-                    for(ContentValues values: socialStoryValues) {
-                        dbRW.insertWithOnConflict(DatabaseConstants.SOCIALFEED_STORY_MAP_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
-                    }
-                }
-
-                // handle classifiers
-                if (apiResponse.classifiers != null) {
-                    for (Map.Entry<String,Classifier> entry : apiResponse.classifiers.entrySet()) {
-                        // the API might not have included a feed ID, in which case it deserialized as -1 and must be implied
-                        String classifierFeedId = entry.getKey();
-                        if (classifierFeedId.equals("-1")) {
-                            classifierFeedId = impliedFeedId;
-                        }
-                        List<ContentValues> classifierValues = entry.getValue().getContentValues();
-                        for (ContentValues values : classifierValues) {
-                            values.put(DatabaseConstants.CLASSIFIER_ID, classifierFeedId);
-                        }
-                        dbRW.delete(DatabaseConstants.CLASSIFIER_TABLE, DatabaseConstants.CLASSIFIER_ID + " = ?", new String[] { classifierFeedId });
-                        bulkInsertValuesExtSync(DatabaseConstants.CLASSIFIER_TABLE, classifierValues);
-                    }
+                while (c.moveToNext()) {
+                    urls.add(c.getString(0));
                 }
+            } finally {
+                closeQuietly(c);
+            }
+        }
+        return urls;
+    }
 
-                // handle comments
-                List<ContentValues> commentValues = new ArrayList<ContentValues>();
-                List<ContentValues> replyValues = new ArrayList<ContentValues>();
-                // track which comments were seen, so replies can be cleared before re-insertion. there isn't
-                // enough data to de-dupe them for an insert/update operation
-                List<String> freshCommentIds = new ArrayList<String>();
-                for (Story story : apiResponse.stories) {
-                    for (Comment comment : story.publicComments) {
-                        comment.storyId = story.id;
-                        // we need a primary key for comments, so construct one
-                        comment.id = Comment.constructId(story.id, story.feedId, comment.userId);
-                        commentValues.add(comment.getValues());
-                        for (Reply reply : comment.replies) {
-                            reply.commentId = comment.id;
-                            reply.id = reply.constructId();
-                            replyValues.add(reply.getValues());
-                        }
-                        freshCommentIds.add(comment.id);
-                    }
-                    for (Comment comment : story.friendsComments) {
-                        comment.storyId = story.id;
-                        // we need a primary key for comments, so construct one
-                        comment.id = Comment.constructId(story.id, story.feedId, comment.userId);
-                        comment.byFriend = true;
-                        commentValues.add(comment.getValues());
-                        for (Reply reply : comment.replies) {
-                            reply.commentId = comment.id;
-                            reply.id = reply.constructId();
-                            replyValues.add(reply.getValues());
-                        }
-                        freshCommentIds.add(comment.id);
-                    }
-                    for (Comment comment : story.friendsShares) {
-                        comment.isPseudo = true;
-                        comment.storyId = story.id;
-                        // we need a primary key for comments, so construct one
-                        comment.id = Comment.constructId(story.id, story.feedId, comment.userId);
-                        comment.byFriend = true;
-                        commentValues.add(comment.getValues());
-                        for (Reply reply : comment.replies) {
-                            reply.commentId = comment.id;
-                            reply.id = reply.constructId();
-                            replyValues.add(reply.getValues());
-                        }
-                        freshCommentIds.add(comment.id);
-                    }
-                }
-                // before inserting new replies, remove existing ones for the fetched comments
-                // NB: attempting to do this with a "WHERE col IN (vector)" for speed can cause errors on some versions of sqlite
-                for (String commentId : freshCommentIds) {
-                    dbRW.delete(DatabaseConstants.REPLY_TABLE, DatabaseConstants.REPLY_COMMENTID + " = ?", new String[]{commentId});
-                }
-                bulkInsertValuesExtSync(DatabaseConstants.COMMENT_TABLE, commentValues);
-                bulkInsertValuesExtSync(DatabaseConstants.REPLY_TABLE, replyValues);
+    /**
+     * Create a writer that can stream stories into the DB as they become available. The caller
+     * must call finish() on the result when done. If the stories are being fetched for the
+     * reading session of a FeedSet, pass it so visible stories join the session as they land.
+     */
+    public StoryIngester newStoryIngester(FeedSet sessionFs) {
+        String sessionSortColumn = (sessionFs == null) ? null : DatabaseConstants.getSessionSortColumn(sessionFs);
+        return new StoryIngester(dbRW, sessionSortColumn, PrefsUtils.getStateFilter(context));
+    }
 
-                dbRW.setTransactionSuccessful();
-            } finally {
-                dbRW.endTransaction();
+    public void insertStories(StoriesResponse apiResponse, FeedSet sessionFs) {
+        StoryIngester ingester = newStoryIngester(sessionFs);
+        try {
+            ingester.addUsers(apiResponse.users);
+            ingester.addFeeds(apiResponse.feeds);
+            for (Story story : apiResponse.stories) {
+                ingester.add(story);
             }
+            ingester.addClassifiers(apiResponse.classifiers);
+        } finally {
+            ingester.finish();
         }
     }
 
@@ -464,6 +592,33 @@ public class BlurDatabaseHelper {
         }
     }
 
+    /**
+     * Get the IDs of all feeds in a folder, including those in sub-folders.
+     */
+    public Set<String> getFolderFeedIds(String folderName) {
+        Set<String> feedIds = new HashSet<String>();
+        Cursor c = dbRO.query(DatabaseConstants.FOLDER_FEEDS_TABLE, new String[]{DatabaseConstants.FOLDER_FEEDS_FEED_ID}, DatabaseConstants.FOLDER_FEEDS_FOLDER_NAME + " = ?", new String[]{folderName}, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                feedIds.add(c.getString(0));
+            }
+        } finally {
+            closeQuietly(c);
+        }
+        return feedIds;
+    }
+
+    /**
+     * Spells out the feeds of a folder FeedSet, for API calls that can't take a folder name.
+     * Other FeedSets are returned as they are.
+     */
+    public FeedSet getApiFeedSet(FeedSet fs) {
+        if (!fs.isFolder()) return fs;
+        FeedSet apiFs = FeedSet.folder(fs.getFolderName(), getFolderFeedIds(fs.getFolderName()));
+        apiFs.setSearchQuery(fs.getSearchQuery());
+        return apiFs;
+    }
+
     public Folder getFolder(String folderName) {
         String[] selArgs = new String[] {folderName};
         String selection = DatabaseConstants.FOLDER_NAME + " = ?";
@@ -483,20 +638,50 @@ public class BlurDatabaseHelper {
         synchronized (RW_MUTEX) {dbRW.update(DatabaseConstants.STORY_TABLE, values, DatabaseConstants.STORY_LAST_READ_DATE + " < 1 AND " + DatabaseConstants.STORY_HASH + " = ?", new String[]{hash});}
     }
 
-    public void markStoryHashesRead(Collection<String> hashes) {
+    /**
+     * Marks a (potentially very large) set of stories read in bulk, a chunk of hashes per
+     * statement. Does not adjust counts itself, but reports which feeds had previously unread
+     * stories marked read so the caller can get their counts reconciled.
+     *
+     * @return the set of feed IDs that potentially have counts impacted by the mark.
+     */
+    public Set<FeedSet> markStoryHashesRead(Collection<String> hashes) {
+        Set<String> impactedFeedIds = new HashSet<String>();
+        Set<String> impactedSocialIds = new HashSet<String>();
+        ContentValues values = new ContentValues();
+        values.put(DatabaseConstants.STORY_READ, true);
         synchronized (RW_MUTEX) {
             dbRW.beginTransaction();
             try {
-                ContentValues values = new ContentValues();
-                values.put(DatabaseConstants.STORY_READ, true);
-                for (String hash : hashes) {
-                    dbRW.update(DatabaseConstants.STORY_TABLE, values, DatabaseConstants.STORY_HASH + " = ?", new String[]{hash});
+                Iterator<String> i = hashes.iterator();
+                while (i.hasNext()) {
+                    List<String> chunk = new ArrayList<String>(MAX_BIND_ARGS);
+                    while (i.hasNext() && (chunk.size() < MAX_BIND_ARGS)) chunk.add(i.next());
+                    String[] selArgs = chunk.toArray(new String[chunk.size()]);
+                    String sel = DatabaseConstants.STORY_HASH + " IN (" + makeBindList(selArgs.length) + ")" +
+                                 " AND " + DatabaseConstants.STORY_READ + " = 0";
+                    // note which feeds will be impacted before actually changing anything
+                    Cursor c = dbRW.query(true, DatabaseConstants.STORY_TABLE, new String[]{DatabaseConstants.STORY_FEED_ID}, sel, selArgs, null, null, null, null);
+                    while (c.moveToNext()) impactedFeedIds.add(c.getString(0));
+                    closeQuietly(c);
+                    c = dbRW.rawQuery("SELECT DISTINCT " + DatabaseConstants.SOCIALFEED_STORY_USER_ID +
+                                      " FROM " + DatabaseConstants.SOCIALFEED_STORY_MAP_TABLE +
+                                      " WHERE " + DatabaseConstants.SOCIALFEED_STORY_STORYID + " IN " +
+                                      "( SELECT " + DatabaseConstants.STORY_ID + " FROM " + DatabaseConstants.STORY_TABLE + " WHERE " + sel + ")",
+                                      selArgs);
+                    while (c.moveToNext()) impactedSocialIds.add(c.getString(0));
+                    closeQuietly(c);
+                    dbRW.update(DatabaseConstants.STORY_TABLE, values, sel, selArgs);
                 }
                 dbRW.setTransactionSuccessful();
             } finally {
                 dbRW.endTransaction();
             }
         }
+        Set<FeedSet> impactedFeeds = new HashSet<FeedSet>(impactedFeedIds.size() + impactedSocialIds.size());
+        for (String feedId : impactedFeedIds) impactedFeeds.add(FeedSet.singleFeed(feedId));
+        for (String socialId : impactedSocialIds) impactedFeeds.add(FeedSet.singleSocialFeed(socialId, ""));
+        return impactedFeeds;
     }
 
     /**
@@ -600,8 +785,12 @@ public class BlurDatabaseHelper {
         if (olderThan != null) rangeSelection = DatabaseConstants.STORY_TIMESTAMP + " <= " + olderThan.toString();
         if (newerThan != null) rangeSelection = DatabaseConstants.STORY_TIMESTAMP + " >= " + newerThan.toString();
         StringBuilder feedSelection = null;
+        String[] selArgs = null;
         if (fs.isAllNormal()) {
             // a null selection is fine for all stories
+        } else if (fs.isFolder()) {
+            feedSelection = new StringBuilder(DatabaseConstants.getFolderFeedSelection(DatabaseConstants.STORY_FEED_ID));
+            selArgs = new String[]{fs.getFolderName()};
         } else if (fs.getMultipleFeeds() != null) {
             feedSelection = new StringBuilder(DatabaseConstants.STORY_FEED_ID + " IN ( ");
             feedSelection.append(TextUtils.join(",", fs.getMultipleFeeds()));
@@ -615,7 +804,7 @@ public class BlurDatabaseHelper {
         } else {
             throw new IllegalStateException("Asked to mark stories for FeedSet of unknown type.");
         }
-        synchronized (RW_MUTEX) {dbRW.update(DatabaseConstants.STORY_TABLE, values, conjoinSelections(feedSelection, rangeSelection), null);}
+        synchronized (RW_MUTEX) {dbRW.update(DatabaseConstants.STORY_TABLE, values, conjoinSelections(feedSelection, rangeSelection), selArgs);}
     }
 
     /**
@@ -629,6 +818,8 @@ public class BlurDatabaseHelper {
             // even though we can count up and total the unreads in social feeds, the API doesn't vend
             // unread status for stories viewed when reading All Shared Stories, so force this to 0.
             return 0;
+        } else if (fs.isFolder()) {
+            return getFeedsUnreadCount(stateFilter, DatabaseConstants.getFolderFeedSelection(DatabaseConstants.FEED_ID), new String[]{fs.getFolderName()});
         } else if (fs.getMultipleFeeds() != null) { 
             StringBuilder selection = new StringBuilder(DatabaseConstants.FEED_ID + " IN ( ");
             selection.append(TextUtils.join(",", fs.getMultipleFeeds())).append(")");
@@ -685,13 +876,16 @@ public class BlurDatabaseHelper {
      * Refreshes the counts in the feeds/socialfeeds tables by counting stories in the story table.
      */
     public void updateLocalFeedCounts(FeedSet fs) {
-        // decompose the FeedSet into a list of single feeds that need to be recounted
+        // decompose the FeedSet into a list of single feeds that need to be recounted. a null
+        // list means all of them.
         List<String> feedIds = new ArrayList<String>();
         List<String> socialFeedIds = new ArrayList<String>();
 
         if (fs.isAllNormal()) {
-            feedIds.addAll(getAllFeeds());
-            socialFeedIds.addAll(getAllSocialFeeds());
+            feedIds = null;
+            socialFeedIds = null;
+        } else if (fs.isFolder()) {
+            feedIds.addAll(getFolderFeedIds(fs.getFolderName()));
         } else if (fs.getMultipleFeeds() != null) { 
             feedIds.addAll(fs.getMultipleFeeds());
         } else if (fs.getSingleFeed() != null) {
@@ -704,46 +898,129 @@ public class BlurDatabaseHelper {
             throw new IllegalStateException("Asked to refresh story counts for FeedSet of unknown type.");
         }
 
-        // now recount the number of unreads in each feed, one by one
-        for (String feedId : feedIds) {
-            FeedSet singleFs = FeedSet.singleFeed(feedId);
-            ContentValues values = new ContentValues();
-            values.put(DatabaseConstants.FEED_NEGATIVE_COUNT, getLocalUnreadCount(singleFs, StateFilter.NEG));
-            values.put(DatabaseConstants.FEED_NEUTRAL_COUNT, getLocalUnreadCount(singleFs, StateFilter.NEUT));
-            values.put(DatabaseConstants.FEED_POSITIVE_COUNT, getLocalUnreadCount(singleFs, StateFilter.BEST));
-            synchronized (RW_MUTEX) {dbRW.update(DatabaseConstants.FEED_TABLE, values, DatabaseConstants.FEED_ID + " = ?", new String[]{feedId});}
+        // the local counts tables always know the answer, so just copy it over
+        synchronized (RW_MUTEX) {
+            dbRW.beginTransaction();
+            try {
+                copyLocalCountsExtSync(DatabaseConstants.FEED_TABLE, DatabaseConstants.FEED_ID, feedIds,
+                                       DatabaseConstants.LOCAL_COUNTS_TABLE, DatabaseConstants.LOCAL_COUNTS_FEED_ID,
+                                       DatabaseConstants.FEED_NEGATIVE_COUNT, DatabaseConstants.FEED_NEUTRAL_COUNT, DatabaseConstants.FEED_POSITIVE_COUNT);
+                copyLocalCountsExtSync(DatabaseConstants.SOCIALFEED_TABLE, DatabaseConstants.SOCIAL_FEED_ID, socialFeedIds,
+                                       DatabaseConstants.LOCAL_SOCIAL_COUNTS_TABLE, DatabaseConstants.LOCAL_SOCIAL_COUNTS_USER_ID,
+                                       DatabaseConstants.SOCIAL_FEED_NEGATIVE_COUNT, DatabaseConstants.SOCIAL_FEED_NEUTRAL_COUNT, DatabaseConstants.SOCIAL_FEED_POSITIVE_COUNT);
+                dbRW.setTransactionSuccessful();
+            } finally {
+                dbRW.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Sets the three unread count columns of a feed table from the matching local counts
+     * table. If ids is null, all rows are updated.
+     */
+    private void copyLocalCountsExtSync(String table, String idColumn, List<String> ids, String countsTable, String countsIdColumn, String negCol, String neutCol, String posCol) {
+        if ((ids != null) && (ids.size() < 1)) return;
+        StringBuilder q = new StringBuilder("UPDATE " + table + " SET ");
+        q.append(negCol).append(" = ").append(localCountSubquery(table, idColumn, countsTable, countsIdColumn, DatabaseConstants.LOCAL_COUNTS_NEG)).append(", ");
+        q.append(neutCol).append(" = ").append(localCountSubquery(table, idColumn, countsTable, countsIdColumn, DatabaseConstants.LOCAL_COUNTS_NEUT)).append(", ");
+        q.append(posCol).append(" = ").append(localCountSubquery(table, idColumn, countsTable, countsIdColumn, DatabaseConstants.LOCAL_COUNTS_POS));
+        if (ids == null) {
+            dbRW.execSQL(q.toString());
+            return;
+        }
+        for (int start=0; start<ids.size(); start+=MAX_BIND_ARGS) {
+            List<String> chunk = ids.subList(start, Math.min(start + MAX_BIND_ARGS, ids.size()));
+            String chunkQ = q.toString() + " WHERE " + idColumn + " IN (" + makeBindList(chunk.size()) + ")";
+            dbRW.execSQL(chunkQ, chunk.toArray(new String[chunk.size()]));
         }
+    }
+
+    private static String localCountSubquery(String table, String idColumn, String countsTable, String countsIdColumn, String countColumn) {
+        return "IFNULL((SELECT " + countColumn + " FROM " + countsTable +
+               " WHERE " + countsTable + "." + countsIdColumn + " = " + table + "." + idColumn + "), 0)";
+    }
 
-        for (String socialId : socialFeedIds) {
-            FeedSet singleFs = FeedSet.singleSocialFeed(socialId, "");
-            ContentValues values = new ContentValues();
-            values.put(DatabaseConstants.SOCIAL_FEED_NEGATIVE_COUNT, getLocalUnreadCount(singleFs, StateFilter.NEG));
-            values.put(DatabaseConstants.SOCIAL_FEED_NEUTRAL_COUNT, getLocalUnreadCount(singleFs, StateFilter.NEUT));
-            values.put(DatabaseConstants.SOCIAL_FEED_POSITIVE_COUNT, getLocalUnreadCount(singleFs, StateFilter.BEST));
-            synchronized (RW_MUTEX) {dbRW.update(DatabaseConstants.SOCIALFEED_TABLE, values, DatabaseConstants.SOCIAL_FEED_ID + " = ?", new String[]{socialId});}
+    /**
+     * Makes a comma-separated list of count bind placeholders, for use in an IN clause.
+     */
+    private static String makeBindList(int count) {
+        StringBuilder list = new StringBuilder(count * 2);
+        for (int i=0; i<count; i++) {
+            if (i > 0) list.append(",");
+            list.append("?");
         }
+        return list.toString();
     }
 
     /**
      * Get the unread count for the given feedset based on local story state.
      */
     public int getLocalUnreadCount(FeedSet fs, StateFilter stateFilter) {
+        // most feedsets can be answered from the local counts tables without touching stories
+        if (fs.getSearchQuery() == null) {
+            String sum = "SELECT IFNULL(SUM(" + DatabaseConstants.getLocalCountsSumForState(stateFilter) + "), 0) FROM ";
+            if (fs.getSingleFeed() != null) {
+                return (int) DatabaseUtils.longForQuery(dbRO, sum + DatabaseConstants.LOCAL_COUNTS_TABLE + " WHERE " + DatabaseConstants.LOCAL_COUNTS_FEED_ID + " = ?", new String[]{fs.getSingleFeed()});
+            } else if (fs.isFolder()) {
+                return (int) DatabaseUtils.longForQuery(dbRO, sum + DatabaseConstants.LOCAL_COUNTS_TABLE + " WHERE " + DatabaseConstants.getFolderFeedSelection(DatabaseConstants.LOCAL_COUNTS_FEED_ID), new String[]{fs.getFolderName()});
+            } else if (fs.getMultipleFeeds() != null) {
+                int count = 0;
+                List<String> feedIds = new ArrayList<String>(fs.getMultipleFeeds());
+                for (int start=0; start<feedIds.size(); start+=MAX_BIND_ARGS) {
+                    List<String> chunk = feedIds.subList(start, Math.min(start + MAX_BIND_ARGS, feedIds.size()));
+                    count += (int) DatabaseUtils.longForQuery(dbRO, sum + DatabaseConstants.LOCAL_COUNTS_TABLE + " WHERE " + DatabaseConstants.LOCAL_COUNTS_FEED_ID + " IN (" + makeBindList(chunk.size()) + ")", chunk.toArray(new String[chunk.size()]));
+                }
+                return count;
+            } else if (fs.isAllNormal()) {
+                return (int) DatabaseUtils.longForQuery(dbRO, sum + DatabaseConstants.LOCAL_COUNTS_TABLE, null);
+            } else if (fs.getSingleSocialFeed() != null) {
+                return (int) DatabaseUtils.longForQuery(dbRO, sum + DatabaseConstants.LOCAL_SOCIAL_COUNTS_TABLE + " WHERE " + DatabaseConstants.LOCAL_SOCIAL_COUNTS_USER_ID + " = ?", new String[]{fs.getSingleSocialFeed().getKey()});
+            }
+        }
+
         StringBuilder sel = new StringBuilder();
         ArrayList<String> selArgs = new ArrayList<String>();
         getLocalStorySelectionAndArgs(sel, selArgs, fs, stateFilter, ReadFilter.UNREAD);
-
-        Cursor c = dbRO.rawQuery(sel.toString(), selArgs.toArray(new String[selArgs.size()]));
-        int count = c.getCount();
-        c.close();
-        return count;
+        String q = "SELECT COUNT(*) FROM (" + sel.toString() + ")";
+        return (int) DatabaseUtils.longForQuery(dbRO, q, selArgs.toArray(new String[selArgs.size()]));
     }
 
+    /**
+     * Queues an action to be done remotely. Actions that set the read or saved state of a story
+     * supersede any still-queued action that set the same state of the same story, since only
+     * the last one decides how the story ends up. Undoing an action before it is sent thus
+     * costs one API call rather than two, and re-doing one costs nothing extra.
+     */
     public void enqueueAction(ReadingAction ra) {
-        synchronized (RW_MUTEX) {dbRW.insertOrThrow(DatabaseConstants.ACTION_TABLE, null, ra.toContentValues());}
+        String supersededSelection = null;
+        String hash = null;
+        if (ra.getReadStateStoryHash() != null) {
+            hash = ra.getReadStateStoryHash();
+            supersededSelection = "(" + DatabaseConstants.ACTION_MARK_READ + " = 1 OR " + DatabaseConstants.ACTION_MARK_UNREAD + " = 1)";
+        } else if (ra.getSavedStateStoryHash() != null) {
+            hash = ra.getSavedStateStoryHash();
+            supersededSelection = "(" + DatabaseConstants.ACTION_SAVE + " = 1 OR " + DatabaseConstants.ACTION_UNSAVE + " = 1)";
+        }
+        synchronized (RW_MUTEX) {
+            dbRW.beginTransaction();
+            try {
+                if (supersededSelection != null) {
+                    int superseded = dbRW.delete(DatabaseConstants.ACTION_TABLE,
+                                                 DatabaseConstants.ACTION_STORY_HASH + " = ? AND " + supersededSelection,
+                                                 new String[]{hash});
+                    if (AppConstants.VERBOSE_LOG_DB && (superseded > 0)) Log.d(this.getClass().getName(), "superseded queued actions: " + superseded);
+                }
+                dbRW.insertOrThrow(DatabaseConstants.ACTION_TABLE, null, ra.toContentValues());
+                dbRW.setTransactionSuccessful();
+            } finally {
+                dbRW.endTransaction();
+            }
+        }
     }
 
     public Cursor getActions(boolean includeDone) {
-        String q = "SELECT * FROM " + DatabaseConstants.ACTION_TABLE;
+        String q = "SELECT * FROM " + DatabaseConstants.ACTION_TABLE + " ORDER BY " + DatabaseConstants.ACTION_ID;
         return dbRO.rawQuery(q, null);
     }
 
@@ -751,6 +1028,15 @@ public class BlurDatabaseHelper {
         synchronized (RW_MUTEX) {dbRW.delete(DatabaseConstants.ACTION_TABLE, DatabaseConstants.ACTION_ID + " = ?", new String[]{actionId});}
     }
 
+    public void clearActions(List<String> actionIds) {
+        synchronized (RW_MUTEX) {
+            for (int start=0; start<actionIds.size(); start+=MAX_BIND_ARGS) {
+                List<String> chunk = actionIds.subList(start, Math.min(start + MAX_BIND_ARGS, actionIds.size()));
+                dbRW.delete(DatabaseConstants.ACTION_TABLE, DatabaseConstants.ACTION_ID + " IN (" + makeBindList(chunk.size()) + ")", chunk.toArray(new String[chunk.size()]));
+            }
+        }
+    }
+
     public void setStoryStarred(String hash, boolean starred) {
         // check the story's starting state and the desired state and adjust it as an atom so we
         // know if it truly changed or not and thus whether to update counts
@@ -819,43 +1105,80 @@ public class BlurDatabaseHelper {
         synchronized (RW_MUTEX) {dbRW.update(DatabaseConstants.STORY_TABLE, values, DatabaseConstants.STORY_HASH + " = ?", new String[]{hash});}
     }
 
-    public String getStoryText(String hash) {
-        String q = "SELECT " + DatabaseConstants.STORY_TEXT_STORY_TEXT +
-                   " FROM " + DatabaseConstants.STORY_TEXT_TABLE +
-                   " WHERE " + DatabaseConstants.STORY_TEXT_STORY_HASH + " = ?";
+    /**
+     * Gets the story body, ready for display. Null if the story has no body stored.
+     */
+    public StoryBody getStoryBody(String hash) {
+        return getStoryBody(hash, DatabaseConstants.STORY_CONTENT_CONTENT, DatabaseConstants.STORY_CONTENT_CONTENT_ALT_TEXTS, DatabaseConstants.STORY_CONTENT_CONTENT_HASH);
+    }
+
+    /**
+     * Gets the original text of a story, ready for display. Null if it hasn't been fetched.
+     */
+    public StoryBody getStoryTextBody(String hash) {
+        return getStoryBody(hash, DatabaseConstants.STORY_CONTENT_TEXT, DatabaseConstants.STORY_CONTENT_TEXT_ALT_TEXTS, DatabaseConstants.STORY_CONTENT_TEXT_HASH);
+    }
+
+    private StoryBody getStoryBody(String hash, String column, String altTextsColumn, String hashColumn) {
+        String q = "SELECT " + column + ", " + altTextsColumn + ", " + hashColumn +
+                   " FROM " + DatabaseConstants.STORY_CONTENT_TABLE +
+                   " WHERE " + DatabaseConstants.STORY_CONTENT_STORY_HASH + " = ?";
         Cursor c = dbRO.rawQuery(q, new String[]{hash});
-        if (c.getCount() < 1) {
-            c.close();
-            return null;
-        } else {
-            c.moveToFirst();
-            String result = c.getString(c.getColumnIndexOrThrow(DatabaseConstants.STORY_TEXT_STORY_TEXT));
-            c.close();
-            return result;
+        try {
+            if (!c.moveToFirst()) return null;
+            String html = ContentCodec.decompress(c.getBlob(0));
+            if (html == null) return null;
+            // rows stored before these were kept just have them worked out now
+            if (c.isNull(1) || c.isNull(2)) return StoryBody.fromHtml(html);
+            return new StoryBody(html, DatabaseConstants.unflattenStringMap(c.getString(1)), c.getInt(2));
+        } finally {
+            closeQuietly(c);
         }
     }
 
     public String getStoryContent(String hash) {
-        String q = "SELECT " + DatabaseConstants.STORY_CONTENT +
-                   " FROM " + DatabaseConstants.STORY_TABLE +
-                   " WHERE " + DatabaseConstants.STORY_HASH + " = ?";
+        return getCompressedContent(DatabaseConstants.STORY_CONTENT_CONTENT, hash);
+    }
+
+    private String getCompressedContent(String column, String hash) {
+        String q = "SELECT " + column +
+                   " FROM " + DatabaseConstants.STORY_CONTENT_TABLE +
+                   " WHERE " + DatabaseConstants.STORY_CONTENT_STORY_HASH + " = ?";
         Cursor c = dbRO.rawQuery(q, new String[]{hash});
-        if (c.getCount() < 1) {
-            c.close();
-            return null;
-        } else {
-            c.moveToFirst();
-            String result = c.getString(c.getColumnIndexOrThrow(DatabaseConstants.STORY_CONTENT));
-            c.close();
-            return result;
+        try {
+            if (!c.moveToFirst()) return null;
+            return ContentCodec.decompress(c.getBlob(0));
+        } finally {
+            closeQuietly(c);
         }
     }
 
     public void putStoryText(String hash, String text) {
-        ContentValues values = new ContentValues();
-        values.put(DatabaseConstants.STORY_TEXT_STORY_HASH, hash);
-        values.put(DatabaseConstants.STORY_TEXT_STORY_TEXT, text);
-        synchronized (RW_MUTEX) {dbRW.insertOrThrow(DatabaseConstants.STORY_TEXT_TABLE, null, values);}
+        String altTexts = DatabaseConstants.flattenStringMap(StoryUtils.sniffAltTexts(text));
+        ContentCodec codec = new ContentCodec();
+        byte[] compressed;
+        try {
+            compressed = codec.compress(text);
+        } finally {
+            codec.release();
+        }
+        synchronized (RW_MUTEX) {
+            // the story's content row normally exists already, but don't lose the text if not
+            dbRW.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                values.put(DatabaseConstants.STORY_CONTENT_STORY_HASH, hash);
+                dbRW.insertWithOnConflict(DatabaseConstants.STORY_CONTENT_TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+                values.clear();
+                values.put(DatabaseConstants.STORY_CONTENT_TEXT, compressed);
+                values.put(DatabaseConstants.STORY_CONTENT_TEXT_ALT_TEXTS, altTexts);
+                values.put(DatabaseConstants.STORY_CONTENT_TEXT_HASH, (text == null) ? null : text.hashCode());
+                dbRW.update(DatabaseConstants.STORY_CONTENT_TABLE, values, DatabaseConstants.STORY_CONTENT_STORY_HASH + " = ?", new String[]{hash});
+                dbRW.setTransactionSuccessful();
+            } finally {
+                dbRW.endTransaction();
+            }
+        }
     }
 
     public Loader<Cursor> getSocialFeedsLoader(final StateFilter stateFilter) {
@@ -895,7 +1218,7 @@ public class BlurDatabaseHelper {
     }
 
     public Cursor getFoldersCursor(CancellationSignal cancellationSignal) {
-        return query(false, DatabaseConstants.FOLDER_TABLE, null, null, null, null, null, null, null, cancellationSignal);
+        return rawQuery(DatabaseConstants.FOLDER_QUERY, null, cancellationSignal);
     }
 
     public Loader<Cursor> getFeedsLoader(final StateFilter stateFilter) {
@@ -919,42 +1242,73 @@ public class BlurDatabaseHelper {
         return c;
     }
 
-    public Loader<Cursor> getActiveStoriesLoader(final FeedSet fs) {
-        final StoryOrder order = PrefsUtils.getStoryOrder(context, fs);
+    /**
+     * Loads the first storyWindow stories of the reading session for the given FeedSet. Callers
+     * can tell there may be more local stories to show when they get a full window back.
+     *
+     * @param base the cursor currently shown for this FeedSet, if the load is only to see further
+     *        into the session. Its pages are reused and only the rest are fetched. Pass null
+     *        whenever the session or the stories in it may have changed.
+     */
+    public Loader<Cursor> getActiveStoriesLoader(final FeedSet fs, final int storyWindow, final Cursor base) {
         return new QueryCursorLoader(context) {
             protected Cursor createCursor() {
-                return getActiveStoriesCursor(fs, order, cancellationSignal);
+                return getActiveStoriesCursor(fs, storyWindow, base, cancellationSignal);
             }
         };
     }
 
-    private Cursor getActiveStoriesCursor(FeedSet fs, StoryOrder order, CancellationSignal cancellationSignal) {
+    private Cursor getActiveStoriesCursor(FeedSet fs, int storyWindow, Cursor base, CancellationSignal cancellationSignal) {
         // get the stories for this FS
-        Cursor result = getActiveStoriesCursorNoPrep(fs, order, cancellationSignal);
+        Cursor result = getActiveStoriesCursorNoPrep(fs, storyWindow, base, cancellationSignal);
         // if the result is blank, try to prime the session table with existing stories, in case we
         // are offline, but if a session is started, just use what was there so offsets don't change.
         if (result.getCount() < 1) {
+            result.close();
             if (AppConstants.VERBOSE_LOG) Log.d(this.getClass().getName(), "priming reading session");
             prepareReadingSession(fs);
-            result = getActiveStoriesCursorNoPrep(fs, order, cancellationSignal);
+            result = getActiveStoriesCursorNoPrep(fs, storyWindow, null, cancellationSignal);
         }
         return result;
     }
     
-    private Cursor getActiveStoriesCursorNoPrep(FeedSet fs, StoryOrder order, CancellationSignal cancellationSignal) {
+    private Cursor getActiveStoriesCursorNoPrep(FeedSet fs, int storyWindow, Cursor base, CancellationSignal cancellationSignal) {
         // stories aren't actually queried directly via the FeedSet and filters set in the UI. rather,
         // those filters are use to push live or cached story hashes into the reading session table, and
-        // those hashes are used to pull story data from the story table
-        StringBuilder q = new StringBuilder(DatabaseConstants.STORY_QUERY_BASE);
-        
-        if (fs.isAllRead()) {
-            q.append(" ORDER BY " + DatabaseConstants.READ_STORY_ORDER);
-        } else if (fs.isAllSaved()) {
-            q.append(" ORDER BY " + DatabaseConstants.getSavedStoriesSortOrder(order));
-        } else {
-            q.append(" ORDER BY ").append(DatabaseConstants.getStorySortOrder(order));
+        // those hashes are used to pull story data from the story table. the session keeps each story's
+        // sort key, so the window can be read in display order a page at a time by keyset.
+        boolean descending = DatabaseConstants.isSessionDescending(fs, PrefsUtils.getStoryOrder(context, fs));
+        PagedStoryCursor pagedBase = (base instanceof PagedStoryCursor) ? (PagedStoryCursor) base : null;
+        return PagedStoryCursor.load(dbRO, descending, storyWindow, pagedBase, cancellationSignal);
+    }
+
+    /**
+     * Gets the display position of a story in the reading session for the given FeedSet, or -1 if
+     * it isn't there. Does one indexed query, but should still be done off the UI thread.
+     */
+    public int getSessionPosition(FeedSet fs, String storyHash) {
+        String targetSelection = DatabaseConstants.SESSION_TARGET_HASH + " = ?";
+        return getSessionPosition(fs, targetSelection, new String[]{storyHash});
+    }
+
+    /**
+     * Gets the display position of the first unread story in the reading session for the given
+     * FeedSet, or -1 if there isn't one. Should be done off the UI thread.
+     */
+    public int getFirstUnreadSessionPosition(FeedSet fs) {
+        String targetSelection = DatabaseConstants.STORY_TABLE + "." + DatabaseConstants.STORY_READ + " = 0";
+        return getSessionPosition(fs, targetSelection, null);
+    }
+
+    private int getSessionPosition(FeedSet fs, String targetSelection, String[] selArgs) {
+        boolean descending = DatabaseConstants.isSessionDescending(fs, PrefsUtils.getStoryOrder(context, fs));
+        Cursor c = rawQuery(DatabaseConstants.getSessionPositionQuery(descending, targetSelection), selArgs, null);
+        try {
+            if (!c.moveToFirst()) return -1;
+            return c.getInt(0);
+        } finally {
+            closeQuietly(c);
         }
-        return rawQuery(q.toString(), null, cancellationSignal);
     }
 
     public void clearStorySession() {
@@ -980,20 +1334,20 @@ public class BlurDatabaseHelper {
 
         getLocalStorySelectionAndArgs(sel, selArgs, fs, stateFilter, readFilter);
 
-        // use the inner select statement to push the active hashes into the session table
-        StringBuilder q = new StringBuilder("INSERT INTO " + DatabaseConstants.READING_SESSION_TABLE);
-        q.append(" (" + DatabaseConstants.READING_SESSION_STORY_HASH + ") ");
+        // use the inner select statement to push the active hashes and their sort keys into the session table
+        StringBuilder q = new StringBuilder("INSERT OR IGNORE INTO " + DatabaseConstants.READING_SESSION_TABLE);
+        q.append(" (" + DatabaseConstants.READING_SESSION_STORY_HASH + ", " + DatabaseConstants.READING_SESSION_SORT_KEY + ") ");
         q.append(sel);
 
         synchronized (RW_MUTEX) {dbRW.execSQL(q.toString(), selArgs.toArray(new String[selArgs.size()]));}
     }
 
     /**
-     * Gets hashes of already-fetched stories that satisfy the given FeedSet and filters. Can be used
-     * both to populate a reading session or to count local unreads.
+     * Gets hashes and session sort keys of already-fetched stories that satisfy the given FeedSet
+     * and filters. Can be used both to populate a reading session or to count local unreads.
      */
-    private void getLocalStorySelectionAndArgs(StringBuilder sel, List<String> selArgs, FeedSet fs, StateFilter stateFilter, ReadFilter readFilter) {
-        sel.append("SELECT " + DatabaseConstants.STORY_HASH);
+    static void getLocalStorySelectionAndArgs(StringBuilder sel, List<String> selArgs, FeedSet fs, StateFilter stateFilter, ReadFilter readFilter) {
+        sel.append("SELECT " + DatabaseConstants.STORY_HASH + ", " + DatabaseConstants.getSessionSortColumn(fs));
         if (fs.getSingleFeed() != null) {
 
             sel.append(" FROM " + DatabaseConstants.STORY_TABLE);
@@ -1001,6 +1355,13 @@ public class BlurDatabaseHelper {
             selArgs.add(fs.getSingleFeed());
             DatabaseConstants.appendStorySelection(sel, selArgs, readFilter, stateFilter, fs.getSearchQuery());
 
+        } else if (fs.isFolder()) {
+
+            sel.append(" FROM " + DatabaseConstants.STORY_TABLE);
+            sel.append(" WHERE " + DatabaseConstants.getFolderFeedSelection(DatabaseConstants.STORY_TABLE + "." + DatabaseConstants.STORY_FEED_ID));
+            selArgs.add(fs.getFolderName());
+            DatabaseConstants.appendStorySelection(sel, selArgs, readFilter, stateFilter, fs.getSearchQuery());
+
         } else if (fs.getMultipleFeeds() != null) {
 
             sel.append(" FROM " + DatabaseConstants.STORY_TABLE);
@@ -1019,7 +1380,9 @@ public class BlurDatabaseHelper {
         } else if (fs.isAllNormal()) {
 
             sel.append(" FROM " + DatabaseConstants.STORY_TABLE);
-            sel.append(" WHERE 1");
+            // stories from any feed we know of. the only stories this skips are ones that couldn't be
+            // shown anyway, and it lets the feed index drive the selection rather than a table scan
+            sel.append(" WHERE " + DatabaseConstants.STORY_TABLE + "." + DatabaseConstants.STORY_FEED_ID + " IN (SELECT " + DatabaseConstants.FEED_ID + " FROM " + DatabaseConstants.FEED_TABLE + ")");
             DatabaseConstants.appendStorySelection(sel, selArgs, readFilter, stateFilter, fs.getSearchQuery());
 
         } else if (fs.isAllSocial()) {
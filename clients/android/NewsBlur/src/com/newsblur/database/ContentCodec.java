@@ -0,0 +1,69 @@
+package com.newsblur.database;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression for the story bodies and original text kept in the content store. Story HTML
+ * is very repetitive and typically deflates to a quarter of its size or better.
+ *
+ * Instances hold a native compressor and are not thread-safe; use one per writer and call
+ * release() when done. Decompression is a static one-off, since content is read one story
+ * at a time.
+ */
+class ContentCodec {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+
+    byte[] compress(String s) {
+        if (s == null) return null;
+        deflater.reset();
+        deflater.setInput(s.getBytes(UTF8));
+        deflater.finish();
+        out.reset();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    void release() {
+        deflater.end();
+    }
+
+    static String decompress(byte[] b) {
+        if (b == null) return null;
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(b);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(b.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if ((n == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+                    Log.w(ContentCodec.class.getName(), "truncated story content in DB");
+                    break;
+                }
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), UTF8);
+        } catch (DataFormatException dfe) {
+            Log.e(ContentCodec.class.getName(), "corrupt story content in DB", dfe);
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.newsblur.database;
 
 import java.util.List;
+import java.util.Map;
 
 import android.database.Cursor;
 import android.text.TextUtils;
@@ -9,6 +10,7 @@ import android.provider.BaseColumns;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
+import com.newsblur.util.FeedSet;
 import com.newsblur.util.ReadFilter;
 import com.newsblur.util.StateFilter;
 import com.newsblur.util.StoryOrder;
@@ -23,6 +25,12 @@ public class DatabaseConstants {
 	public static final String FOLDER_PARENT_NAMES = "folder_parent_names";
 	public static final String FOLDER_CHILDREN_NAMES = "folder_children_names";
 	public static final String FOLDER_FEED_IDS = "folder_feedids";
+    // not stored, but computed from the membership table by FOLDER_QUERY
+    public static final String FOLDER_ALL_FEED_IDS = "folder_all_feedids";
+
+    public static final String FOLDER_FEEDS_TABLE = "folder_feeds";
+    public static final String FOLDER_FEEDS_FOLDER_NAME = "folder_name";
+    public static final String FOLDER_FEEDS_FEED_ID = "feed_id";
 
 	public static final String FEED_TABLE = "feeds";
 	public static final String FEED_ID = BaseColumns._ID;
@@ -72,7 +80,6 @@ public class DatabaseConstants {
 	public static final String STORY_TITLE = "title";
 	public static final String STORY_TIMESTAMP = "timestamp";
 	public static final String STORY_SHARED_DATE = "sharedDate";
-    public static final String STORY_CONTENT = "content";
     public static final String STORY_SHORT_CONTENT = "short_content";
 	public static final String STORY_FEED_ID = "feed_id";
 	public static final String STORY_INTELLIGENCE_AUTHORS = "intelligence_authors";
@@ -91,16 +98,44 @@ public class DatabaseConstants {
 	public static final String STORY_TAGS = "tags";
 	public static final String STORY_USER_TAGS = "user_tags";
     public static final String STORY_HASH = "story_hash";
+    // an explicit alias for the rowid, so that VACUUM can't renumber stories out from under the search index
+    public static final String STORY_ROW_ID = "story_row_id";
+    // image URLs now live in the story_images table. this column is only read to migrate old DBs
     public static final String STORY_IMAGE_URLS = "image_urls";
     public static final String STORY_LAST_READ_DATE = "last_read_date";
     public static final String STORY_SEARCH_HIT = "search_hit";
 
     public static final String READING_SESSION_TABLE = "reading_session";
     public static final String READING_SESSION_STORY_HASH = "session_story_hash";
-
+    public static final String READING_SESSION_POSITION = "session_position";
+    public static final String READING_SESSION_SORT_KEY = "session_sort_key";
+
+    // story bodies and original text are kept out of the story table, and compressed
+    public static final String STORY_CONTENT_TABLE = "story_content";
+    public static final String STORY_CONTENT_STORY_HASH = "story_hash";
+    public static final String STORY_CONTENT_CONTENT = "content";
+    public static final String STORY_CONTENT_TEXT = "story_text";
+    // worked out when each of the above is stored, so the reading view doesn't re-scan the HTML
+    public static final String STORY_CONTENT_CONTENT_ALT_TEXTS = "content_alt_texts";
+    public static final String STORY_CONTENT_CONTENT_HASH = "content_hash";
+    public static final String STORY_CONTENT_TEXT_ALT_TEXTS = "text_alt_texts";
+    public static final String STORY_CONTENT_TEXT_HASH = "text_hash";
+
+    // a full-text index of stored stories, for offline search. rows are keyed by the row ID of the
+    // matching story row, which lets the index follow stories via triggers
+    public static final String STORY_SEARCH_TABLE = "story_search";
+    public static final String STORY_SEARCH_TITLE = "title";
+    public static final String STORY_SEARCH_AUTHORS = "authors";
+    public static final String STORY_SEARCH_TAGS = "tags";
+    public static final String STORY_SEARCH_CONTENT = "content";
+
+    // the images in each story, so image prefetch and cleanup can look up URLs by index
+    public static final String STORY_IMAGES_TABLE = "story_images";
+    public static final String STORY_IMAGES_STORY_HASH = "story_hash";
+    public static final String STORY_IMAGES_URL = "image_url";
+
+    // the old, uncompressed home of original text. no longer used, but dropped on wipe
     public static final String STORY_TEXT_TABLE = "storytext";
-    public static final String STORY_TEXT_STORY_HASH = "story_hash";
-    public static final String STORY_TEXT_STORY_TEXT = "story_text";
 
 	public static final String COMMENT_TABLE = "comments";
 	public static final String COMMENT_ID = BaseColumns._ID;
@@ -148,6 +183,14 @@ public class DatabaseConstants {
     public static final String STARREDCOUNTS_TAG = "tag";
     public static final String STARREDCOUNTS_FEEDID = "feed_id";
 
+    public static final String LOCAL_COUNTS_TABLE = "local_counts";
+    public static final String LOCAL_COUNTS_FEED_ID = "feed_id";
+    public static final String LOCAL_SOCIAL_COUNTS_TABLE = "local_social_counts";
+    public static final String LOCAL_SOCIAL_COUNTS_USER_ID = "user_id";
+    public static final String LOCAL_COUNTS_NEG = "neg_count";
+    public static final String LOCAL_COUNTS_NEUT = "neut_count";
+    public static final String LOCAL_COUNTS_POS = "pos_count";
+
 	static final String FOLDER_SQL = "CREATE TABLE " + FOLDER_TABLE + " (" +
 		FOLDER_NAME + TEXT + " PRIMARY KEY, " +  
         FOLDER_PARENT_NAMES + TEXT + ", " +
@@ -155,6 +198,21 @@ public class DatabaseConstants {
         FOLDER_FEED_IDS + TEXT +
 		")";
 
+    // every feed under each folder at any depth, so that a folder resolves to its feeds with one
+    // indexed lookup rather than a walk of the tree. rebuilt whenever the folders table changes.
+    static final String FOLDER_FEEDS_SQL = "CREATE TABLE " + FOLDER_FEEDS_TABLE + " (" +
+        FOLDER_FEEDS_FOLDER_NAME + TEXT + ", " +
+        FOLDER_FEEDS_FEED_ID + INTEGER + ", " +
+        "PRIMARY KEY (" + FOLDER_FEEDS_FOLDER_NAME + ", " + FOLDER_FEEDS_FEED_ID + ")" +
+        ")";
+
+    // the folders table, plus a comma-separated list of all feeds under each folder
+    static final String FOLDER_QUERY = "SELECT " + FOLDER_TABLE + ".*, " +
+        "(SELECT GROUP_CONCAT(" + FOLDER_FEEDS_FEED_ID + ") FROM " + FOLDER_FEEDS_TABLE +
+        " WHERE " + FOLDER_FEEDS_TABLE + "." + FOLDER_FEEDS_FOLDER_NAME + " = " + FOLDER_TABLE + "." + FOLDER_NAME + ")" +
+        " AS " + FOLDER_ALL_FEED_IDS +
+        " FROM " + FOLDER_TABLE;
+
 	static final String FEED_SQL = "CREATE TABLE " + FEED_TABLE + " (" +
 		FEED_ID + INTEGER + " PRIMARY KEY, " +
 		FEED_ACTIVE + TEXT + ", " +
@@ -213,9 +271,9 @@ public class DatabaseConstants {
 		")";
 	
 	static final String STORY_SQL = "CREATE TABLE " + STORY_TABLE + " (" + 
-		STORY_HASH + TEXT + " PRIMARY KEY, " +
+        STORY_ROW_ID + INTEGER + " PRIMARY KEY, " +
+		STORY_HASH + TEXT + " UNIQUE, " +
 		STORY_AUTHORS + TEXT + ", " +
-		STORY_CONTENT + TEXT + ", " +
 		STORY_SHORT_CONTENT + TEXT + ", " +
 		STORY_TIMESTAMP + INTEGER + ", " +
 		STORY_SHARED_DATE + INTEGER + ", " +
@@ -237,20 +295,92 @@ public class DatabaseConstants {
 		STORY_STARRED + INTEGER + ", " +
 		STORY_STARRED_DATE + INTEGER + ", " +
 		STORY_TITLE + TEXT + ", " +
-        STORY_IMAGE_URLS + TEXT + ", " +
         STORY_LAST_READ_DATE + INTEGER + ", " +
         STORY_SEARCH_HIT + TEXT +
         ")";
 
+    // indices for the story table, built around the access paths of the selections made by
+    // BlurDatabaseHelper.getLocalStorySelectionAndArgs() and the cleanup and recount queries.
+    // StoryQueryPlanTest verifies that they actually get used.
+    static final String[] STORY_INDEX_SQL = {
+        // single feed, folder and unread count selections, which filter on feed, then read state, then intel
+        "CREATE INDEX IF NOT EXISTS " + STORY_TABLE + "_feed_idx ON " + STORY_TABLE + " (" +
+            STORY_FEED_ID + ", " + STORY_READ + ", " + STORY_INTELLIGENCE_TOTAL + ", " + STORY_TIMESTAMP + ")",
+        // all-stories selections and read story cleanup
+        "CREATE INDEX IF NOT EXISTS " + STORY_TABLE + "_read_idx ON " + STORY_TABLE + " (" +
+            STORY_READ + ", " + STORY_INTELLIGENCE_TOTAL + ", " + STORY_TIMESTAMP + ")",
+        // saved stories and saved tags
+        "CREATE INDEX IF NOT EXISTS " + STORY_TABLE + "_starred_idx ON " + STORY_TABLE + " (" +
+            STORY_STARRED + ", " + STORY_STARRED_DATE + ")",
+        // the read stories view
+        "CREATE INDEX IF NOT EXISTS " + STORY_TABLE + "_last_read_idx ON " + STORY_TABLE + " (" +
+            STORY_LAST_READ_DATE + ")",
+        // old story cleanup
+        "CREATE INDEX IF NOT EXISTS " + STORY_TABLE + "_timestamp_idx ON " + STORY_TABLE + " (" +
+            STORY_TIMESTAMP + ")",
+        // search results across all feeds
+        "CREATE INDEX IF NOT EXISTS " + STORY_TABLE + "_search_idx ON " + STORY_TABLE + " (" +
+            STORY_SEARCH_HIT + ")",
+        // joins from the social feed map, which go by story ID rather than hash
+        "CREATE INDEX IF NOT EXISTS " + STORY_TABLE + "_id_idx ON " + STORY_TABLE + " (" +
+            STORY_ID + ")",
+        // single social feed selections
+        "CREATE INDEX IF NOT EXISTS " + SOCIALFEED_STORY_MAP_TABLE + "_user_idx ON " + SOCIALFEED_STORY_MAP_TABLE + " (" +
+            SOCIALFEED_STORY_USER_ID + ", " + SOCIALFEED_STORY_STORYID + ")",
+    };
+
+    // the session keeps each story's sort key for the active FeedSet (see getSessionSortColumn()),
+    // so story lists can walk it in display order by keyset instead of sorting on every load.
+    // positions are handed out as hashes join the session and are never renumbered.
     static final String READING_SESSION_SQL = "CREATE TABLE " + READING_SESSION_TABLE + " (" +
-        READING_SESSION_STORY_HASH + TEXT +
+        READING_SESSION_POSITION + INTEGER + " PRIMARY KEY, " +
+        READING_SESSION_STORY_HASH + TEXT + " UNIQUE, " +
+        READING_SESSION_SORT_KEY + INTEGER +
+        ")";
+
+    static final String READING_SESSION_INDEX_SQL = "CREATE INDEX IF NOT EXISTS " + READING_SESSION_TABLE + "_sort_idx ON " +
+        READING_SESSION_TABLE + " (" + READING_SESSION_SORT_KEY + ", " + READING_SESSION_STORY_HASH + ")";
+
+    static final String STORY_CONTENT_SQL = "CREATE TABLE " + STORY_CONTENT_TABLE + " (" +
+        STORY_CONTENT_STORY_HASH + TEXT + " PRIMARY KEY, " +
+        STORY_CONTENT_CONTENT + " BLOB, " +
+        STORY_CONTENT_CONTENT_ALT_TEXTS + TEXT + ", " +
+        STORY_CONTENT_CONTENT_HASH + INTEGER + ", " +
+        STORY_CONTENT_TEXT + " BLOB, " +
+        STORY_CONTENT_TEXT_ALT_TEXTS + TEXT + ", " +
+        STORY_CONTENT_TEXT_HASH + INTEGER +
+        ")";
+
+    static final String STORY_IMAGES_SQL = "CREATE TABLE " + STORY_IMAGES_TABLE + " (" +
+        STORY_IMAGES_STORY_HASH + TEXT + ", " +
+        STORY_IMAGES_URL + TEXT + ", " +
+        "PRIMARY KEY (" + STORY_IMAGES_STORY_HASH + ", " + STORY_IMAGES_URL + ")" +
         ")";
 
-    static final String STORY_TEXT_SQL = "CREATE TABLE " + STORY_TEXT_TABLE + " (" +
-        STORY_TEXT_STORY_HASH + TEXT + ", " +
-        STORY_TEXT_STORY_TEXT + TEXT +
+    // prefetch asks which of a handful of URLs are still wanted, so images are also looked up by URL
+    static final String STORY_IMAGES_INDEX_SQL = "CREATE INDEX IF NOT EXISTS " + STORY_IMAGES_TABLE + "_url_idx ON " +
+        STORY_IMAGES_TABLE + " (" + STORY_IMAGES_URL + ")";
+
+    // image rows are written by StoryIngester along with their story, and go away with it
+    static final String[] STORY_IMAGES_TRIGGER_SQL = {
+        "CREATE TRIGGER IF NOT EXISTS " + STORY_TABLE + "_images_delete AFTER DELETE ON " + STORY_TABLE +
+        " BEGIN DELETE FROM " + STORY_IMAGES_TABLE + " WHERE " + STORY_IMAGES_STORY_HASH + " = old." + STORY_HASH + "; END",
+    };
+
+    static final String STORY_SEARCH_SQL = "CREATE VIRTUAL TABLE " + STORY_SEARCH_TABLE + " USING fts4 (" +
+        STORY_SEARCH_TITLE + ", " +
+        STORY_SEARCH_AUTHORS + ", " +
+        STORY_SEARCH_TAGS + ", " +
+        STORY_SEARCH_CONTENT +
         ")";
 
+    // stories are indexed by StoryIngester as they are written, but any way a story row goes
+    // away (cleanup, or being REPLACEd with a new row ID) takes its index entry with it
+    static final String[] STORY_SEARCH_TRIGGER_SQL = {
+        "CREATE TRIGGER IF NOT EXISTS " + STORY_TABLE + "_search_delete AFTER DELETE ON " + STORY_TABLE +
+        " BEGIN DELETE FROM " + STORY_SEARCH_TABLE + " WHERE docid = old." + STORY_ROW_ID + "; END",
+    };
+
 	static final String CLASSIFIER_SQL = "CREATE TABLE " + CLASSIFIER_TABLE + " (" +
 		CLASSIFIER_ID + TEXT + ", " +
 		CLASSIFIER_KEY + TEXT + ", " + 
@@ -292,6 +422,127 @@ public class DatabaseConstants {
 	    STARREDCOUNTS_FEEDID + TEXT +
         ")";
 
+    static final String LOCAL_COUNTS_SQL = "CREATE TABLE " + LOCAL_COUNTS_TABLE + " (" +
+        LOCAL_COUNTS_FEED_ID + INTEGER + " PRIMARY KEY, " +
+        LOCAL_COUNTS_NEG + INTEGER + " NOT NULL DEFAULT 0, " +
+        LOCAL_COUNTS_NEUT + INTEGER + " NOT NULL DEFAULT 0, " +
+        LOCAL_COUNTS_POS + INTEGER + " NOT NULL DEFAULT 0" +
+        ")";
+
+    static final String LOCAL_SOCIAL_COUNTS_SQL = "CREATE TABLE " + LOCAL_SOCIAL_COUNTS_TABLE + " (" +
+        LOCAL_SOCIAL_COUNTS_USER_ID + INTEGER + " PRIMARY KEY, " +
+        LOCAL_COUNTS_NEG + INTEGER + " NOT NULL DEFAULT 0, " +
+        LOCAL_COUNTS_NEUT + INTEGER + " NOT NULL DEFAULT 0, " +
+        LOCAL_COUNTS_POS + INTEGER + " NOT NULL DEFAULT 0" +
+        ")";
+
+    // the local unread counts tables are kept up to date by these triggers on the stories and
+    // social story map tables, so the DB always knows how many unread stories of each intel
+    // bucket it has for each feed without scanning stories.  note that stories are usually
+    // written with INSERT OR REPLACE, which only fires the delete triggers for the replaced
+    // row with recursive_triggers enabled; BlurDatabase.onOpen() makes sure that it is.
+    static final String[] LOCAL_COUNTS_TRIGGER_SQL = {
+        "CREATE TRIGGER IF NOT EXISTS " + STORY_TABLE + "_count_insert AFTER INSERT ON " + STORY_TABLE + " BEGIN " +
+            ensureLocalCountsRows("NEW") +
+            adjustLocalCounts("NEW", "+") +
+            "END",
+        "CREATE TRIGGER IF NOT EXISTS " + STORY_TABLE + "_count_delete AFTER DELETE ON " + STORY_TABLE + " BEGIN " +
+            adjustLocalCounts("OLD", "-") +
+            "END",
+        "CREATE TRIGGER IF NOT EXISTS " + STORY_TABLE + "_count_update AFTER UPDATE OF " +
+            STORY_READ + ", " + STORY_INTELLIGENCE_TOTAL + ", " + STORY_FEED_ID + ", " + STORY_ID + " ON " + STORY_TABLE + " BEGIN " +
+            adjustLocalCounts("OLD", "-") +
+            ensureLocalCountsRows("NEW") +
+            adjustLocalCounts("NEW", "+") +
+            "END",
+        "CREATE TRIGGER IF NOT EXISTS " + SOCIALFEED_STORY_MAP_TABLE + "_count_insert AFTER INSERT ON " + SOCIALFEED_STORY_MAP_TABLE + " BEGIN " +
+            ensureLocalSocialCountsRow("NEW") +
+            adjustLocalSocialCountsForMapping("NEW", "+") +
+            "END",
+        "CREATE TRIGGER IF NOT EXISTS " + SOCIALFEED_STORY_MAP_TABLE + "_count_delete AFTER DELETE ON " + SOCIALFEED_STORY_MAP_TABLE + " BEGIN " +
+            adjustLocalSocialCountsForMapping("OLD", "-") +
+            "END",
+    };
+
+    // rebuilds the local unread counts from scratch, for use when the triggers weren't yet in place
+    static final String[] LOCAL_COUNTS_REBUILD_SQL = {
+        "DELETE FROM " + LOCAL_COUNTS_TABLE,
+        "INSERT INTO " + LOCAL_COUNTS_TABLE + " SELECT " + STORY_TABLE + "." + STORY_FEED_ID + ", " +
+            "SUM(" + unreadInBucket(STORY_TABLE, "<") + "), SUM(" + unreadInBucket(STORY_TABLE, "=") + "), SUM(" + unreadInBucket(STORY_TABLE, ">") + ")" +
+            " FROM " + STORY_TABLE + " GROUP BY " + STORY_TABLE + "." + STORY_FEED_ID,
+        "DELETE FROM " + LOCAL_SOCIAL_COUNTS_TABLE,
+        "INSERT INTO " + LOCAL_SOCIAL_COUNTS_TABLE + " SELECT " + SOCIALFEED_STORY_MAP_TABLE + "." + SOCIALFEED_STORY_USER_ID + ", " +
+            "SUM(" + unreadInBucket(STORY_TABLE, "<") + "), SUM(" + unreadInBucket(STORY_TABLE, "=") + "), SUM(" + unreadInBucket(STORY_TABLE, ">") + ")" +
+            " FROM " + SOCIALFEED_STORY_MAP_TABLE + DatabaseConstants.JOIN_STORIES_ON_SOCIALFEED_MAP +
+            " GROUP BY " + SOCIALFEED_STORY_MAP_TABLE + "." + SOCIALFEED_STORY_USER_ID,
+    };
+
+    /**
+     * An expression that is 1 if the referenced story row is unread and in the intel bucket
+     * given by comparing its total to zero with op, else 0.
+     */
+    private static String unreadInBucket(String row, String op) {
+        return "(IFNULL(" + row + "." + STORY_READ + " = 0, 0) * IFNULL(" + row + "." + STORY_INTELLIGENCE_TOTAL + " " + op + " 0, 0))";
+    }
+
+    private static String setLocalCounts(String row, String sign) {
+        return " SET " + LOCAL_COUNTS_NEG + " = " + LOCAL_COUNTS_NEG + " " + sign + " " + unreadInBucket(row, "<") + ", " +
+                         LOCAL_COUNTS_NEUT + " = " + LOCAL_COUNTS_NEUT + " " + sign + " " + unreadInBucket(row, "=") + ", " +
+                         LOCAL_COUNTS_POS + " = " + LOCAL_COUNTS_POS + " " + sign + " " + unreadInBucket(row, ">");
+    }
+
+    private static String socialUsersForStory(String row) {
+        return "SELECT " + SOCIALFEED_STORY_USER_ID + " FROM " + SOCIALFEED_STORY_MAP_TABLE + " WHERE " + SOCIALFEED_STORY_STORYID + " = " + row + "." + STORY_ID;
+    }
+
+    // note that these can't just use INSERT OR IGNORE, since the conflict policy of the statement
+    // that fired a trigger overrides any in the trigger, and stories are inserted OR REPLACE.
+    private static String ensureLocalCountsRows(String row) {
+        return "INSERT INTO " + LOCAL_COUNTS_TABLE + " (" + LOCAL_COUNTS_FEED_ID + ") SELECT " + row + "." + STORY_FEED_ID +
+               " WHERE NOT EXISTS (SELECT 1 FROM " + LOCAL_COUNTS_TABLE + " WHERE " + LOCAL_COUNTS_FEED_ID + " = " + row + "." + STORY_FEED_ID + "); " +
+               "INSERT INTO " + LOCAL_SOCIAL_COUNTS_TABLE + " (" + LOCAL_SOCIAL_COUNTS_USER_ID + ") " + socialUsersForStory(row) +
+               " AND " + SOCIALFEED_STORY_USER_ID + " NOT IN (SELECT " + LOCAL_SOCIAL_COUNTS_USER_ID + " FROM " + LOCAL_SOCIAL_COUNTS_TABLE + "); ";
+    }
+
+    private static String ensureLocalSocialCountsRow(String row) {
+        return "INSERT INTO " + LOCAL_SOCIAL_COUNTS_TABLE + " (" + LOCAL_SOCIAL_COUNTS_USER_ID + ") SELECT " + row + "." + SOCIALFEED_STORY_USER_ID +
+               " WHERE NOT EXISTS (SELECT 1 FROM " + LOCAL_SOCIAL_COUNTS_TABLE + " WHERE " + LOCAL_SOCIAL_COUNTS_USER_ID + " = " + row + "." + SOCIALFEED_STORY_USER_ID + "); ";
+    }
+
+    private static String adjustLocalCounts(String row, String sign) {
+        return "UPDATE " + LOCAL_COUNTS_TABLE + setLocalCounts(row, sign) + " WHERE " + LOCAL_COUNTS_FEED_ID + " = " + row + "." + STORY_FEED_ID + "; " +
+               "UPDATE " + LOCAL_SOCIAL_COUNTS_TABLE + setLocalCounts(row, sign) + " WHERE " + LOCAL_SOCIAL_COUNTS_USER_ID + " IN (" + socialUsersForStory(row) + "); ";
+    }
+
+    private static String adjustLocalSocialCountsForMapping(String row, String sign) {
+        String storyMatch = " FROM " + STORY_TABLE + " WHERE " + STORY_TABLE + "." + STORY_ID + " = " + row + "." + SOCIALFEED_STORY_STORYID + ")";
+        return "UPDATE " + LOCAL_SOCIAL_COUNTS_TABLE + " SET " +
+               LOCAL_COUNTS_NEG + " = " + LOCAL_COUNTS_NEG + " " + sign + " (SELECT IFNULL(SUM(" + unreadInBucket(STORY_TABLE, "<") + "), 0)" + storyMatch + ", " +
+               LOCAL_COUNTS_NEUT + " = " + LOCAL_COUNTS_NEUT + " " + sign + " (SELECT IFNULL(SUM(" + unreadInBucket(STORY_TABLE, "=") + "), 0)" + storyMatch + ", " +
+               LOCAL_COUNTS_POS + " = " + LOCAL_COUNTS_POS + " " + sign + " (SELECT IFNULL(SUM(" + unreadInBucket(STORY_TABLE, ">") + "), 0)" + storyMatch +
+               " WHERE " + LOCAL_SOCIAL_COUNTS_USER_ID + " = " + row + "." + SOCIALFEED_STORY_USER_ID + "; ";
+    }
+
+    /**
+     * The expression over the local counts columns that totals the given state filter.
+     */
+    public static String getLocalCountsSumForState(StateFilter state) {
+        switch (state) {
+        case ALL:
+            return LOCAL_COUNTS_NEG + " + " + LOCAL_COUNTS_NEUT + " + " + LOCAL_COUNTS_POS;
+        case SOME:
+            return LOCAL_COUNTS_NEUT + " + " + LOCAL_COUNTS_POS;
+        case NEUT:
+            return LOCAL_COUNTS_NEUT;
+        case BEST:
+            return LOCAL_COUNTS_POS;
+        case NEG:
+            return LOCAL_COUNTS_NEG;
+        default:
+            return LOCAL_COUNTS_NEUT + " + " + LOCAL_COUNTS_POS;
+        }
+    }
+
 	public static final String[] FEED_COLUMNS = {
 		FEED_TABLE + "." + FEED_ACTIVE, FEED_TABLE + "." + FEED_ID, FEED_TABLE + "." + FEED_FAVICON_URL, FEED_TABLE + "." + FEED_TITLE, FEED_TABLE + "." + FEED_LINK, FEED_TABLE + "." + FEED_ADDRESS, FEED_TABLE + "." + FEED_SUBSCRIBERS, FEED_TABLE + "." + FEED_UPDATED_SECONDS, FEED_TABLE + "." + FEED_FAVICON_FADE, FEED_TABLE + "." + FEED_FAVICON_COLOR, FEED_TABLE + "." + FEED_FAVICON_BORDER, FEED_TABLE + "." + FEED_FAVICON_TEXT,
 		FEED_TABLE + "." + FEED_POSITIVE_COUNT, FEED_TABLE + "." + FEED_NEUTRAL_COUNT, FEED_TABLE + "." + FEED_NEGATIVE_COUNT,
@@ -314,21 +565,72 @@ public class DatabaseConstants {
         TextUtils.join(",", BASE_STORY_COLUMNS) + ", " + 
         FEED_TITLE + ", " + FEED_FAVICON_URL + ", " + FEED_FAVICON_COLOR + ", " + FEED_FAVICON_BORDER + ", " + FEED_FAVICON_FADE + ", " + FEED_FAVICON_TEXT;
 
-    public static final String STORY_QUERY_BASE = 
-        "SELECT " +
-        STORY_COLUMNS +
-        " FROM " + STORY_TABLE +
+    private static final String STORY_QUERY_FROM =
+        " FROM " + READING_SESSION_TABLE +
+        " INNER JOIN " + STORY_TABLE +
+        " ON " + STORY_TABLE + "." + STORY_HASH + " = " + READING_SESSION_TABLE + "." + READING_SESSION_STORY_HASH +
         " INNER JOIN " + FEED_TABLE + 
-        " ON " + STORY_TABLE + "." + STORY_FEED_ID + " = " + FEED_TABLE + "." + FEED_ID +
-        " WHERE " + STORY_HASH + " IN (" +
-        " SELECT DISTINCT " + READING_SESSION_STORY_HASH +
-        " FROM " + READING_SESSION_TABLE + ")" + 
-        " GROUP BY " + STORY_HASH;
+        " ON " + STORY_TABLE + "." + STORY_FEED_ID + " = " + FEED_TABLE + "." + FEED_ID;
+
+    /**
+     * Selects one page of session stories in display order. The first page takes no args, and
+     * each later page starts after the row whose sort key and story hash are given as the two
+     * args, so every page is a range walk of the session sort index no matter how deep it is.
+     */
+    public static String getStoryPageQuery(boolean descending, boolean afterKey, int pageSize) {
+        StringBuilder q = new StringBuilder();
+        q.append("SELECT " + STORY_COLUMNS + ", " + READING_SESSION_TABLE + "." + READING_SESSION_SORT_KEY);
+        q.append(STORY_QUERY_FROM);
+        if (afterKey) {
+            // written as a range on the key alone plus a filter, since the planner can't use the
+            // index for an OR of the two halves
+            String cmp = descending ? "<" : ">";
+            q.append(" WHERE " + READING_SESSION_TABLE + "." + READING_SESSION_SORT_KEY + " " + cmp + "= ?1");
+            q.append(" AND (" + READING_SESSION_TABLE + "." + READING_SESSION_SORT_KEY + " " + cmp + " ?1");
+            q.append(" OR " + READING_SESSION_TABLE + "." + READING_SESSION_STORY_HASH + " " + cmp + " ?2)");
+        }
+        q.append(" ORDER BY ").append(getSessionSortOrder(descending));
+        q.append(" LIMIT ").append(pageSize);
+        return q.toString();
+    }
+
+    // the alias of the session row being located by getSessionPositionQuery()
+    private static final String SESSION_TARGET = "target";
+    public static final String SESSION_TARGET_HASH = SESSION_TARGET + "." + READING_SESSION_STORY_HASH;
+
+    /**
+     * Finds the display position of the first session story matching the given selection on the
+     * target session row or its story, or no rows if there isn't one. The position is a count of
+     * the rows ahead of the target, which the sort index can answer as a range walk.
+     */
+    public static String getSessionPositionQuery(boolean descending, String targetSelection) {
+        String cmp = descending ? ">" : "<";
+        String direction = descending ? " DESC" : " ASC";
+        StringBuilder q = new StringBuilder();
+        q.append("SELECT (SELECT COUNT(*)").append(STORY_QUERY_FROM);
+        q.append(" WHERE " + READING_SESSION_TABLE + "." + READING_SESSION_SORT_KEY + " " + cmp + "= " + SESSION_TARGET + "." + READING_SESSION_SORT_KEY);
+        q.append(" AND (" + READING_SESSION_TABLE + "." + READING_SESSION_SORT_KEY + " " + cmp + " " + SESSION_TARGET + "." + READING_SESSION_SORT_KEY);
+        q.append(" OR " + READING_SESSION_TABLE + "." + READING_SESSION_STORY_HASH + " " + cmp + " " + SESSION_TARGET + "." + READING_SESSION_STORY_HASH + "))");
+        // the target has to survive the same joins as the rows being counted, or it wouldn't be displayed
+        q.append(" FROM " + READING_SESSION_TABLE + " AS " + SESSION_TARGET);
+        q.append(" INNER JOIN " + STORY_TABLE + " ON " + STORY_TABLE + "." + STORY_HASH + " = " + SESSION_TARGET + "." + READING_SESSION_STORY_HASH);
+        q.append(" INNER JOIN " + FEED_TABLE + " ON " + STORY_TABLE + "." + STORY_FEED_ID + " = " + FEED_TABLE + "." + FEED_ID);
+        q.append(" WHERE ").append(targetSelection);
+        q.append(" ORDER BY " + SESSION_TARGET + "." + READING_SESSION_SORT_KEY + direction + ", " + SESSION_TARGET + "." + READING_SESSION_STORY_HASH + direction);
+        q.append(" LIMIT 1");
+        return q.toString();
+    }
 
     public static final String JOIN_STORIES_ON_SOCIALFEED_MAP = 
         " INNER JOIN " + STORY_TABLE + " ON " + STORY_TABLE + "." + STORY_ID + " = " + SOCIALFEED_STORY_MAP_TABLE + "." + SOCIALFEED_STORY_STORYID;
 
-    public static final String READ_STORY_ORDER = STORY_LAST_READ_DATE + " DESC";
+    /**
+     * A selection on the given feed ID column matching all feeds under a folder, to be bound with
+     * the folder name.
+     */
+    public static String getFolderFeedSelection(String feedIdColumn) {
+        return feedIdColumn + " IN (SELECT " + FOLDER_FEEDS_FEED_ID + " FROM " + FOLDER_FEEDS_TABLE + " WHERE " + FOLDER_FEEDS_FOLDER_NAME + " = ?)";
+    }
 
     /**
      * Appends to the given story query any and all selection statements that are required to satisfy the specified
@@ -345,11 +647,39 @@ public class DatabaseConstants {
         }
 
         if (requireQueryHit != null) {
-            q.append(" AND (" + STORY_TABLE + "." + STORY_SEARCH_HIT + " = ?)");
-            selArgs.add(requireQueryHit);
+            // stories the API found for this query, plus anything the local index can find
+            String match = toMatchExpression(requireQueryHit);
+            if (match == null) {
+                q.append(" AND (" + STORY_TABLE + "." + STORY_SEARCH_HIT + " = ?)");
+                selArgs.add(requireQueryHit);
+            } else {
+                // written as a union of row IDs rather than an OR, so that neither half needs a scan
+                q.append(" AND (" + STORY_TABLE + "." + STORY_ROW_ID + " IN (");
+                q.append("SELECT " + STORY_ROW_ID + " FROM " + STORY_TABLE + " WHERE " + STORY_SEARCH_HIT + " = ?");
+                q.append(" UNION SELECT docid FROM " + STORY_SEARCH_TABLE + " WHERE " + STORY_SEARCH_TABLE + " MATCH ?))");
+                selArgs.add(requireQueryHit);
+                selArgs.add(match);
+            }
         }
     }
 
+    /**
+     * Turns a user-entered search into a full-text MATCH expression that finds stories with
+     * all of the words in the query, allowing for prefixes. Returns null if nothing in the
+     * query is searchable. The query syntax of the index is not exposed, since a stray quote
+     * or operator would be a syntax error rather than a failed search.
+     */
+    public static String toMatchExpression(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String word : query.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() < 1) continue;
+            if (match.length() > 0) match.append(" ");
+            match.append(word).append("*");
+        }
+        if (match.length() < 1) return null;
+        return match.toString();
+    }
+
     /**
      * Selection args to filter stories.
      */
@@ -402,23 +732,34 @@ public class DatabaseConstants {
         }
     }
 
-    public static String getStorySortOrder(StoryOrder storyOrder) {
-        // it is not uncommon for a feed to have multiple stories with exactly the same timestamp. we
-        // arbitrarily pick a second sort column so sortation is stable.
-        if (storyOrder == StoryOrder.NEWEST) {
-            return STORY_TIMESTAMP + " DESC, " + STORY_HASH + " DESC";
+    /**
+     * The story column that orders the reading session for a FeedSet.
+     */
+    public static String getSessionSortColumn(FeedSet fs) {
+        if (fs.isAllRead()) {
+            return STORY_LAST_READ_DATE;
+        } else if (fs.isAllSaved()) {
+            return STORY_STARRED_DATE;
         } else {
-            return STORY_TIMESTAMP + " ASC, " + STORY_HASH + " ASC";
+            return STORY_TIMESTAMP;
         }
     }
 
-    public static String getSavedStoriesSortOrder(StoryOrder storyOrder) {
-        // "newest" in this context means "most recently saved"
-        if (storyOrder == StoryOrder.NEWEST) {
-            return STORY_STARRED_DATE + " DESC";
-        } else {
-            return STORY_STARRED_DATE + " ASC";
-        }
+    /**
+     * Whether the reading session for a FeedSet is shown with the highest sort keys first. "Newest"
+     * means most recently saved for saved stories, and read stories are always most recent first.
+     */
+    public static boolean isSessionDescending(FeedSet fs, StoryOrder storyOrder) {
+        if (fs.isAllRead()) return true;
+        return (storyOrder == StoryOrder.NEWEST);
+    }
+
+    public static String getSessionSortOrder(boolean descending) {
+        // it is not uncommon for a feed to have multiple stories with exactly the same timestamp. we
+        // arbitrarily pick a second sort column so sortation is stable.
+        String direction = descending ? " DESC" : " ASC";
+        return READING_SESSION_TABLE + "." + READING_SESSION_SORT_KEY + direction + ", " +
+               READING_SESSION_TABLE + "." + READING_SESSION_STORY_HASH + direction;
     }
     
     public static Long nullIfZero(Long l) {
@@ -441,4 +782,12 @@ public class DatabaseConstants {
     public static List<String> unflattenStringList(String flat) {
         return JsonHelper.fromJson(flat, new TypeToken<List<String>>(){}.getType());
     }
+
+    public static String flattenStringMap(Map<String,String> map) {
+        return JsonHelper.toJson(map);
+    }
+
+    public static Map<String,String> unflattenStringMap(String flat) {
+        return JsonHelper.fromJson(flat, new TypeToken<Map<String,String>>(){}.getType());
+    }
 }
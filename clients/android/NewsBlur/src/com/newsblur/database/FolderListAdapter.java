@@ -463,8 +463,8 @@ public class FolderListAdapter extends BaseExpandableListAdapter {
                 activeFolderNames.add(folderName);
                 Collections.sort(activeFeeds);
                 activeFolderChildren.add(activeFeeds);
-                folderNeutCounts.add(getFolderNeutralCountRecursive(folder, null));
-                folderPosCounts.add(getFolderPositiveCountRecursive(folder, null));
+                folderNeutCounts.add(sumFeedCounts(folder.allFeedIds, feedNeutCounts));
+                folderPosCounts.add(sumFeedCounts(folder.allFeedIds, feedPosCounts));
             }
         }
     }
@@ -487,35 +487,15 @@ public class FolderListAdapter extends BaseExpandableListAdapter {
         return subFolders;
     }
 
-    private int getFolderNeutralCountRecursive(Folder folder, Set<String> visitedParents) {
-        int count = 0;
-        if (visitedParents == null) visitedParents = new HashSet<String>();
-        visitedParents.add(folder.name);
-        for (String feedId : folder.feedIds) {
-            Integer feedCount = feedNeutCounts.get(feedId);
-            if (feedCount != null) count += feedCount;
-        }
-        for (String childName : folder.children) {
-            if (!visitedParents.contains(childName)) {
-                count += getFolderNeutralCountRecursive(folders.get(childName), visitedParents);
-            }
-        }
-        return count;
-    }
-
-    private int getFolderPositiveCountRecursive(Folder folder, Set<String> visitedParents) {
+    /**
+     * Totals the counts for a set of feeds, such as a folder and all its sub-folders.
+     */
+    private int sumFeedCounts(Set<String> feedIds, Map<String,Integer> counts) {
         int count = 0;
-        if (visitedParents == null) visitedParents = new HashSet<String>();
-        visitedParents.add(folder.name);
-        for (String feedId : folder.feedIds) {
-            Integer feedCount = feedPosCounts.get(feedId);
+        for (String feedId : feedIds) {
+            Integer feedCount = counts.get(feedId);
             if (feedCount != null) count += feedCount;
         }
-        for (String childName : folder.children) {
-            if (!visitedParents.contains(childName)) {
-                count += getFolderPositiveCountRecursive(folders.get(childName), visitedParents);
-            }
-        }
         return count;
     }
 
@@ -0,0 +1,229 @@
+package com.newsblur.database;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+
+import com.newsblur.util.AppConstants;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only view of the first stories of the active reading session, in display order. Rows
+ * are fetched in pages, each keyed on the (sort key, story hash) of the last row of the prior
+ * page, so that deep pages cost the same index walk as the first one.
+ *
+ * A cursor is loaded off the UI thread by load(), which fetches pages up to the requested
+ * window. When a list needs to see further into the session, load() can extend the cursor it is
+ * showing: the new cursor shares the pages that are already loaded and fetches only the ones
+ * past its end. Only the most recently used few pages stay in memory; the keys of the rest are
+ * kept, so that scrolling back to one re-fetches that page alone, much as a SQLiteCursor refills
+ * its window.
+ */
+public class PagedStoryCursor extends AbstractCursor {
+
+    /**
+     * A page of rows, shared by every cursor that has it loaded and closed once none of them do.
+     */
+    private static class Page {
+        final Cursor rows;
+        private int refs = 1;
+
+        Page(Cursor rows) {
+            this.rows = rows;
+        }
+
+        synchronized void acquire() {
+            refs++;
+        }
+
+        synchronized void release() {
+            if (--refs == 0) rows.close();
+        }
+    }
+
+    private final SQLiteDatabase db;
+    private final boolean descending;
+    private final String[] columnNames;
+    // for each page, the key of the row before it, or null for the first page
+    private final List<String[]> pageKeys;
+    // the key of the last row, or null if there are no rows
+    private final String[] lastKey;
+    private final int count;
+    // whether the session has no rows past the last page
+    private final boolean complete;
+    // the pages in memory, by index, least recently used first
+    private final LinkedHashMap<Integer,Page> resident = new LinkedHashMap<Integer,Page>(0, 0.75f, true);
+
+    private Cursor current;
+
+    private PagedStoryCursor(SQLiteDatabase db, boolean descending, String[] columnNames, List<String[]> pageKeys, String[] lastKey, int count, boolean complete) {
+        this.db = db;
+        this.descending = descending;
+        this.columnNames = columnNames;
+        this.pageKeys = pageKeys;
+        this.lastKey = lastKey;
+        this.count = count;
+        this.complete = complete;
+    }
+
+    /**
+     * Loads at least storyWindow rows of the session, if there are that many. Must not be called
+     * on the UI thread.
+     *
+     * @param base a cursor over the same session and order to extend, or null to start afresh.
+     */
+    static PagedStoryCursor load(SQLiteDatabase db, boolean descending, int storyWindow, PagedStoryCursor base, CancellationSignal cancellationSignal) {
+        List<String[]> pageKeys = new ArrayList<String[]>();
+        Map<Integer,Page> pages = new LinkedHashMap<Integer,Page>();
+        String[] columnNames = null;
+        String[] key = null;
+        int count = 0;
+        boolean complete = false;
+        if ((base != null) && (base.descending == descending) && base.share(pages)) {
+            pageKeys.addAll(base.pageKeys);
+            columnNames = base.columnNames;
+            key = base.lastKey;
+            count = base.count;
+            complete = base.complete;
+        }
+        try {
+            while ((!complete) && ((count < storyWindow) || (columnNames == null))) {
+                Cursor rows = db.rawQuery(DatabaseConstants.getStoryPageQuery(descending, (key != null), AppConstants.STORY_PAGE_SIZE), key, cancellationSignal);
+                Page page = new Page(rows);
+                // filling the page here keeps the query off the UI thread
+                int rowCount = rows.getCount();
+                if (columnNames == null) columnNames = rows.getColumnNames();
+                if (rowCount < 1) {
+                    page.release();
+                    complete = true;
+                    break;
+                }
+                pageKeys.add(key);
+                addPage(pages, pageKeys.size() - 1, page);
+                count += rowCount;
+                complete = (rowCount < AppConstants.STORY_PAGE_SIZE);
+                rows.moveToLast();
+                key = getKey(rows);
+            }
+        } catch (RuntimeException e) {
+            // most likely the load was cancelled
+            for (Page page : pages.values()) page.release();
+            throw e;
+        }
+        PagedStoryCursor cursor = new PagedStoryCursor(db, descending, columnNames, pageKeys, key, count, complete);
+        cursor.resident.putAll(pages);
+        return cursor;
+    }
+
+    /**
+     * Adds this cursor's resident pages to the given map and takes a reference to each on behalf
+     * of another cursor. Returns false if this cursor has been closed and can't be extended.
+     */
+    private synchronized boolean share(Map<Integer,Page> pages) {
+        if (isClosed()) return false;
+        for (Map.Entry<Integer,Page> entry : resident.entrySet()) {
+            entry.getValue().acquire();
+            pages.put(entry.getKey(), entry.getValue());
+        }
+        return true;
+    }
+
+    private static void addPage(Map<Integer,Page> pages, int index, Page page) {
+        pages.put(index, page);
+        Iterator<Page> eldest = pages.values().iterator();
+        while (pages.size() > AppConstants.STORY_PAGES_RESIDENT) {
+            eldest.next().release();
+            eldest.remove();
+        }
+    }
+
+    private static String[] getKey(Cursor rows) {
+        return new String[]{rows.getString(rows.getColumnIndexOrThrow(DatabaseConstants.READING_SESSION_SORT_KEY)),
+                            rows.getString(rows.getColumnIndexOrThrow(DatabaseConstants.STORY_HASH))};
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public synchronized boolean onMove(int oldPosition, int newPosition) {
+        int index = newPosition / AppConstants.STORY_PAGE_SIZE;
+        Page page = resident.get(index);
+        if (page == null) {
+            // a page we had before but let go of. the session may have changed since, but
+            // the cursor will be replaced soon enough if so
+            String[] key = pageKeys.get(index);
+            page = new Page(db.rawQuery(DatabaseConstants.getStoryPageQuery(descending, (key != null), AppConstants.STORY_PAGE_SIZE), key));
+            addPage(resident, index, page);
+        }
+        current = page.rows;
+        return current.moveToPosition(newPosition % AppConstants.STORY_PAGE_SIZE);
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        for (Page page : resident.values()) page.release();
+        resident.clear();
+        current = null;
+    }
+
+    @Override
+    public String getString(int column) {
+        return current.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return current.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return current.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return current.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return current.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return current.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return current.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return current.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return current.isNull(column);
+    }
+
+}
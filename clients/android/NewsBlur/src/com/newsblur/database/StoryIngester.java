@@ -0,0 +1,457 @@
+package com.newsblur.database;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.newsblur.domain.Classifier;
+import com.newsblur.domain.Comment;
+import com.newsblur.domain.Feed;
+import com.newsblur.domain.Reply;
+import com.newsblur.domain.Story;
+import com.newsblur.domain.UserProfile;
+import com.newsblur.util.AppConstants;
+import com.newsblur.util.StateFilter;
+import com.newsblur.util.StoryUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A streaming writer for story data. Stories are accepted one at a time, as they are
+ * produced, and written in small sub-transactions through pre-compiled statements so that
+ * a large page of stories never holds the DB lock for more than a handful of rows.
+ *
+ * Instances are single-use and not thread-safe: create one per API response via
+ * BlurDatabaseHelper.newStoryIngester(), add() stories and metadata, then finish().
+ */
+public class StoryIngester {
+
+    private static final String[] STORY_INSERT_COLUMNS = {
+        DatabaseConstants.STORY_HASH,
+        DatabaseConstants.STORY_ID,
+        DatabaseConstants.STORY_TITLE,
+        DatabaseConstants.STORY_TIMESTAMP,
+        DatabaseConstants.STORY_SHORT_CONTENT,
+        DatabaseConstants.STORY_PERMALINK,
+        DatabaseConstants.STORY_AUTHORS,
+        DatabaseConstants.STORY_SOCIAL_USER_ID,
+        DatabaseConstants.STORY_SOURCE_USER_ID,
+        DatabaseConstants.STORY_SHARED_USER_IDS,
+        DatabaseConstants.STORY_FRIEND_USER_IDS,
+        DatabaseConstants.STORY_INTELLIGENCE_AUTHORS,
+        DatabaseConstants.STORY_INTELLIGENCE_FEED,
+        DatabaseConstants.STORY_INTELLIGENCE_TAGS,
+        DatabaseConstants.STORY_INTELLIGENCE_TITLE,
+        DatabaseConstants.STORY_INTELLIGENCE_TOTAL,
+        DatabaseConstants.STORY_TAGS,
+        DatabaseConstants.STORY_USER_TAGS,
+        DatabaseConstants.STORY_READ,
+        DatabaseConstants.STORY_STARRED,
+        DatabaseConstants.STORY_STARRED_DATE,
+        DatabaseConstants.STORY_FEED_ID,
+        DatabaseConstants.STORY_LAST_READ_DATE,
+        DatabaseConstants.STORY_SEARCH_HIT,
+    };
+
+    private static final String[] COMMENT_INSERT_COLUMNS = {
+        DatabaseConstants.COMMENT_ID,
+        DatabaseConstants.COMMENT_DATE,
+        DatabaseConstants.COMMENT_STORYID,
+        DatabaseConstants.COMMENT_LIKING_USERS,
+        DatabaseConstants.COMMENT_TEXT,
+        DatabaseConstants.COMMENT_SHAREDDATE,
+        DatabaseConstants.COMMENT_BYFRIEND,
+        DatabaseConstants.COMMENT_SOURCE_USERID,
+        DatabaseConstants.COMMENT_USERID,
+        DatabaseConstants.COMMENT_ISPSEUDO,
+    };
+
+    private static final String[] REPLY_INSERT_COLUMNS = {
+        DatabaseConstants.REPLY_ID,
+        DatabaseConstants.REPLY_DATE,
+        DatabaseConstants.REPLY_SHORTDATE,
+        DatabaseConstants.REPLY_TEXT,
+        DatabaseConstants.REPLY_COMMENTID,
+        DatabaseConstants.REPLY_USERID,
+    };
+
+    private final SQLiteDatabase dbRW;
+    // the column that orders the reading session the stories are for, or null if they aren't
+    private final String sessionSortColumn;
+    private final StateFilter intelState;
+
+    private SQLiteStatement storyInsert;
+    private SQLiteStatement socialMapInsert;
+    private SQLiteStatement contentInsert;
+    private SQLiteStatement searchInsert;
+    private SQLiteStatement imageInsert;
+    private SQLiteStatement sessionInsert;
+    private SQLiteStatement commentInsert;
+    private SQLiteStatement replyDelete;
+    private SQLiteStatement replyInsert;
+
+    private final List<Story> pending = new ArrayList<Story>(AppConstants.DB_STORY_INSERT_BATCH_SIZE);
+    private final Map<String,Classifier> classifiers = new HashMap<String,Classifier>();
+    // story bodies, compressed as stories are queued so the work isn't done while holding the DB lock
+    private final List<byte[]> pendingContent = new ArrayList<byte[]>(AppConstants.DB_STORY_INSERT_BATCH_SIZE);
+    private final List<String> pendingAltTexts = new ArrayList<String>(AppConstants.DB_STORY_INSERT_BATCH_SIZE);
+    private final ContentCodec codec = new ContentCodec();
+
+    // to insert classifiers, we need to determine the feed ID of the stories in this
+    // response, so sniff one out.
+    private String impliedFeedId = null;
+    private int storyCount = 0;
+    private boolean finished = false;
+
+    StoryIngester(SQLiteDatabase dbRW, String sessionSortColumn, StateFilter intelState) {
+        this.dbRW = dbRW;
+        this.sessionSortColumn = sessionSortColumn;
+        this.intelState = intelState;
+    }
+
+    /**
+     * Queue a story for insertion. Stories are flushed to the DB every
+     * AppConstants.DB_STORY_INSERT_BATCH_SIZE rows, each flush in its own transaction.
+     */
+    public void add(Story story) {
+        if (finished) throw new IllegalStateException("StoryIngester used after finish()");
+        pending.add(story);
+        pendingContent.add(codec.compress(story.content));
+        pendingAltTexts.add((story.contentAltTexts == null) ? null : DatabaseConstants.flattenStringMap(story.contentAltTexts));
+        impliedFeedId = story.feedId;
+        storyCount++;
+        if (pending.size() >= AppConstants.DB_STORY_INSERT_BATCH_SIZE) flushStories();
+    }
+
+    public void addUsers(UserProfile[] users) {
+        if ((users == null) || (users.length < 1)) return;
+        List<ContentValues> userValues = new ArrayList<ContentValues>(users.length);
+        for (UserProfile user : users) {
+            userValues.add(user.getValues());
+        }
+        insertValues(DatabaseConstants.USER_TABLE, userValues);
+    }
+
+    /**
+     * Insert supplemental feed data that may have been included (usually in social requests).
+     */
+    public void addFeeds(List<Feed> feeds) {
+        if ((feeds == null) || (feeds.size() < 1)) return;
+        List<ContentValues> feedValues = new ArrayList<ContentValues>(feeds.size());
+        for (Feed feed : feeds) {
+            feedValues.add(feed.getValues());
+        }
+        insertValues(DatabaseConstants.FEED_TABLE, feedValues);
+    }
+
+    /**
+     * Classifiers may need a feed ID implied by the stories of the response, so they are held
+     * until finish(), when all stories are known.
+     */
+    public void addClassifiers(Map<String,Classifier> classifierMap) {
+        if (classifierMap == null) return;
+        classifiers.putAll(classifierMap);
+    }
+
+    public int getStoryCount() {
+        return storyCount;
+    }
+
+    /**
+     * Write out any stories and classifiers still held and release the compiled statements.
+     * Must be called exactly once, even if ingestion was abandoned part way through.
+     */
+    public void finish() {
+        if (finished) return;
+        try {
+            flushStories();
+            flushClassifiers();
+        } finally {
+            finished = true;
+            codec.release();
+            synchronized (BlurDatabaseHelper.RW_MUTEX) {
+                closeStatement(storyInsert);
+                closeStatement(socialMapInsert);
+                closeStatement(contentInsert);
+                closeStatement(searchInsert);
+                closeStatement(imageInsert);
+                closeStatement(sessionInsert);
+                closeStatement(commentInsert);
+                closeStatement(replyDelete);
+                closeStatement(replyInsert);
+            }
+        }
+    }
+
+    private void flushStories() {
+        if (pending.size() < 1) return;
+        synchronized (BlurDatabaseHelper.RW_MUTEX) {
+            // do not attempt to use beginTransactionNonExclusive() to reduce lock time for this very heavy set
+            // of calls. most versions of Android incorrectly implement the underlying SQLite calls and will
+            // result in crashes that poison the DB beyond repair. instead, keep each transaction small.
+            dbRW.beginTransaction();
+            try {
+                compileStatements();
+                for (int i=0; i<pending.size(); i++) {
+                    writeStory(pending.get(i), pendingContent.get(i), pendingAltTexts.get(i));
+                }
+                dbRW.setTransactionSuccessful();
+            } finally {
+                dbRW.endTransaction();
+            }
+        }
+        pending.clear();
+        pendingContent.clear();
+        pendingAltTexts.clear();
+    }
+
+    private void flushClassifiers() {
+        if (classifiers.size() < 1) return;
+        synchronized (BlurDatabaseHelper.RW_MUTEX) {
+            dbRW.beginTransaction();
+            try {
+                for (Map.Entry<String,Classifier> entry : classifiers.entrySet()) {
+                    // the API might not have included a feed ID, in which case it deserialized as -1 and must be implied
+                    String classifierFeedId = entry.getKey();
+                    if (classifierFeedId.equals("-1")) {
+                        classifierFeedId = impliedFeedId;
+                    }
+                    if (classifierFeedId == null) {
+                        Log.w(this.getClass().getName(), "dropping classifiers with no implied feed");
+                        continue;
+                    }
+                    List<ContentValues> classifierValues = entry.getValue().getContentValues();
+                    dbRW.delete(DatabaseConstants.CLASSIFIER_TABLE, DatabaseConstants.CLASSIFIER_ID + " = ?", new String[] { classifierFeedId });
+                    for (ContentValues values : classifierValues) {
+                        values.put(DatabaseConstants.CLASSIFIER_ID, classifierFeedId);
+                        dbRW.insertWithOnConflict(DatabaseConstants.CLASSIFIER_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                    }
+                }
+                dbRW.setTransactionSuccessful();
+            } finally {
+                dbRW.endTransaction();
+            }
+        }
+        classifiers.clear();
+    }
+
+    private void insertValues(String table, List<ContentValues> valuesList) {
+        synchronized (BlurDatabaseHelper.RW_MUTEX) {
+            dbRW.beginTransaction();
+            try {
+                for (ContentValues values : valuesList) {
+                    dbRW.insertWithOnConflict(table, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                dbRW.setTransactionSuccessful();
+            } finally {
+                dbRW.endTransaction();
+            }
+        }
+    }
+
+    // must be called with RW_MUTEX held
+    private void compileStatements() {
+        if (storyInsert != null) return;
+        storyInsert = dbRW.compileStatement(buildInsertOrReplace(DatabaseConstants.STORY_TABLE, STORY_INSERT_COLUMNS));
+        socialMapInsert = dbRW.compileStatement(buildInsertOrReplace(DatabaseConstants.SOCIALFEED_STORY_MAP_TABLE,
+                                                                     new String[]{DatabaseConstants.SOCIALFEED_STORY_USER_ID, DatabaseConstants.SOCIALFEED_STORY_STORYID}));
+        String priorText = " FROM " + DatabaseConstants.STORY_CONTENT_TABLE + " WHERE " + DatabaseConstants.STORY_CONTENT_STORY_HASH + " = ?1)";
+        contentInsert = dbRW.compileStatement("INSERT OR REPLACE INTO " + DatabaseConstants.STORY_CONTENT_TABLE + " (" +
+                                              DatabaseConstants.STORY_CONTENT_STORY_HASH + ", " +
+                                              DatabaseConstants.STORY_CONTENT_CONTENT + ", " +
+                                              DatabaseConstants.STORY_CONTENT_CONTENT_ALT_TEXTS + ", " +
+                                              DatabaseConstants.STORY_CONTENT_CONTENT_HASH + ", " +
+                                              DatabaseConstants.STORY_CONTENT_TEXT + ", " +
+                                              DatabaseConstants.STORY_CONTENT_TEXT_ALT_TEXTS + ", " +
+                                              DatabaseConstants.STORY_CONTENT_TEXT_HASH + ") VALUES (?1, ?2, ?3, ?4, " +
+                                              "(SELECT " + DatabaseConstants.STORY_CONTENT_TEXT + priorText + ", " +
+                                              "(SELECT " + DatabaseConstants.STORY_CONTENT_TEXT_ALT_TEXTS + priorText + ", " +
+                                              "(SELECT " + DatabaseConstants.STORY_CONTENT_TEXT_HASH + priorText + ")");
+        searchInsert = dbRW.compileStatement("INSERT OR REPLACE INTO " + DatabaseConstants.STORY_SEARCH_TABLE + " (docid, " +
+                                             DatabaseConstants.STORY_SEARCH_TITLE + ", " +
+                                             DatabaseConstants.STORY_SEARCH_AUTHORS + ", " +
+                                             DatabaseConstants.STORY_SEARCH_TAGS + ", " +
+                                             DatabaseConstants.STORY_SEARCH_CONTENT + ") VALUES (?, ?, ?, ?, ?)");
+        imageInsert = dbRW.compileStatement("INSERT OR IGNORE INTO " + DatabaseConstants.STORY_IMAGES_TABLE + " (" +
+                                            DatabaseConstants.STORY_IMAGES_STORY_HASH + ", " +
+                                            DatabaseConstants.STORY_IMAGES_URL + ") VALUES (?, ?)");
+        if (sessionSortColumn != null) {
+            // the sort key is taken from the row just written, so fudged read dates and the like
+            // land in the session too. a story already in the session is moved to its new key.
+            sessionInsert = dbRW.compileStatement("INSERT OR REPLACE INTO " + DatabaseConstants.READING_SESSION_TABLE +
+                                                  " (" + DatabaseConstants.READING_SESSION_STORY_HASH + ", " + DatabaseConstants.READING_SESSION_SORT_KEY + ")" +
+                                                  " SELECT " + DatabaseConstants.STORY_HASH + ", " + sessionSortColumn +
+                                                  " FROM " + DatabaseConstants.STORY_TABLE +
+                                                  " WHERE " + DatabaseConstants.STORY_HASH + " = ?");
+        }
+        commentInsert = dbRW.compileStatement(buildInsertOrReplace(DatabaseConstants.COMMENT_TABLE, COMMENT_INSERT_COLUMNS));
+        replyDelete = dbRW.compileStatement("DELETE FROM " + DatabaseConstants.REPLY_TABLE +
+                                            " WHERE " + DatabaseConstants.REPLY_COMMENTID + " = ?");
+        replyInsert = dbRW.compileStatement(buildInsertOrReplace(DatabaseConstants.REPLY_TABLE, REPLY_INSERT_COLUMNS));
+    }
+
+    private void writeStory(Story story, byte[] content, String altTexts) {
+        int i = 1;
+        bindString(storyInsert, i++, story.storyHash);
+        bindString(storyInsert, i++, story.id);
+        bindString(storyInsert, i++, story.title.replace("\n", " ").replace("\r", " "));
+        storyInsert.bindLong(i++, story.timestamp);
+        bindString(storyInsert, i++, story.shortContent);
+        bindString(storyInsert, i++, story.permalink);
+        bindString(storyInsert, i++, story.authors);
+        bindString(storyInsert, i++, story.socialUserId);
+        bindString(storyInsert, i++, story.sourceUserId);
+        bindString(storyInsert, i++, TextUtils.join(",", story.sharedUserIds));
+        bindString(storyInsert, i++, TextUtils.join(",", story.friendUserIds));
+        storyInsert.bindLong(i++, story.intelligence.intelligenceAuthors);
+        storyInsert.bindLong(i++, story.intelligence.intelligenceFeed);
+        storyInsert.bindLong(i++, story.intelligence.intelligenceTags);
+        storyInsert.bindLong(i++, story.intelligence.intelligenceTitle);
+        storyInsert.bindLong(i++, story.intelligence.calcTotalIntel());
+        bindString(storyInsert, i++, TextUtils.join(",", story.tags));
+        bindString(storyInsert, i++, TextUtils.join(",", story.userTags));
+        storyInsert.bindLong(i++, story.read ? 1L : 0L);
+        storyInsert.bindLong(i++, story.starred ? 1L : 0L);
+        storyInsert.bindLong(i++, story.starredTimestamp);
+        bindString(storyInsert, i++, story.feedId);
+        storyInsert.bindLong(i++, story.lastReadTimestamp);
+        bindString(storyInsert, i++, story.searchHit);
+        long storyRowId = storyInsert.executeInsert();
+
+        // index the story for local search, by the new row's ID so the index follows the row. the
+        // ID is the story_row_id column, which stays put through a VACUUM
+        searchInsert.bindLong(1, storyRowId);
+        bindString(searchInsert, 2, story.title);
+        bindString(searchInsert, 3, story.authors);
+        bindString(searchInsert, 4, TextUtils.join(" ", story.tags));
+        // the body text comes from the content actually being stored, however the story arrived
+        bindString(searchInsert, 5, StoryUtils.htmlToSearchText(story.content));
+        searchInsert.executeInsert();
+
+        // any prior image rows went with the replaced story row, so just add the current ones
+        if (story.imageUrls != null) {
+            for (String url : story.imageUrls) {
+                bindString(imageInsert, 1, story.storyHash);
+                bindString(imageInsert, 2, url);
+                imageInsert.executeInsert();
+            }
+        }
+
+        // bodies go in the compressed content store, keeping any original text already fetched
+        bindString(contentInsert, 1, story.storyHash);
+        if (content == null) {
+            contentInsert.bindNull(2);
+        } else {
+            contentInsert.bindBlob(2, content);
+        }
+        bindString(contentInsert, 3, altTexts);
+        if (altTexts == null) {
+            contentInsert.bindNull(4);
+        } else {
+            contentInsert.bindLong(4, story.contentHash);
+        }
+        contentInsert.executeInsert();
+
+        // if a story was shared by a user, also insert it into the social table under their userid, too
+        for (String sharedUserId : story.sharedUserIds) {
+            bindString(socialMapInsert, 1, sharedUserId);
+            bindString(socialMapInsert, 2, story.id);
+            socialMapInsert.executeInsert();
+        }
+
+        // if the story is being fetched for the immediate session, also add the hash to the session table
+        if ((sessionSortColumn != null) && story.isStoryVisibileInState(intelState)) {
+            bindString(sessionInsert, 1, story.storyHash);
+            sessionInsert.executeInsert();
+        }
+
+        if (story.publicComments != null) {
+            for (Comment comment : story.publicComments) {
+                writeComment(story, comment);
+            }
+        }
+        if (story.friendsComments != null) {
+            for (Comment comment : story.friendsComments) {
+                comment.byFriend = true;
+                writeComment(story, comment);
+            }
+        }
+        if (story.friendsShares != null) {
+            for (Comment comment : story.friendsShares) {
+                comment.isPseudo = true;
+                comment.byFriend = true;
+                writeComment(story, comment);
+            }
+        }
+    }
+
+    private void writeComment(Story story, Comment comment) {
+        comment.storyId = story.id;
+        // we need a primary key for comments, so construct one
+        comment.id = Comment.constructId(story.id, story.feedId, comment.userId);
+
+        int i = 1;
+        bindString(commentInsert, i++, comment.id);
+        bindString(commentInsert, i++, comment.date);
+        bindString(commentInsert, i++, comment.storyId);
+        bindString(commentInsert, i++, TextUtils.join(",", comment.likingUsers));
+        bindString(commentInsert, i++, comment.commentText);
+        bindString(commentInsert, i++, comment.sharedDate);
+        bindString(commentInsert, i++, comment.byFriend ? "true" : "false");
+        bindString(commentInsert, i++, comment.sourceUserId);
+        bindString(commentInsert, i++, comment.userId);
+        bindString(commentInsert, i++, comment.isPseudo ? "true" : "false");
+        commentInsert.executeInsert();
+
+        // before inserting new replies, remove existing ones for the fetched comment. there isn't
+        // enough data to de-dupe them for an insert/update operation
+        bindString(replyDelete, 1, comment.id);
+        replyDelete.executeUpdateDelete();
+
+        if (comment.replies == null) return;
+        for (Reply reply : comment.replies) {
+            reply.commentId = comment.id;
+            reply.id = reply.constructId();
+            i = 1;
+            bindString(replyInsert, i++, reply.id);
+            replyInsert.bindLong(i++, reply.date.getTime());
+            bindString(replyInsert, i++, reply.shortDate);
+            bindString(replyInsert, i++, reply.text);
+            bindString(replyInsert, i++, reply.commentId);
+            bindString(replyInsert, i++, reply.userId);
+            replyInsert.executeInsert();
+        }
+    }
+
+    private static String buildInsertOrReplace(String table, String[] columns) {
+        StringBuilder q = new StringBuilder("INSERT OR REPLACE INTO ");
+        q.append(table).append(" (");
+        q.append(TextUtils.join(",", columns));
+        q.append(") VALUES (");
+        for (int i=0; i<columns.length; i++) {
+            if (i > 0) q.append(",");
+            q.append("?");
+        }
+        q.append(")");
+        return q.toString();
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void closeStatement(SQLiteStatement statement) {
+        if (statement == null) return;
+        try {statement.close();} catch (Exception e) {;}
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.newsblur.database;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.util.Log;
+
+import com.newsblur.util.AppConstants;
+import com.newsblur.util.PrefConstants;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks whether write-ahead logging actually works on this device before we trust the main DB
+ * to it. Some vendor builds of SQLite and some versions of the framework connection pool get WAL
+ * subtly wrong, and the failure mode is a corrupt DB, so rather than going by version numbers we
+ * run a scratch DB through the behaviours we rely upon: enabling the mode, a reader seeing the
+ * last committed snapshot without blocking on an open write transaction, and the data surviving
+ * a checkpoint and reopen.
+ *
+ * The probe takes a while, so it runs on a background thread the first time the DB is opened
+ * and its outcome is remembered per SQLite engine version and SDK level. WAL is only turned on
+ * by a later open, once the probe has passed, so it runs once per device and OS update.
+ */
+class WalProbe {
+
+    private static final String PROBE_DB_NAME = "wal_probe.db";
+    private static final long READER_TIMEOUT_MILLIS = 2000L;
+
+    private static boolean ProbeStarted = false;
+
+    private WalProbe() {} // util class - no instances
+
+    /**
+     * Whether a past probe showed WAL to be safe with this device's SQLite. Never blocks on a
+     * probe: if there is no result yet for this engine, one is started in the background and
+     * the answer is no for now.
+     *
+     * @param db any open DB, used to ask the engine its version.
+     */
+    static boolean isWalSafe(Context context, SQLiteDatabase db) {
+        // the pre-JB connection pool doesn't hand reads to secondary connections reliably
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) return false;
+
+        String engineKey = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null) + ":" + Build.VERSION.SDK_INT;
+        SharedPreferences prefs = context.getSharedPreferences(PrefConstants.PREFERENCES, 0);
+        String cached = prefs.getString(AppConstants.WAL_PROBE_RESULT, null);
+        if ((cached != null) && (cached.startsWith(engineKey + "="))) {
+            return cached.endsWith("=true");
+        }
+
+        startProbe(context.getApplicationContext(), engineKey);
+        return false;
+    }
+
+    private static synchronized void startProbe(final Context context, final String engineKey) {
+        // one probe per process is plenty, however many helpers get opened while it runs
+        if (ProbeStarted) return;
+        ProbeStarted = true;
+        new Thread("WAL probe") {
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                boolean result = probe(context);
+                Log.i(WalProbe.class.getName(), String.format("WAL probe for %s %s in %dms", engineKey, (result ? "passed" : "failed"), System.currentTimeMillis() - startTime));
+                SharedPreferences prefs = context.getSharedPreferences(PrefConstants.PREFERENCES, 0);
+                prefs.edit().putString(AppConstants.WAL_PROBE_RESULT, engineKey + "=" + result).commit();
+            }
+        }.start();
+    }
+
+    private static boolean probe(Context context) {
+        File dbFile = context.getDatabasePath(PROBE_DB_NAME);
+        SQLiteDatabase.deleteDatabase(dbFile);
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+            if (!db.enableWriteAheadLogging()) return false;
+            String mode = DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null);
+            if (!"wal".equalsIgnoreCase(mode)) {
+                Log.w(WalProbe.class.getName(), "WAL requested but journal mode is: " + mode);
+                return false;
+            }
+
+            db.execSQL("CREATE TABLE probe (val INTEGER)");
+            db.execSQL("INSERT INTO probe (val) VALUES (1)");
+
+            // with a write open and uncommitted, a reader should see the last commit and not wait
+            db.beginTransaction();
+            long seenDuringWrite;
+            try {
+                db.execSQL("INSERT INTO probe (val) VALUES (2)");
+                seenDuringWrite = countFromOtherThread(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if (seenDuringWrite != 1L) {
+                Log.w(WalProbe.class.getName(), "WAL reader saw " + seenDuringWrite + " rows during a write");
+                return false;
+            }
+            if (countFromOtherThread(db) != 2L) return false;
+
+            // and the commit has to make it into the main DB file intact
+            DatabaseUtils.stringForQuery(db, "PRAGMA wal_checkpoint(FULL)", null);
+            db.close();
+            db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+            if (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM probe", null) != 2L) return false;
+            return "ok".equalsIgnoreCase(DatabaseUtils.stringForQuery(db, "PRAGMA integrity_check", null));
+        } catch (Exception e) {
+            Log.w(WalProbe.class.getName(), "WAL probe failed", e);
+            return false;
+        } finally {
+            if (db != null) db.close();
+            SQLiteDatabase.deleteDatabase(dbFile);
+        }
+    }
+
+    /**
+     * Counts probe rows from a thread other than the caller's, so the framework has to use a
+     * separate connection. Returns -1 if the reader failed or blocked.
+     */
+    private static long countFromOtherThread(final SQLiteDatabase db) throws InterruptedException {
+        final long[] result = new long[]{-1L};
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    result[0] = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM probe", null);
+                } catch (Exception e) {
+                    Log.w(WalProbe.class.getName(), "WAL probe reader failed", e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        reader.start();
+        if (!done.await(READER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            Log.w(WalProbe.class.getName(), "WAL probe reader blocked behind writer");
+            return -1L;
+        }
+        return result[0];
+    }
+
+}
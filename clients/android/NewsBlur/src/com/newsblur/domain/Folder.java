@@ -5,9 +5,13 @@ import android.database.Cursor;
 import android.text.TextUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import com.newsblur.database.DatabaseConstants;
 import com.newsblur.util.AppConstants;
@@ -22,6 +26,8 @@ public class Folder {
     public List<String> children;
     /** Set of any feeds contained in this folder. */
     public List<String> feedIds;
+    /** Set of all feeds contained in this folder or any sub-folder. Only loaded by some queries. */
+    public Set<String> allFeedIds = Collections.emptySet();
 
 	public static Folder fromCursor(Cursor c) {
 		if (c.isBeforeFirst()) {
@@ -32,6 +38,10 @@ public class Folder {
 		folder.parents = DatabaseConstants.unflattenStringList(c.getString(c.getColumnIndex(DatabaseConstants.FOLDER_PARENT_NAMES)));
 		folder.children = DatabaseConstants.unflattenStringList(c.getString(c.getColumnIndex(DatabaseConstants.FOLDER_CHILDREN_NAMES)));
         folder.feedIds = DatabaseConstants.unflattenStringList(c.getString(c.getColumnIndex(DatabaseConstants.FOLDER_FEED_IDS)));
+        int allFeedIdsIndex = c.getColumnIndex(DatabaseConstants.FOLDER_ALL_FEED_IDS);
+        if ((allFeedIdsIndex >= 0) && (!c.isNull(allFeedIdsIndex))) {
+            folder.allFeedIds = new HashSet<String>(Arrays.asList(TextUtils.split(c.getString(allFeedIdsIndex), ",")));
+        }
 		return folder;
 	}
 
@@ -1,6 +1,7 @@
 package com.newsblur.domain;
 
 import java.io.Serializable;
+import java.util.Map;
 
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -91,13 +92,16 @@ public class Story implements Serializable {
 
     // non-API and only set once when story is pushed to DB so it can be selected upon
     public String searchHit = "";
+
+    // non-API and only set when parsed, what the reading view needs to know about the story body
+    public transient Map<String,String> contentAltTexts;
+    public transient int contentHash;
  
 	public ContentValues getValues() {
 		final ContentValues values = new ContentValues();
 		values.put(DatabaseConstants.STORY_ID, id);
 		values.put(DatabaseConstants.STORY_TITLE, title.replace("\n", " ").replace("\r", " "));
 		values.put(DatabaseConstants.STORY_TIMESTAMP, timestamp);
-        values.put(DatabaseConstants.STORY_CONTENT, content);
         values.put(DatabaseConstants.STORY_SHORT_CONTENT, shortContent);
 		values.put(DatabaseConstants.STORY_PERMALINK, permalink);
 		values.put(DatabaseConstants.STORY_AUTHORS, authors);
@@ -117,7 +121,6 @@ public class Story implements Serializable {
 		values.put(DatabaseConstants.STORY_STARRED_DATE, starredTimestamp);
 		values.put(DatabaseConstants.STORY_FEED_ID, feedId);
         values.put(DatabaseConstants.STORY_HASH, storyHash);
-        values.put(DatabaseConstants.STORY_IMAGE_URLS, TextUtils.join(",", imageUrls));
         values.put(DatabaseConstants.STORY_LAST_READ_DATE, lastReadTimestamp);
 		values.put(DatabaseConstants.STORY_SEARCH_HIT, searchHit);
 		return values;
@@ -0,0 +1,32 @@
+package com.newsblur.domain;
+
+import java.util.Map;
+
+import com.newsblur.util.StoryUtils;
+
+/**
+ * A story body or original text as it is rendered, along with the bits the reading view
+ * derives from it. These are worked out once, when the content is stored.
+ */
+public class StoryBody {
+
+    public final String html;
+    // image URLs to their alt or title text, see StoryUtils.sniffAltTexts()
+    public final Map<String,String> altTexts;
+    // lets the reading view skip re-rendering content it is already showing
+    public final int contentHash;
+
+    public StoryBody(String html, Map<String,String> altTexts, int contentHash) {
+        this.html = html;
+        this.altTexts = altTexts;
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Works out everything for some HTML on the spot, for content that wasn't stored with it.
+     */
+    public static StoryBody fromHtml(String html) {
+        return new StoryBody(html, StoryUtils.sniffAltTexts(html), html.hashCode());
+    }
+
+}
@@ -35,6 +35,7 @@ import com.newsblur.database.DatabaseConstants;
 import com.newsblur.database.StoryItemsAdapter;
 import com.newsblur.domain.Story;
 import com.newsblur.service.NBSyncService;
+import com.newsblur.util.AppConstants;
 import com.newsblur.util.DefaultFeedView;
 import com.newsblur.util.FeedSet;
 import com.newsblur.util.FeedUtils;
@@ -56,6 +57,9 @@ public abstract class ItemListFragment extends NbFragment implements OnScrollLis
 	protected StateFilter intelState;
     private boolean cursorSeenYet = false;
     private boolean stopLoading = false;
+    // how many stories of the reading session the loader should fetch
+    private int storyWindow = AppConstants.STORY_WINDOW_SIZE;
+    private boolean windowGrowing = false;
     
     // loading indicator for when stories are present but stale (at top of list)
     protected ProgressThrobber headerProgressView;
@@ -144,6 +148,8 @@ public abstract class ItemListFragment extends NbFragment implements OnScrollLis
      */
     public void resetEmptyState() {
         cursorSeenYet = false;
+        storyWindow = AppConstants.STORY_WINDOW_SIZE;
+        windowGrowing = false;
         FeedUtils.dbHelper.clearStorySession();
     }
 
@@ -207,6 +213,17 @@ public abstract class ItemListFragment extends NbFragment implements OnScrollLis
 
         // load an extra page or two worth of stories past the viewport
         int desiredStoryCount = firstVisible + (visibleCount*2) + 1;
+        // if the loaded window is full, there may be more local stories in the session, so
+        // widen the window before asking the API for more
+        if (windowGrowing) return;
+        if ((adapter != null) && (adapter.getCount() >= storyWindow)) {
+            if (desiredStoryCount > storyWindow) {
+                storyWindow += AppConstants.STORY_WINDOW_SIZE;
+                windowGrowing = true;
+                hasUpdated();
+            }
+            return;
+        }
         triggerRefresh(desiredStoryCount, totalCount);
 	}
 
@@ -232,7 +249,9 @@ public abstract class ItemListFragment extends NbFragment implements OnScrollLis
             try { getActivity().finish(); } catch (Exception e) {;}
             return null;
         }
-		return FeedUtils.dbHelper.getActiveStoriesLoader(getFeedSet());
+        // when just widening the window, the stories already loaded can be kept
+        Cursor base = ((windowGrowing) && (adapter != null)) ? adapter.getCursor() : null;
+		return FeedUtils.dbHelper.getActiveStoriesLoader(getFeedSet(), storyWindow, base);
 	}
 
     @Override
@@ -240,6 +259,7 @@ public abstract class ItemListFragment extends NbFragment implements OnScrollLis
         if (stopLoading) return;
 		if (cursor != null) {
             cursorSeenYet = true;
+            windowGrowing = false;
             if (cursor.getCount() < 1) {
                 triggerRefresh(1, 0);
             }
@@ -39,11 +39,11 @@ import com.newsblur.activity.NbActivity;
 import com.newsblur.activity.Reading;
 import com.newsblur.domain.Classifier;
 import com.newsblur.domain.Story;
+import com.newsblur.domain.StoryBody;
 import com.newsblur.domain.UserDetails;
 import com.newsblur.service.NBSyncService;
 import com.newsblur.util.DefaultFeedView;
 import com.newsblur.util.FeedUtils;
-import com.newsblur.util.ImageCache;
 import com.newsblur.util.PrefsUtils;
 import com.newsblur.util.StoryUtils;
 import com.newsblur.util.UIUtils;
@@ -54,8 +54,7 @@ import com.newsblur.view.NonfocusScrollview;
 
 import java.util.Date;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 public class ReadingItemFragment extends NbFragment implements ClassifierDialogFragment.TagUpdateCallback {
 
@@ -81,12 +80,11 @@ public class ReadingItemFragment extends NbFragment implements ClassifierDialogF
     @FindView(R.id.share_story_button) Button shareButton;
 
     /** The story HTML, as provided by the 'content' element of the stories API. */
-    private String storyContent;
+    private StoryBody storyContent;
     /** The text-mode story HTML, as retrived via the secondary original text API. */
-    private String originalText;
+    private StoryBody originalText;
 
-    private HashMap<String,String> imageAltTexts;
-    private HashMap<String,String> imageUrlRemaps;
+    private Map<String,String> imageAltTexts = new HashMap<String,String>();
     private String sourceUserId;
     private int contentHash;
 
@@ -245,10 +243,7 @@ public class ReadingItemFragment extends NbFragment implements ClassifierDialogF
             // if the long-pressed item was an image, see if we can pop up a little dialogue
             // that presents the alt text.  Note that images wrapped in links tend to get detected
             // as anchors, not images, and may not point to the corresponding image URL.
-            String imageURL = result.getExtra();
-            imageURL = imageURL.replace("file://", "");
-            String mappedURL = imageUrlRemaps.get(imageURL);
-            final String finalURL = mappedURL == null ? imageURL : mappedURL;
+            final String finalURL = result.getExtra();
             final String altText = imageAltTexts.get(finalURL);
             if (altText != null) {
                 AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
@@ -469,18 +464,18 @@ public class ReadingItemFragment extends NbFragment implements ClassifierDialogF
 
     private void loadOriginalText() {
         if (story != null) {
-            new AsyncTask<Void, Void, String>() {
+            new AsyncTask<Void, Void, StoryBody>() {
                 @Override
-                protected String doInBackground(Void... arg) {
-                    return FeedUtils.getStoryText(story.storyHash);
+                protected StoryBody doInBackground(Void... arg) {
+                    return FeedUtils.getStoryTextBody(story.storyHash);
                 }
                 @Override
-                protected void onPostExecute(String result) {
+                protected void onPostExecute(StoryBody result) {
                     if (result != null) {
                         ReadingItemFragment.this.originalText = result;
                         reloadStoryContent();
                     } else {
-                        if (getActivity() != null) setupWebview(getActivity().getResources().getString(R.string.orig_text_loading));
+                        if (getActivity() != null) setupWebview(StoryBody.fromHtml(getActivity().getResources().getString(R.string.orig_text_loading)));
                         NBSyncService.getOriginalText(story.storyHash);
                         triggerSync();
                     }
@@ -491,13 +486,13 @@ public class ReadingItemFragment extends NbFragment implements ClassifierDialogF
 
     private void loadStoryContent() {
         if (story == null) return;
-        new AsyncTask<Void, Void, String>() {
+        new AsyncTask<Void, Void, StoryBody>() {
             @Override
-            protected String doInBackground(Void... arg) {
-                return FeedUtils.getStoryContent(story.storyHash);
+            protected StoryBody doInBackground(Void... arg) {
+                return FeedUtils.getStoryBody(story.storyHash);
             }
             @Override
-            protected void onPostExecute(String result) {
+            protected void onPostExecute(StoryBody result) {
                 if (result != null) {
                     ReadingItemFragment.this.storyContent = result;
                     reloadStoryContent();
@@ -510,7 +505,7 @@ public class ReadingItemFragment extends NbFragment implements ClassifierDialogF
         }.execute();
     }
 
-	private void setupWebview(String storyText) {
+	private void setupWebview(StoryBody body) {
         if (getActivity() == null) {
             // this method gets called by async UI bits that might hold stale fragment references with no assigned
             // activity.  If this happens, just abort the call.
@@ -518,83 +513,45 @@ public class ReadingItemFragment extends NbFragment implements ClassifierDialogF
         }
 
         synchronized (WEBVIEW_CONTENT_MUTEX) {
-            // this method might get called repeatedly despite no content change, which is expensive
-            int contentHash = storyText.hashCode();
-            if (this.contentHash == contentHash) return;
-            this.contentHash = contentHash;
-            
-            sniffAltTexts(storyText);
-
-            storyText = swapInOfflineImages(storyText);
-
-            float currentSize = PrefsUtils.getTextSize(getActivity());
-
-            StringBuilder builder = new StringBuilder();
-            builder.append("<html><head><meta name=\"viewport\" content=\"width=device-width, initial-scale=1, maximum-scale=1, minimum-scale=1, user-scalable=0\" />");
-            builder.append("<style style=\"text/css\">");
-            builder.append(String.format("body { font-size: %sem; } ", Float.toString(currentSize)));
-            builder.append("</style>");
-            builder.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"reading.css\" />");
-            if (PrefsUtils.isLightThemeSelected(getActivity())) {
-                builder.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"light_reading.css\" />");
-            } else {
-                builder.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"dark_reading.css\" />");
-            }
-            builder.append("</head><body><div class=\"NB-story\">");
-            builder.append(storyText);
-            builder.append("</div></body></html>");
+            // this method might get called repeatedly despite no content change, which is expensive.
+            // the hash and alt texts were worked out when the content was stored.
+            if (this.contentHash == body.contentHash) return;
+            this.contentHash = body.contentHash;
+            imageAltTexts = body.altTexts;
+
+            // offline images are served by the webview from the image cache, so no need to rewrite them here
+            String head = getWebviewHead(PrefsUtils.getTextSize(getActivity()), PrefsUtils.isLightThemeSelected(getActivity()));
+            StringBuilder builder = new StringBuilder(head.length() + body.html.length() + WEBVIEW_TAIL.length());
+            builder.append(head);
+            builder.append(body.html);
+            builder.append(WEBVIEW_TAIL);
             web.loadDataWithBaseURL("file:///android_asset/", builder.toString(), "text/html", "UTF-8", null);
         }
 	}
 
-    private static final Pattern altSniff1 = Pattern.compile("<img[^>]*src=(['\"])((?:(?!\\1).)*)\\1[^>]*alt=(['\"])((?:(?!\\3).)*)\\3[^>]*>", Pattern.CASE_INSENSITIVE);
-    private static final Pattern altSniff2 = Pattern.compile("<img[^>]*alt=(['\"])((?:(?!\\1).)*)\\1[^>]*src=(['\"])((?:(?!\\3).)*)\\3[^>]*>", Pattern.CASE_INSENSITIVE);
-    private static final Pattern altSniff3 = Pattern.compile("<img[^>]*src=(['\"])((?:(?!\\1).)*)\\1[^>]*title=(['\"])((?:(?!\\3).)*)\\3[^>]*>", Pattern.CASE_INSENSITIVE);
-    private static final Pattern altSniff4 = Pattern.compile("<img[^>]*title=(['\"])((?:(?!\\1).)*)\\1[^>]*src=(['\"])((?:(?!\\3).)*)\\3[^>]*>", Pattern.CASE_INSENSITIVE);
-
-    private void sniffAltTexts(String html) {
-        // Find images with alt tags and cache the text for use on long-press
-        //   NOTE: if doing this via regex has a smell, you have a good nose!  This method is far from perfect
-        //   and may miss valid cases or trucate tags, but it works for popular feeds (read: XKCD) and doesn't
-        //   require us to import a proper parser lib of hundreds of kilobytes just for this one feature.
-        imageAltTexts = new HashMap<String,String>();
-        // sniff for alts first
-        Matcher imgTagMatcher = altSniff1.matcher(html);
-        while (imgTagMatcher.find()) {
-            imageAltTexts.put(imgTagMatcher.group(2), imgTagMatcher.group(4));
-        }
-        imgTagMatcher = altSniff2.matcher(html);
-        while (imgTagMatcher.find()) {
-            imageAltTexts.put(imgTagMatcher.group(4), imgTagMatcher.group(2));
-        }
-        // then sniff for 'title' tags, so they will overwrite alts and take precedence
-        imgTagMatcher = altSniff3.matcher(html);
-        while (imgTagMatcher.find()) {
-            imageAltTexts.put(imgTagMatcher.group(2), imgTagMatcher.group(4));
-        }
-        imgTagMatcher = altSniff4.matcher(html);
-        while (imgTagMatcher.find()) {
-            imageAltTexts.put(imgTagMatcher.group(4), imgTagMatcher.group(2));
-        }
-
-        // while were are at it, create a place where we can later cache offline image remaps so that when
-        // we do an alt-text lookup, we can search for the right URL key.
-        imageUrlRemaps = new HashMap<String,String>();
-    }
-
-    private String swapInOfflineImages(String html) {
-        ImageCache cache = new ImageCache(getActivity());
-
-        Matcher imageTagMatcher = Pattern.compile("<img[^>]*(src\\s*=\\s*)\"([^\"]*)\"[^>]*>", Pattern.CASE_INSENSITIVE).matcher(html);
-        while (imageTagMatcher.find()) {
-            String url = imageTagMatcher.group(2);
-            String localPath = cache.getCachedLocation(url);
-            if (localPath == null) continue;
-            html = html.replace(imageTagMatcher.group(1)+"\""+url+"\"", "src=\""+localPath+"\"");
-            imageUrlRemaps.put(localPath, url);
+    private static final String WEBVIEW_TAIL = "</div></body></html>";
+    // the head only depends upon settings, so it is kept for the next story rather than rebuilt
+    private static String lastWebviewHead;
+    private static String lastWebviewHeadKey;
+
+    private static synchronized String getWebviewHead(float textSize, boolean lightTheme) {
+        String key = Float.toString(textSize) + lightTheme;
+        if (key.equals(lastWebviewHeadKey)) return lastWebviewHead;
+        StringBuilder builder = new StringBuilder();
+        builder.append("<html><head><meta name=\"viewport\" content=\"width=device-width, initial-scale=1, maximum-scale=1, minimum-scale=1, user-scalable=0\" />");
+        builder.append("<style style=\"text/css\">");
+        builder.append(String.format("body { font-size: %sem; } ", Float.toString(textSize)));
+        builder.append("</style>");
+        builder.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"reading.css\" />");
+        if (lightTheme) {
+            builder.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"light_reading.css\" />");
+        } else {
+            builder.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"dark_reading.css\" />");
         }
-
-        return html;
+        builder.append("</head><body><div class=\"NB-story\">");
+        lastWebviewHead = builder.toString();
+        lastWebviewHeadKey = key;
+        return lastWebviewHead;
     }
 
     /** We have pushed our desired content into the WebView. */
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.URLEncoder;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -44,6 +45,7 @@ import com.newsblur.serialization.BooleanTypeAdapter;
 import com.newsblur.serialization.ClassifierMapTypeAdapter;
 import com.newsblur.serialization.DateStringTypeAdapter;
 import com.newsblur.serialization.FeedListTypeAdapter;
+import com.newsblur.serialization.StoriesResponseStreamReader;
 import com.newsblur.serialization.StoryTypeAdapter;
 import com.newsblur.util.AppConstants;
 import com.newsblur.util.FeedSet;
@@ -63,20 +65,23 @@ public class APIManager {
 
 	private Context context;
 	private Gson gson;
+    private StoriesResponseStreamReader storiesStreamReader;
     private String customUserAgent;
 	private OkHttpClient httpClient;
 
 	public APIManager(final Context context) {
 		this.context = context;
 
+        StoryTypeAdapter storyTypeAdapter = new StoryTypeAdapter();
         this.gson = new GsonBuilder()
                 .registerTypeAdapter(Date.class, new DateStringTypeAdapter())
                 .registerTypeAdapter(Boolean.class, new BooleanTypeAdapter())
                 .registerTypeAdapter(boolean.class, new BooleanTypeAdapter())
-                .registerTypeAdapter(Story.class, new StoryTypeAdapter())
+                .registerTypeAdapter(Story.class, storyTypeAdapter)
                 .registerTypeAdapter(new TypeToken<List<Feed>>(){}.getType(), new FeedListTypeAdapter())
                 .registerTypeAdapter(new TypeToken<Map<String,Classifier>>(){}.getType(), new ClassifierMapTypeAdapter())
                 .create();
+        this.storiesStreamReader = new StoriesResponseStreamReader(gson, storyTypeAdapter);
 
         String appVersion = context.getSharedPreferences(PrefConstants.PREFERENCES, 0).getString(AppConstants.LAST_APP_VERSION, "unknown_version");
         this.customUserAgent =  "NewsBlur Android app" +
@@ -196,6 +201,15 @@ public class APIManager {
         return response.getResponse(gson, NewsBlurResponse.class);
     }
 
+    public NewsBlurResponse markStoriesAsRead(Collection<String> storyHashes) {
+        ValueMultimap values = new ValueMultimap();
+        for (String storyHash : storyHashes) {
+            values.put(APIConstants.PARAMETER_STORY_HASH, storyHash);
+        }
+        APIResponse response = post(APIConstants.URL_MARK_STORIES_READ, values);
+        return response.getResponse(gson, NewsBlurResponse.class);
+    }
+
 	public NewsBlurResponse markStoryAsStarred(String storyHash) {
 		ValueMultimap values = new ValueMultimap();
 		values.put(APIConstants.PARAMETER_STORY_HASH, storyHash);
@@ -288,6 +302,21 @@ public class APIManager {
         return (StoriesResponse) response.getResponse(gson, StoriesResponse.class);
     }
 
+    /**
+     * Like getStoriesByHash(), but the response is decoded incrementally off the wire and each
+     * story is given to the handler as soon as it is parsed. The returned response will have a
+     * null stories member.
+     */
+    public StoriesResponse getStoriesByHash(List<String> storyHashes, StoriesResponseStreamReader.StoryHandler handler) {
+		ValueMultimap values = new ValueMultimap();
+        for (String hash : storyHashes) {
+            values.put(APIConstants.PARAMETER_H, hash);
+        }
+        values.put(APIConstants.PARAMETER_INCLUDE_HIDDEN, APIConstants.VALUE_TRUE);
+        APIResponse response = getWithRetries(APIConstants.URL_RIVER_STORIES + "?" + values.getParameterString(), true);
+        return response.getStreamedStoriesResponse(storiesStreamReader, handler);
+    }
+
     /**
      * Fetches stories for the given FeedSet, choosing the correct API and the right
      * request parameters as needed.
@@ -399,20 +428,19 @@ public class APIManager {
     public FeedFolderResponse getFolderFeedMapping(boolean doUpdateCounts) {
 		ContentValues params = new ContentValues();
 		params.put(APIConstants.PARAMETER_UPDATE_COUNTS, (doUpdateCounts ? "true" : "false"));
-		APIResponse response = get(APIConstants.URL_FEEDS, params);
+        String url = APIConstants.URL_FEEDS + "?" + builderGetParametersString(params);
+
+		APIResponse response = getWithRetries(url, true);
 
 		if (response.isError()) {
             // we can't use the magic polymorphism of NewsBlurResponse because this result uses
-            // a custom parser below. let the caller know the action failed.
+            // a custom parser. let the caller know the action failed.
             return null;
         }
 
-		// note: this response is complex enough, we have to do a custom parse in the FFR
-        FeedFolderResponse result = new FeedFolderResponse(response.getResponseBody(), gson);
-        // bind a litle extra instrumentation to this response, since it powers the feedback link
-        result.connTime = response.connectTime;
-        result.readTime = response.readTime;
-        return result;
+		// note: this response is complex enough, we have to do a custom parse in the FFR. it also
+        // binds a litle extra instrumentation to the result, since that powers the feedback link
+        return response.getStreamedFeedFolderResponse(gson);
 	}
 
 	public NewsBlurResponse trainClassifier(String feedId, String key, int type, int action) {
@@ -581,16 +609,24 @@ public class APIManager {
     /* HTTP METHODS */
    
 	private APIResponse get(final String urlString) {
+        return getWithRetries(urlString, false);
+    }
+
+    /**
+     * Performs a GET with retries. If deferBody is set, the body of the result is left unread
+     * for streaming, and so only connection-level failures will trigger a retry.
+     */
+	private APIResponse getWithRetries(final String urlString, boolean deferBody) {
         APIResponse response;
         int tryCount = 0;
         do {
             backoffSleep(tryCount++);
-            response = get_single(urlString, HttpURLConnection.HTTP_OK);
+            response = get_single(urlString, HttpURLConnection.HTTP_OK, deferBody);
         } while ((response.isError()) && (tryCount < AppConstants.MAX_API_TRIES));
         return response;
     }
 
-	private APIResponse get_single(final String urlString, int expectedReturnCode) {
+	private APIResponse get_single(final String urlString, int expectedReturnCode, boolean deferBody) {
 		if (!NetworkUtils.isOnline(context)) {
 			return new APIResponse(context);
 		}
@@ -603,7 +639,7 @@ public class APIManager {
 		addCookieHeader(requestBuilder);
 		requestBuilder.header("User-Agent", this.customUserAgent);
 
-		return new APIResponse(context, httpClient, requestBuilder.build(), expectedReturnCode);
+		return new APIResponse(context, httpClient, requestBuilder.build(), expectedReturnCode, deferBody);
 	}
 
 	private void addCookieHeader(Request.Builder requestBuilder) {
@@ -1,6 +1,8 @@
 package com.newsblur.network;
 
+import java.io.FilterReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 
 import android.content.Context;
@@ -9,14 +11,18 @@ import android.util.Log;
 
 import com.google.gson.Gson;
 
+import com.newsblur.network.domain.FeedFolderResponse;
 import com.newsblur.network.domain.LoginResponse;
 import com.newsblur.network.domain.NewsBlurResponse;
 import com.newsblur.network.domain.RegisterResponse;
+import com.newsblur.network.domain.StoriesResponse;
+import com.newsblur.serialization.StoriesResponseStreamReader;
 import com.newsblur.util.AppConstants;
 
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 
 /**
  * A JSON-encoded response from the API servers.  This class encodes the possible outcomes of
@@ -30,6 +36,7 @@ public class APIResponse {
     private int responseCode;
 	private String cookie;
     private String responseBody;
+    private ResponseBody deferredBody;
     public long connectTime;
     public long readTime;
 
@@ -46,6 +53,14 @@ public class APIResponse {
      * info we might need.
      */
     public APIResponse(Context context, OkHttpClient httpClient, Request request, int expectedReturnCode) {
+        this(context, httpClient, request, expectedReturnCode, false);
+    }
+
+    /**
+     * Construct an online response.  If deferBody is set, the response body is left unread and
+     * open so that it may be consumed incrementally by one of the streaming getters.
+     */
+    public APIResponse(Context context, OkHttpClient httpClient, Request request, int expectedReturnCode, boolean deferBody) {
 
         try {
             long startTime = System.currentTimeMillis();
@@ -61,6 +76,11 @@ public class APIResponse {
 
             this.cookie = response.header("Set-Cookie");
 
+            if (deferBody) {
+                this.deferredBody = response.body();
+                return;
+            }
+
             try {
                 startTime = System.currentTimeMillis();
                 this.responseBody = response.body().string();
@@ -128,8 +148,74 @@ public class APIResponse {
             // otherwise, parse the response as the expected class and defer error detection
             // to the NewsBlurResponse parent class
             T response = gson.fromJson(this.responseBody, classOfT);
+            response.connTime = connectTime;
+            response.readTime = readTime;
+            return response;
+        }
+    }
+
+    /**
+     * Incrementally decodes a deferred stories response straight from the network stream, passing
+     * each story to the given handler as soon as it is parsed.  Only usable on a response that
+     * was constructed with deferBody set, and only once.
+     */
+    public StoriesResponse getStreamedStoriesResponse(StoriesResponseStreamReader streamReader, StoriesResponseStreamReader.StoryHandler handler) {
+        if ((this.isError) || (this.deferredBody == null)) {
+            StoriesResponse response = new StoriesResponse();
+            response.isProtocolError = true;
+            return response;
+        }
+        try {
+            // each story is handed off to be stored as soon as it is parsed, so only time spent
+            // blocked on the network counts as reading, not time spent in the handler
+            TimedReader in = new TimedReader(deferredBody.charStream());
+            StoriesResponse response = streamReader.read(in, handler);
+            readTime = in.getReadMillis();
+            response.connTime = connectTime;
+            response.readTime = readTime;
+            response.readChars = in.getCharCount();
+            if (AppConstants.VERBOSE_LOG_NET) {
+                Log.d(this.getClass().getName(), String.format("streamed %d stories in %dms to read %dB after %dms to connect", response.streamedStoryCount, readTime, response.readChars, connectTime));
+            }
+            return response;
+        } catch (Exception e) {
+            Log.e(this.getClass().getName(), e.getClass().getName() + " (" + e.getMessage() + ") streaming stories response", e);
+            this.isError = true;
+            StoriesResponse response = new StoriesResponse();
+            response.isProtocolError = true;
+            return response;
+        } finally {
+            deferredBody.close();
+            deferredBody = null;
+        }
+    }
+
+    /**
+     * Streaming binder for FeedFolderResponses, for use with a deferred body. Returns null on
+     * failure, like the regular path does.
+     */
+    public FeedFolderResponse getStreamedFeedFolderResponse(Gson gson) {
+        if ((this.isError) || (this.deferredBody == null)) return null;
+        try {
+            // the body is read as it is parsed, so split the time spent waiting on the network
+            // out of the parse time, to keep the two comparable with the old, read-then-parse path
+            TimedReader in = new TimedReader(deferredBody.charStream());
+            FeedFolderResponse response = new FeedFolderResponse(in, gson);
+            readTime = in.getReadMillis();
+            response.connTime = connectTime;
             response.readTime = readTime;
+            response.parseTime = Math.max(0L, response.parseTime - readTime);
+            if (AppConstants.VERBOSE_LOG_NET) {
+                Log.d(this.getClass().getName(), String.format("streamed feeds and folders in %dms and %dms to read after %dms to connect", response.parseTime, readTime, connectTime));
+            }
             return response;
+        } catch (Exception e) {
+            Log.e(this.getClass().getName(), e.getClass().getName() + " (" + e.getMessage() + ") streaming feeds and folders response", e);
+            this.isError = true;
+            return null;
+        } finally {
+            deferredBody.close();
+            deferredBody = null;
         }
     }
 
@@ -171,4 +257,49 @@ public class APIResponse {
         return this.cookie;
     }
 
+    /**
+     * A Reader that keeps track of how long its callers spend blocked reading from it, and of how
+     * much they read.
+     */
+    private static class TimedReader extends FilterReader {
+        private long readNanos = 0L;
+        private long charCount = 0L;
+
+        TimedReader(Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long startTime = System.nanoTime();
+            try {
+                int c = super.read();
+                if (c >= 0) charCount++;
+                return c;
+            } finally {
+                readNanos += System.nanoTime() - startTime;
+            }
+        }
+
+        @Override
+        public int read(char[] buf, int off, int len) throws IOException {
+            long startTime = System.nanoTime();
+            try {
+                int n = super.read(buf, off, len);
+                if (n > 0) charCount += n;
+                return n;
+            } finally {
+                readNanos += System.nanoTime() - startTime;
+            }
+        }
+
+        long getReadMillis() {
+            return readNanos / 1000000L;
+        }
+
+        long getCharCount() {
+            return charCount;
+        }
+    }
+
 }
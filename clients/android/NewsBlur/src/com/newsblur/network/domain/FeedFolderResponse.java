@@ -1,5 +1,7 @@
 package com.newsblur.network.domain;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -13,6 +15,8 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.newsblur.domain.Feed;
 import com.newsblur.domain.Folder;
 import com.newsblur.domain.SocialFeed;
@@ -36,6 +40,10 @@ public class FeedFolderResponse {
     public boolean isStaff;
 	public int starredCount;
 	
+    /**
+     * Builds a response from a JSON document by first parsing it into a full DOM. Kept around
+     * as a reference for the streaming parser, see FeedFolderParseTest.
+     */
 	public FeedFolderResponse(String json, Gson gson) {
         long startTime = System.currentTimeMillis();
 
@@ -151,4 +159,131 @@ public class FeedFolderResponse {
         folders.add(folder);
 	}
 
+    /**
+     * Builds a response in a single pass straight off the token stream, without ever building
+     * a DOM of the (potentially huge) document. Produces exactly the same result as the DOM
+     * parser.
+     */
+    public FeedFolderResponse(Reader in, Gson gson) throws IOException {
+        long startTime = System.currentTimeMillis();
+
+        folders = new HashSet<Folder>();
+        feeds = new HashSet<Feed>();
+        socialFeeds = new HashSet<SocialFeed>();
+        starredCounts = new HashSet<StarredCount>();
+
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            if (name.equals("authenticated")) {
+                this.isAuthenticated = gson.fromJson(reader, boolean.class);
+            } else if (name.equals("is_staff")) {
+                this.isStaff = gson.fromJson(reader, boolean.class);
+            } else if (name.equals("user_profile")) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("is_premium") && (reader.peek() != JsonToken.NULL)) {
+                        this.isPremium = gson.fromJson(reader, boolean.class);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals("starred_count")) {
+                starredCount = gson.fromJson(reader, int.class);
+            } else if (name.equals("folders")) {
+                // recursively parse folders
+                readFolderArray(reader, new ArrayList<String>(0), null, gson);
+            } else if (name.equals("feeds")) {
+                // same inconsistency as above: an object keyed by feed ID, or '[]' if there are no feeds
+                if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        reader.nextName();
+                        Feed feed = gson.fromJson(reader, Feed.class);
+                        feeds.add(feed);
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            } else if (name.equals("social_feeds")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    SocialFeed socialFeed = gson.fromJson(reader, SocialFeed.class);
+                    socialFeeds.add(socialFeed);
+                }
+                reader.endArray();
+            } else if (name.equals("starred_counts")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    StarredCount sc = gson.fromJson(reader, StarredCount.class);
+                    starredCounts.add(sc);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // see the DOM parser for why this is needed
+        Folder emptyRootFolder = new Folder();
+        emptyRootFolder.name = AppConstants.ROOT_FOLDER;
+        if (!folders.contains(emptyRootFolder)) {
+            folders.add(emptyRootFolder);
+            Log.d( this.getClass().getName(), "root folder was missing.  added it.");
+        } 
+
+        parseTime = System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Streaming counterpart to parseFolderArray. Expects the reader to be positioned at the
+     * start of the folder's array and leaves it just past the end of it.
+     */
+    private void readFolderArray(JsonReader reader, List<String> parentNames, String name, Gson gson) throws IOException {
+        if (name == null) name = AppConstants.ROOT_FOLDER;
+        List<String> children = new ArrayList<String>();
+        List<String> feedIds = new ArrayList<String>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            JsonToken token = reader.peek();
+            if ((token == JsonToken.NUMBER) || (token == JsonToken.STRING) || (token == JsonToken.BOOLEAN)) {
+                feedIds.add(gson.fromJson(reader, String.class));
+            } else if (token == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String nextName = reader.nextName();
+                    children.add(nextName);
+                    if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                        Log.w( this.getClass().getName(), "folder had malformed contents: " + nextName);
+                        reader.skipValue();
+                        continue;
+                    }
+                    List<String> appendedParentList = new ArrayList<String>(parentNames);
+                    appendedParentList.add(name);
+                    readFolderArray(reader, appendedParentList, nextName, gson);
+                }
+                reader.endObject();
+            } else {
+                Log.w( this.getClass().getName(), "folder had null or malformed child: " + name);
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+        Folder folder = new Folder();
+        folder.name = name;
+        folder.parents = parentNames;
+        folder.children = children;
+        folder.feedIds = feedIds;
+        folders.add(folder);
+    }
+
 }
@@ -15,7 +15,10 @@ public class NewsBlurResponse {
 	public int code;
     public String message;
 	public String[] errors;
+    public long connTime;
     public long readTime;
+    // the length of the body read off the network, in chars, if known
+    public long readChars = -1L;
 
     public boolean isError() {
         if (isProtocolError) return true;
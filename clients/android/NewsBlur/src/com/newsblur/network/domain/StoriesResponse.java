@@ -24,4 +24,8 @@ public class StoriesResponse extends NewsBlurResponse {
 	@SerializedName("feeds")
 	public List<Feed> feeds;
 
+    // when a response is streamed, stories are handed off as they are parsed rather than kept in
+    // the stories member. this notes how many were seen, or -1 if the stories member was missing
+    public transient int streamedStoryCount = -1;
+
 }
@@ -0,0 +1,85 @@
+package com.newsblur.serialization;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import com.newsblur.domain.Classifier;
+import com.newsblur.domain.Feed;
+import com.newsblur.domain.Story;
+import com.newsblur.domain.UserProfile;
+import com.newsblur.network.domain.StoriesResponse;
+
+/**
+ * An incremental decoder for story responses. Rather than binding the whole response body
+ * at once, stories are pulled off the token stream one at a time and handed to a StoryHandler
+ * as soon as each is complete, so that neither the full body nor the full set of stories is
+ * ever held in memory.
+ *
+ * The StoriesResponse returned will carry all the usual metadata (users, feeds, classifiers,
+ * error fields) but a null stories member, since those were given to the handler instead.
+ */
+public class StoriesResponseStreamReader {
+
+    public interface StoryHandler {
+        void onStory(Story story);
+    }
+
+    private final Gson gson;
+    private final StoryTypeAdapter storyTypeAdapter;
+
+    public StoriesResponseStreamReader(Gson gson, StoryTypeAdapter storyTypeAdapter) {
+        this.gson = gson;
+        this.storyTypeAdapter = storyTypeAdapter;
+    }
+
+    public StoriesResponse read(Reader in, StoryHandler handler) throws IOException, JsonParseException {
+        StoriesResponse response = new StoriesResponse();
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            if (name.equals("stories")) {
+                response.streamedStoryCount = 0;
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Story story = storyTypeAdapter.read(reader);
+                    response.streamedStoryCount++;
+                    handler.onStory(story);
+                }
+                reader.endArray();
+            } else if (name.equals("user_profiles")) {
+                response.users = gson.fromJson(reader, UserProfile[].class);
+            } else if (name.equals("classifiers")) {
+                response.classifiers = gson.fromJson(reader, new TypeToken<Map<String,Classifier>>(){}.getType());
+            } else if (name.equals("feeds")) {
+                response.feeds = gson.fromJson(reader, new TypeToken<List<Feed>>(){}.getType());
+            } else if (name.equals("authenticated")) {
+                response.authenticated = gson.fromJson(reader, boolean.class);
+            } else if (name.equals("code")) {
+                response.code = reader.nextInt();
+            } else if (name.equals("message")) {
+                response.message = reader.nextString();
+            } else if (name.equals("errors")) {
+                response.errors = gson.fromJson(reader, String[].class);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return response;
+    }
+
+}
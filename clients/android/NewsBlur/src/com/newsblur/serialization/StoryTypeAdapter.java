@@ -6,7 +6,9 @@ import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
 import com.newsblur.domain.Story;
+import com.newsblur.util.StoryUtils;
 
 import java.lang.reflect.Type;
 import java.util.Date;
@@ -37,7 +39,21 @@ public class StoryTypeAdapter implements JsonDeserializer<Story> {
     @Override
     public Story deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
         Story story = gson.fromJson(jsonElement, Story.class);
+        finishStory(story);
+        return story;
+    }
+
+    /**
+     * Reads a single story directly from a token stream, without first building a JsonElement
+     * tree for it. The reader must be positioned at the start of a story object.
+     */
+    public Story read(JsonReader reader) throws JsonParseException {
+        Story story = gson.fromJson(reader, Story.class);
+        finishStory(story);
+        return story;
+    }
 
+    private void finishStory(Story story) {
         // Convert story_timestamp to milliseconds
         story.timestamp = story.timestamp * 1000;
         
@@ -49,8 +65,10 @@ public class StoryTypeAdapter implements JsonDeserializer<Story> {
             story.shortContent = parsed.subSequence(0, length).toString();
             Matcher m = ShortContentExcludes .matcher(story.shortContent);
             story.shortContent = m.replaceAll(" ").trim();
+
+            // scanning the body for these is slow enough to not want to do it every time the story is shown
+            story.contentAltTexts = StoryUtils.sniffAltTexts(story.content);
+            story.contentHash = story.content.hashCode();
         }
-        
-        return story;
     }
 }
@@ -24,7 +24,9 @@ public class CleanupService extends SubService {
         if (!PrefsUtils.isKeepOldStories(parent)) {
             parent.dbHelper.cleanupReadStories();
         }
-        parent.dbHelper.cleanupStoryText();
+        parent.dbHelper.cleanupStoryContent();
+        parent.dbHelper.cleanupSocialData();
+        parent.dbHelper.optimizeSearchIndex();
         ImageCache imageCache = new ImageCache(parent);
         imageCache.cleanup(parent.dbHelper.getAllStoryImages());
 
@@ -1,14 +1,27 @@
 package com.newsblur.service;
 
+import android.net.Uri;
 import android.util.Log;
 
 import com.newsblur.util.AppConstants;
+import com.newsblur.util.BatchSizer;
 import com.newsblur.util.ImageCache;
 import com.newsblur.util.PrefsUtils;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ImagePrefetchService extends SubService {
 
@@ -20,6 +33,13 @@ public class ImagePrefetchService extends SubService {
     static Set<String> ImageQueue;
     static { ImageQueue = Collections.synchronizedSet(new HashSet<String>()); }
 
+    private static final BatchSizer batchSizer = new BatchSizer("image prefetch",
+                                                                AppConstants.IMAGE_PREFETCH_BATCH_SIZE_MIN,
+                                                                AppConstants.IMAGE_PREFETCH_BATCH_SIZE,
+                                                                AppConstants.IMAGE_PREFETCH_BATCH_SIZE_MAX,
+                                                                AppConstants.IMAGE_PREFETCH_BATCH_TARGET_MILLIS,
+                                                                AppConstants.IMAGE_PREFETCH_BATCH_MAX_BYTES);
+
     public ImagePrefetchService(NBSyncService parent) {
         super(parent);
         imageCache = new ImageCache(parent);
@@ -33,36 +53,121 @@ public class ImagePrefetchService extends SubService {
 
         gotWork();
 
-        while (ImageQueue.size() > 0) {
-            if (! PrefsUtils.isImagePrefetchEnabled(parent)) return;
-            if (! PrefsUtils.isBackgroundNetworkAllowed(parent)) return;
-
-            startExpensiveCycle();
-            // on each batch, re-query the DB for images associated with yet-unread stories
-            // this is a bit expensive, but we are running totally async at a really low priority
-            Set<String> unreadImages = parent.dbHelper.getAllStoryImages();
-            Set<String> fetchedImages = new HashSet<String>();
-            Set<String> batch = new HashSet<String>(AppConstants.IMAGE_PREFETCH_BATCH_SIZE);
-            batchloop: for (String url : ImageQueue) {
-                batch.add(url);
-                if (batch.size() >= AppConstants.IMAGE_PREFETCH_BATCH_SIZE) break batchloop;
-            }
-            try {
-                for (String url : batch) {
-                    if (parent.stopSync()) return;
-                    // dont fetch the image if the associated story was marked read before we got to it
-                    if (unreadImages.contains(url)) {
-                        if (AppConstants.VERBOSE_LOG) Log.d(this.getClass().getName(), "prefetching image: " + url);
-                        imageCache.cacheImage(url);
+        ExecutorService fetchers = Executors.newFixedThreadPool(AppConstants.IMAGE_PREFETCH_PARALLELISM);
+        try {
+            while (ImageQueue.size() > 0) {
+                if (! PrefsUtils.isImagePrefetchEnabled(parent)) return;
+                if (! PrefsUtils.isBackgroundNetworkAllowed(parent)) return;
+                // don't be evil and download images if the user is low on storage
+                if (imageCache.isLowOnStorage()) {
+                    Log.w(this.getClass().getName(), "device low on storage, not caching images");
+                    return;
+                }
+
+                startExpensiveCycle();
+                int batchSize = batchSizer.getBatchSize();
+                Set<String> batch = new HashSet<String>(batchSize);
+                synchronized (ImageQueue) {
+                    batchloop: for (String url : ImageQueue) {
+                        batch.add(url);
+                        if (batch.size() >= batchSize) break batchloop;
                     }
-                    fetchedImages.add(url);
                 }
-            } finally {
-                ImageQueue.removeAll(fetchedImages);
+                // on each batch, re-check with the DB which of these images are still in yet-unread stories
+                Set<String> unreadImages = parent.dbHelper.getUnreadStoryImages(batch);
+                // dont fetch the image if the associated story was marked read before we got to it
+                for (String url : batch) {
+                    if (!unreadImages.contains(url)) ImageQueue.remove(url);
+                }
+                fetchBatch(fetchers, unreadImages);
                 gotWork();
+                if (parent.stopSync()) return;
             }
+        } finally {
+            fetchers.shutdown();
         }
-        
+    }
+
+    /**
+     * Fetches a batch of images a few at a time. Images from the same host are fetched one after
+     * another by the same worker, so they can share a connection, and so no host is hit by more
+     * than a couple of workers at once.
+     */
+    private void fetchBatch(ExecutorService fetchers, Set<String> urls) {
+        final AtomicInteger fetchCount = new AtomicInteger(0);
+        final AtomicLong fetchBytes = new AtomicLong(0L);
+        final AtomicBoolean fetchFailed = new AtomicBoolean(false);
+        long startTime = System.currentTimeMillis();
+
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (final List<String> run : groupByHost(urls)) {
+            results.add(fetchers.submit(new Runnable() {
+                public void run() {
+                    for (String url : run) {
+                        if (parent.stopSync()) return;
+                        if (AppConstants.VERBOSE_LOG) Log.d(ImagePrefetchService.class.getName(), "prefetching image: " + url);
+                        long size = imageCache.cacheImage(url);
+                        if (size < 0L) {
+                            fetchFailed.set(true);
+                        } else if (size > 0L) {
+                            fetchCount.incrementAndGet();
+                            fetchBytes.addAndGet(size);
+                        }
+                        // the queue doubles as the progress count, so take images off it as they finish
+                        ImageQueue.remove(url);
+                    }
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException ee) {
+                Log.e(this.getClass().getName(), "error prefetching images", ee.getCause());
+                fetchFailed.set(true);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        // batches of images that were all already cached say nothing about the network
+        if (fetchFailed.get()) {
+            batchSizer.recordFailure();
+        } else if (fetchCount.get() > 0) {
+            batchSizer.recordSuccess(fetchCount.get(), 0L, System.currentTimeMillis() - startTime, fetchBytes.get());
+        }
+    }
+
+    /**
+     * Splits URLs into runs to be fetched in sequence, with each host's URLs spread over at most
+     * IMAGE_PREFETCH_MAX_PER_HOST runs.
+     */
+    private static List<List<String>> groupByHost(Set<String> urls) {
+        Map<String,List<List<String>>> hostRuns = new HashMap<String,List<List<String>>>();
+        Map<String,Integer> hostCounts = new HashMap<String,Integer>();
+        List<List<String>> runs = new ArrayList<List<String>>();
+        for (String url : urls) {
+            String host = Uri.parse(url).getHost();
+            if (host == null) host = "";
+            List<List<String>> thisHostRuns = hostRuns.get(host);
+            if (thisHostRuns == null) {
+                thisHostRuns = new ArrayList<List<String>>(AppConstants.IMAGE_PREFETCH_MAX_PER_HOST);
+                hostRuns.put(host, thisHostRuns);
+                hostCounts.put(host, 0);
+            }
+            int count = hostCounts.get(host);
+            hostCounts.put(host, count + 1);
+            // deal the host's URLs out round-robin, starting a new run until the host has its max
+            int runIndex = count % AppConstants.IMAGE_PREFETCH_MAX_PER_HOST;
+            if (runIndex >= thisHostRuns.size()) {
+                List<String> run = new ArrayList<String>();
+                thisHostRuns.add(run);
+                runs.add(run);
+            }
+            thisHostRuns.get(runIndex).add(url);
+        }
+        return runs;
     }
 
     public void addUrl(String url) {
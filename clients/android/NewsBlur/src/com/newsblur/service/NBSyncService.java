@@ -38,6 +38,7 @@ import com.newsblur.util.StateFilter;
 import com.newsblur.util.StoryOrder;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -306,56 +307,97 @@ public class NBSyncService extends Service {
         if (stopSync()) return;
         if (backoffBackgroundCalls()) return;
 
+        // read the whole queue up front rather than holding a cursor open across API calls
+        List<String> ids = new ArrayList<String>();
+        List<ReadingAction> actions = new ArrayList<ReadingAction>();
         Cursor c = null;
         try {
             c = dbHelper.getActions(false);
-            lastActionCount = c.getCount();
-            if (lastActionCount < 1) return;
-
-            ActionsRunning = true;
-
-            actionsloop : while (c.moveToNext()) {
-                NbActivity.updateAllActivities(NbActivity.UPDATE_STATUS);
+            while (c.moveToNext()) {
                 String id = c.getString(c.getColumnIndexOrThrow(DatabaseConstants.ACTION_ID));
-                ReadingAction ra;
                 try {
-                    ra = ReadingAction.fromCursor(c);
+                    actions.add(ReadingAction.fromCursor(c));
+                    ids.add(id);
                 } catch (IllegalArgumentException e) {
                     Log.e(this.getClass().getName(), "error unfreezing ReadingAction", e);
                     dbHelper.clearAction(id);
-                    continue actionsloop;
                 }
-                    
-                if (AppConstants.VERBOSE_LOG) Log.d(this.getClass().getName(), "doing action: " + ra.toContentValues().toString());
-                NewsBlurResponse response = ra.doRemote(apiManager);
+            }
+        } finally {
+            closeQuietly(c);
+        }
+        lastActionCount = actions.size();
+        if (lastActionCount < 1) return;
 
-                if (response == null) {
-                    Log.e(this.getClass().getName(), "Discarding reading action with client-side error.");
-                    dbHelper.clearAction(id);
-                } else if (response.isProtocolError) {
-                    // the network failed or we got a non-200, so be sure we retry
-                    Log.i(this.getClass().getName(), "Holding reading action with server-side or network error.");
-                    noteHardAPIFailure();
-                    continue actionsloop;
-                } else if (response.isError()) {
-                    Log.e(this.getClass().getName(), "Discarding reading action with user error.");
-                    dbHelper.clearAction(id);
-                    String message = response.getErrorMessage(null);
-                    if (message != null) NbActivity.toastError(message);
-                } else {
-                    // success!
-                    dbHelper.clearAction(id);
-                    FollowupActions.add(ra);
+        try {
+            ActionsRunning = true;
+
+            // marking single stories read is by far the most common action, and the API takes
+            // many stories per call. no other kind of queued action can undo one (the DB only
+            // keeps the last read state change per story), so they can be sent ahead of the rest.
+            List<String> batchIds = new ArrayList<String>(AppConstants.MARK_READ_BATCH_SIZE);
+            List<ReadingAction> batch = new ArrayList<ReadingAction>(AppConstants.MARK_READ_BATCH_SIZE);
+            for (int i=0; i<actions.size(); i++) {
+                if (actions.get(i).getMarkReadStoryHash() == null) continue;
+                batchIds.add(ids.get(i));
+                batch.add(actions.get(i));
+                if (batch.size() >= AppConstants.MARK_READ_BATCH_SIZE) {
+                    doRemoteActions(batchIds, batch);
+                    batchIds.clear();
+                    batch.clear();
                 }
-                lastActionCount--;
+            }
+            if (batch.size() > 0) doRemoteActions(batchIds, batch);
+
+            // everything else goes one at a time, in the order it was done
+            for (int i=0; i<actions.size(); i++) {
+                if (actions.get(i).getMarkReadStoryHash() != null) continue;
+                doRemoteActions(Collections.singletonList(ids.get(i)), Collections.singletonList(actions.get(i)));
             }
         } finally {
-            closeQuietly(c);
             ActionsRunning = false;
             NbActivity.updateAllActivities(NbActivity.UPDATE_STATUS);
         }
     }
 
+    /**
+     * Does either a single queued action or a batch of single-story mark-reads remotely, and
+     * then clears, holds or discards them all based upon the response.
+     */
+    private void doRemoteActions(List<String> ids, List<ReadingAction> actions) {
+        NbActivity.updateAllActivities(NbActivity.UPDATE_STATUS);
+        NewsBlurResponse response;
+        if (actions.size() == 1) {
+            if (AppConstants.VERBOSE_LOG) Log.d(this.getClass().getName(), "doing action: " + actions.get(0).toContentValues().toString());
+            response = actions.get(0).doRemote(apiManager, dbHelper);
+        } else {
+            List<String> hashes = new ArrayList<String>(actions.size());
+            for (ReadingAction ra : actions) hashes.add(ra.getMarkReadStoryHash());
+            if (AppConstants.VERBOSE_LOG) Log.d(this.getClass().getName(), "marking stories read in a batch of " + hashes.size());
+            response = apiManager.markStoriesAsRead(hashes);
+        }
+
+        if (response == null) {
+            Log.e(this.getClass().getName(), "Discarding reading action with client-side error.");
+            dbHelper.clearActions(ids);
+        } else if (response.isProtocolError) {
+            // the network failed or we got a non-200, so be sure we retry
+            Log.i(this.getClass().getName(), "Holding reading action with server-side or network error.");
+            noteHardAPIFailure();
+            return;
+        } else if (response.isError()) {
+            Log.e(this.getClass().getName(), "Discarding reading action with user error.");
+            dbHelper.clearActions(ids);
+            String message = response.getErrorMessage(null);
+            if (message != null) NbActivity.toastError(message);
+        } else {
+            // success!
+            dbHelper.clearActions(ids);
+            FollowupActions.addAll(actions);
+        }
+        lastActionCount -= actions.size();
+    }
+
     /**
      * Some actions have a final, local step after being done remotely to ensure in-flight
      * API actions didn't race-overwrite them.  Do these, and then clean up the DB.
@@ -406,6 +448,8 @@ public class NBSyncService extends Service {
         Set<String> debugFeedIdsFromFolders = new HashSet<String>();
         Set<String> debugFeedIdsFromFeeds = new HashSet<String>();
         orphanFeedIds = new HashSet<String>();
+        // only ask the UI to reload metadata if this sync actually changed any
+        boolean metadataChanged = false;
 
         try {
             FeedFolderResponse feedResponse = apiManager.getFolderFeedMapping(true);
@@ -504,7 +548,7 @@ public class NBSyncService extends Service {
             totalStarred.tag = StarredCount.TOTAL_STARRED;
             starredCountValues.add(totalStarred.getValues());
 
-            dbHelper.setFeedsFolders(folderValues, feedValues, socialFeedValues, starredCountValues);
+            metadataChanged = dbHelper.updateFeedsFolders(folderValues, feedValues, socialFeedValues, starredCountValues);
 
             lastFFWriteMillis = System.currentTimeMillis() - startTime;
             lastFeedCount = feedValues.size();
@@ -515,7 +559,7 @@ public class NBSyncService extends Service {
 
         } finally {
             FFSyncRunning = false;
-            NbActivity.updateAllActivities(NbActivity.UPDATE_METADATA | NbActivity.UPDATE_STATUS);
+            NbActivity.updateAllActivities(metadataChanged ? (NbActivity.UPDATE_METADATA | NbActivity.UPDATE_STATUS) : NbActivity.UPDATE_STATUS);
         }
 
     }
@@ -555,7 +599,7 @@ public class NBSyncService extends Service {
                 if (stopSync()) return;
                 Set<String> apiIds = new HashSet<String>();
                 for (FeedSet fs : RecountCandidates) {
-                    apiIds.addAll(fs.getFlatFeedIds());
+                    apiIds.addAll(dbHelper.getApiFeedSet(fs).getFlatFeedIds());
                 }
 
                 // if any reading activities are pending, it makes no sense to recount yet
@@ -651,7 +695,7 @@ public class NBSyncService extends Service {
                 NbActivity.updateAllActivities(NbActivity.UPDATE_STATUS);
 
                 pageNumber++;
-                StoriesResponse apiResponse = apiManager.getStories(fs, pageNumber, order, filter);
+                StoriesResponse apiResponse = apiManager.getStories(dbHelper.getApiFeedSet(fs), pageNumber, order, filter);
             
                 if (! isStoryResponseGood(apiResponse)) return;
 
@@ -741,11 +785,7 @@ public class NBSyncService extends Service {
             }
         }
 
-        dbHelper.insertStories(apiResponse, true);
-    }
-
-    void insertStories(StoriesResponse apiResponse) {
-        dbHelper.insertStories(apiResponse, false);
+        dbHelper.insertStories(apiResponse, fs);
     }
 
     void incrementRunningChild() {
@@ -937,7 +977,7 @@ public class NBSyncService extends Service {
         if (fs == null) return;
         // if this is a special feedset (read, saved, global shared, etc) that doesn't represent a
         // countable set of stories, don't bother recounting it
-        if (fs.getFlatFeedIds().size() < 1) return;
+        if ((!fs.isFolder()) && (fs.getFlatFeedIds().size() < 1)) return;
         RecountCandidates.add(fs);
     }
 
@@ -5,6 +5,7 @@ import android.util.Log;
 import com.newsblur.activity.NbActivity;
 import com.newsblur.network.domain.StoryTextResponse;
 import com.newsblur.util.AppConstants;
+import com.newsblur.util.BatchSizer;
 import com.newsblur.util.FeedUtils;
 
 import java.util.HashSet;
@@ -21,6 +22,13 @@ public class OriginalTextService extends SubService {
     private static Set<String> PriorityHashes;
     static {PriorityHashes = new HashSet<String>();}
 
+    private static final BatchSizer batchSizer = new BatchSizer("original text",
+                                                                AppConstants.TEXT_FETCH_BATCH_SIZE_MIN,
+                                                                AppConstants.TEXT_FETCH_BATCH_SIZE,
+                                                                AppConstants.TEXT_FETCH_BATCH_SIZE_MAX,
+                                                                AppConstants.TEXT_FETCH_BATCH_TARGET_MILLIS,
+                                                                0L);
+
     public OriginalTextService(NBSyncService parent) {
         super(parent);
     }
@@ -37,22 +45,37 @@ public class OriginalTextService extends SubService {
 
     private void fetchBatch(Set<String> hashes) {
         Set<String> fetchedHashes = new HashSet<String>();
-        Set<String> batch = new HashSet<String>(AppConstants.IMAGE_PREFETCH_BATCH_SIZE);
+        int batchSize = batchSizer.getBatchSize();
+        Set<String> batch = new HashSet<String>(batchSize);
         batchloop: for (String hash : hashes) {
             batch.add(hash);
-            if (batch.size() >= AppConstants.IMAGE_PREFETCH_BATCH_SIZE) break batchloop;
+            if (batch.size() >= batchSize) break batchloop;
         }
+        long connTime = 0L;
+        long readTime = 0L;
+        boolean fetchFailed = false;
         try {
             fetchloop: for (String hash : batch) {
                 if (parent.stopSync()) return;
                 String result = "";
                 StoryTextResponse response = parent.apiManager.getStoryText(FeedUtils.inferFeedId(hash), hash);
+                if ((response == null) || (response.isProtocolError)) {
+                    fetchFailed = true;
+                } else {
+                    connTime += response.connTime;
+                    readTime += response.readTime;
+                }
                 if ((response != null) && (response.originalText != null)) {
                     result = response.originalText;
                 }
                 parent.dbHelper.putStoryText(hash, result);
                 fetchedHashes.add(hash);
             }
+            if (fetchFailed) {
+                batchSizer.recordFailure();
+            } else {
+                batchSizer.recordSuccess(batch.size(), connTime, readTime, -1L);
+            }
         } finally {
             gotData(NbActivity.UPDATE_TEXT);
             hashes.removeAll(fetchedHashes);
@@ -2,10 +2,13 @@ package com.newsblur.service;
 
 import android.util.Log;
 
+import com.newsblur.database.StoryIngester;
 import com.newsblur.domain.Story;
 import com.newsblur.network.domain.StoriesResponse;
 import com.newsblur.network.domain.UnreadStoryHashesResponse;
+import com.newsblur.serialization.StoriesResponseStreamReader;
 import com.newsblur.util.AppConstants;
+import com.newsblur.util.BatchSizer;
 import com.newsblur.util.DefaultFeedView;
 import com.newsblur.util.PrefsUtils;
 import com.newsblur.util.StoryOrder;
@@ -17,6 +20,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class UnreadsService extends SubService {
 
@@ -27,6 +35,15 @@ public class UnreadsService extends SubService {
     /** Unread story hashes the API listed that we do not appear to have locally yet. */
     private static List<String> StoryHashQueue;
     static { StoryHashQueue = new ArrayList<String>(); }
+    /** The number of hashes taken off the queue that are being fetched right now. */
+    private static volatile int InFlightCount = 0;
+
+    private static final BatchSizer batchSizer = new BatchSizer("unreads",
+                                                                AppConstants.UNREAD_FETCH_BATCH_SIZE_MIN,
+                                                                AppConstants.UNREAD_FETCH_BATCH_SIZE,
+                                                                AppConstants.UNREAD_FETCH_BATCH_SIZE_MAX,
+                                                                AppConstants.UNREAD_FETCH_BATCH_TARGET_MILLIS,
+                                                                0L);
 
     public UnreadsService(NBSyncService parent) {
         super(parent);
@@ -110,46 +127,132 @@ public class UnreadsService extends SubService {
         if (parent.stopSync()) return;
 
         // any stories that we previously thought to be unread but were not found in the
-        // list, mark them read now
-        parent.dbHelper.markStoryHashesRead(oldUnreadHashes);
+        // list, mark them read now. the feeds they were in may now need their counts reconciled
+        NBSyncService.addRecountCandidates(parent.dbHelper.markStoryHashesRead(oldUnreadHashes));
     }
 
+    /**
+     * Fetches the queued unread stories in batches, keeping a few batches in flight at once so
+     * that one batch's round trip overlaps with the parsing and DB writes of the others. Each
+     * batch is streamed straight into its own StoryIngester, whose short write transactions
+     * interleave on the DB lock, so memory use grows with the number of batches in flight but
+     * not with their size. Fewer batches are sent at once when memory is tight.
+     */
     private void getNewUnreadStories() {
-        int totalCount = StoryHashQueue.size();
-        unreadsyncloop: while (StoryHashQueue.size() > 0) {
-            if (parent.stopSync()) return;
-            if(!PrefsUtils.isOfflineEnabled(parent)) return;
-            gotWork();
-            startExpensiveCycle();
+        ExecutorService fetchers = Executors.newFixedThreadPool(AppConstants.UNREAD_FETCH_MAX_IN_FLIGHT);
+        // batches in the order they were sent, each with the future of its result
+        List<List<String>> inFlight = new ArrayList<List<String>>(AppConstants.UNREAD_FETCH_MAX_IN_FLIGHT);
+        List<Future<Boolean>> inFlightResults = new ArrayList<Future<Boolean>>(AppConstants.UNREAD_FETCH_MAX_IN_FLIGHT);
+        try {
+            unreadsyncloop: while ((StoryHashQueue.size() > 0) || (inFlight.size() > 0)) {
+                // top up the pipeline, unless we have been asked to stop, in which case let it drain
+                boolean stopping = (parent.stopSync() || !PrefsUtils.isOfflineEnabled(parent));
+                while ((!stopping) && (StoryHashQueue.size() > 0) && (inFlight.size() < getMaxInFlight())) {
+                    gotWork();
+                    startExpensiveCycle();
+                    // take the batch off the front of the queue in one go. it goes back if the fetch fails.
+                    List<String> queueHead = StoryHashQueue.subList(0, Math.min(batchSizer.getBatchSize(), StoryHashQueue.size()));
+                    final List<String> hashBatch = new ArrayList<String>(queueHead);
+                    queueHead.clear();
+                    InFlightCount += hashBatch.size();
+                    inFlight.add(hashBatch);
+                    inFlightResults.add(fetchers.submit(new Callable<Boolean>() {
+                        public Boolean call() {
+                            return fetchBatch(hashBatch);
+                        }
+                    }));
+                }
+                if (inFlight.size() < 1) return;
 
-            List<String> hashBatch = new ArrayList(AppConstants.UNREAD_FETCH_BATCH_SIZE);
-            batchloop: for (String hash : StoryHashQueue) {
-                hashBatch.add(hash);
-                if (hashBatch.size() >= AppConstants.UNREAD_FETCH_BATCH_SIZE) break batchloop;
-            }
-            StoriesResponse response = parent.apiManager.getStoriesByHash(hashBatch);
-            if (! isStoryResponseGood(response)) {
-                Log.e(this.getClass().getName(), "error fetching unreads batch, abandoning sync.");
-                break unreadsyncloop;
-            }
-            parent.insertStories(response);
-            for (String hash : hashBatch) {
-                StoryHashQueue.remove(hash);
-            } 
-
-            for (Story story : response.stories) {
-                if (story.imageUrls != null) {
-                    for (String url : story.imageUrls) {
-                        parent.imagePrefetchService.addUrl(url);
+                // wait on the oldest batch, so that stories land in about the order they were sorted
+                List<String> hashBatch = inFlight.remove(0);
+                boolean responseGood = awaitBatch(inFlightResults.remove(0));
+                InFlightCount -= hashBatch.size();
+                if (! responseGood) {
+                    Log.e(this.getClass().getName(), "error fetching unreads batch, abandoning sync.");
+                    // let the rest finish, then put back any batches that didn't make it so the next sync gets them
+                    List<String> unfetched = new ArrayList<String>(hashBatch);
+                    for (int i=0; i<inFlight.size(); i++) {
+                        if (!awaitBatch(inFlightResults.get(i))) unfetched.addAll(inFlight.get(i));
                     }
+                    inFlight.clear();
+                    inFlightResults.clear();
+                    InFlightCount = 0;
+                    StoryHashQueue.addAll(0, unfetched);
+                    break unreadsyncloop;
                 }
-                DefaultFeedView mode = PrefsUtils.getDefaultFeedViewForFeed(parent, story.feedId);
-                if (mode == DefaultFeedView.TEXT) {
-                    parent.originalTextService.addHash(story.storyHash);
+
+                parent.originalTextService.start(startId);
+                parent.imagePrefetchService.start(startId);
+            }
+        } finally {
+            fetchers.shutdown();
+        }
+    }
+
+    /**
+     * Fetches and stores one batch of stories. Runs on a fetcher thread.
+     *
+     * @return true if the whole batch was fetched.
+     */
+    private boolean fetchBatch(List<String> hashBatch) {
+        // stories are written to the DB and queued for prefetch as soon as each is parsed off
+        // the wire, so the whole batch is never held in memory at once
+        final StoryIngester ingester = parent.dbHelper.newStoryIngester(null);
+        try {
+            StoriesResponse response = parent.apiManager.getStoriesByHash(hashBatch, new StoriesResponseStreamReader.StoryHandler() {
+                public void onStory(Story story) {
+                    ingester.add(story);
+                    queuePrefetch(story);
                 }
+            });
+            if (!isStoryResponseGood(response)) {
+                batchSizer.recordFailure();
+                return false;
             }
-            parent.originalTextService.start(startId);
-            parent.imagePrefetchService.start(startId);
+            batchSizer.recordSuccess(hashBatch.size(), response.connTime, response.readTime, response.readChars);
+            ingester.addUsers(response.users);
+            ingester.addFeeds(response.feeds);
+            ingester.addClassifiers(response.classifiers);
+            return true;
+        } finally {
+            ingester.finish();
+        }
+    }
+
+    private boolean awaitBatch(Future<Boolean> result) {
+        try {
+            return result.get();
+        } catch (ExecutionException ee) {
+            Log.e(this.getClass().getName(), "error fetching unreads batch", ee.getCause());
+            return false;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * How many batches may be in flight at once, given how much memory we have to work with.
+     */
+    private int getMaxInFlight() {
+        if (NBSyncService.isMemoryLow()) return 1;
+        Runtime runtime = Runtime.getRuntime();
+        long headroom = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        if (headroom < AppConstants.UNREAD_FETCH_MIN_HEAP_HEADROOM) return 1;
+        return AppConstants.UNREAD_FETCH_MAX_IN_FLIGHT;
+    }
+
+    // called from several fetcher threads at once, and the prefetch queues aren't all thread-safe
+    private synchronized void queuePrefetch(Story story) {
+        if (story.imageUrls != null) {
+            for (String url : story.imageUrls) {
+                parent.imagePrefetchService.addUrl(url);
+            }
+        }
+        DefaultFeedView mode = PrefsUtils.getDefaultFeedViewForFeed(parent, story.feedId);
+        if (mode == DefaultFeedView.TEXT) {
+            parent.originalTextService.addHash(story.storyHash);
         }
     }
 
@@ -158,7 +261,11 @@ public class UnreadsService extends SubService {
             Log.e(this.getClass().getName(), "Null response received while loading stories.");
             return false;
         }
-        if (response.stories == null) {
+        if (response.isProtocolError) {
+            Log.e(this.getClass().getName(), "Protocol error received while loading stories.");
+            return false;
+        }
+        if (response.streamedStoryCount < 0) {
             Log.e(this.getClass().getName(), "Null stories member received while loading stories.");
             return false;
         }
@@ -173,7 +280,7 @@ public class UnreadsService extends SubService {
      * Describe the number of unreads left to be synced or return an empty message (space padded).
      */
     public static String getPendingCount() {
-        int c = StoryHashQueue.size();
+        int c = StoryHashQueue.size() + InFlightCount;
         if (c < 1) {
             return " ";
         } else {
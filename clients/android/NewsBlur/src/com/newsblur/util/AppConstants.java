@@ -8,6 +8,10 @@ public class AppConstants {
     public static final boolean VERBOSE_LOG = true;
     public static final boolean VERBOSE_LOG_DB = false;
     public static final boolean VERBOSE_LOG_NET = false;
+
+    // Opens the DB in write-ahead-log mode, once a probe shows the device handles it (see WalProbe),
+    // so story lists can read a consistent snapshot while sync is writing, rather than waiting.
+    public static final boolean ENABLE_WAL = false;
 	
 	public static final String FOLDER_PRE = "folder_collapsed";
 
@@ -19,6 +23,7 @@ public class AppConstants {
     public static final String ROOT_FOLDER = "0000_TOP_LEVEL_";
 
     public static final String LAST_APP_VERSION = "LAST_APP_VERSION";
+    public static final String WAL_PROBE_RESULT = "WAL_PROBE_RESULT";
 
     // a pref for the time we completed the last full sync of the feed/fodler list
     public static final String LAST_SYNC_TIME = "LAST_SYNC_TIME";
@@ -60,11 +65,68 @@ public class AppConstants {
     // when reading stories, how many stories worth of buffer to keep loaded ahead of the user
     public static final int READING_STORY_PRELOAD = 10;
 
-    // how many unread stories to fetch via hash at a time
+    // how many stories at a time story lists and the reading pager page in from the reading session
+    public static final int STORY_PAGE_SIZE = 100;
+    // how many of those pages a story list keeps in memory at once
+    public static final int STORY_PAGES_RESIDENT = 5;
+
+    // how many stories story lists and the reading pager load at first, and how many more each
+    // time they get near the end of what they have
+    public static final int STORY_WINDOW_SIZE = 300;
+
+    // how many unread stories to fetch via hash at a time. batches start at the default size and
+    // are then sized by BatchSizer to take about the target time. the API serves at most 100.
     public static final int UNREAD_FETCH_BATCH_SIZE = 50;
+    public static final int UNREAD_FETCH_BATCH_SIZE_MIN = 10;
+    public static final int UNREAD_FETCH_BATCH_SIZE_MAX = 100;
+    public static final long UNREAD_FETCH_BATCH_TARGET_MILLIS = 8L * 1000L;
+
+    // how many of those batches may be fetching and writing at once, so that the round trip of
+    // one overlaps the work of the others
+    public static final int UNREAD_FETCH_MAX_IN_FLIGHT = 3;
+
+    // below this much free heap, unread batches are fetched one at a time
+    public static final long UNREAD_FETCH_MIN_HEAP_HEADROOM = 8L * 1024L * 1024L;
+
+    // how many stories to write to the DB per transaction when ingesting a page of stories. keeps
+    // any single hold of the DB lock short enough that the UI can get reads in edgewise
+    public static final int DB_STORY_INSERT_BATCH_SIZE = 10;
+
+    // how many queued mark-read actions to send to the API per call
+    public static final int MARK_READ_BATCH_SIZE = 100;
 
-    // how many images to prefetch before updating the countdown UI
+    // how many images to prefetch before updating the countdown UI, sized like unread batches
     public static final int IMAGE_PREFETCH_BATCH_SIZE = 6;
+    public static final int IMAGE_PREFETCH_BATCH_SIZE_MIN = 2;
+    public static final int IMAGE_PREFETCH_BATCH_SIZE_MAX = 40;
+    public static final long IMAGE_PREFETCH_BATCH_TARGET_MILLIS = 5L * 1000L;
+    public static final long IMAGE_PREFETCH_BATCH_MAX_BYTES = 8L * 1024L * 1024L;
+
+    // how many images to prefetch at once, and at most how many of those from any one host
+    public static final int IMAGE_PREFETCH_PARALLELISM = 4;
+    public static final int IMAGE_PREFETCH_MAX_PER_HOST = 2;
+
+    // how much disk the offline image cache may use before evicting least recently used images
+    public static final long IMAGE_CACHE_MAX_BYTES = 200L * 1024L * 1024L;
+
+    // how much disk the feed icon and avatar cache may use
+    public static final long ICON_CACHE_MAX_BYTES = 20L * 1024L * 1024L;
+
+    // the size at which to decode icons and avatars for views that haven't been sized yet
+    public static final int IMAGE_LOADER_DEFAULT_SIZE_DP = 64;
+
+    // how many threads the image loader uses to read and decode cached images, and to download
+    public static final int IMAGE_LOADER_LOCAL_THREADS = 2;
+    public static final int IMAGE_LOADER_NETWORK_THREADS = 4;
+
+    // how many background image loads between logging loader stats, if VERBOSE_LOG_NET
+    public static final int IMAGE_LOADER_STATS_INTERVAL = 100;
+
+    // how many original texts to fetch before updating the UI, also sized like unread batches
+    public static final int TEXT_FETCH_BATCH_SIZE = 6;
+    public static final int TEXT_FETCH_BATCH_SIZE_MIN = 2;
+    public static final int TEXT_FETCH_BATCH_SIZE_MAX = 30;
+    public static final long TEXT_FETCH_BATCH_TARGET_MILLIS = 5L * 1000L;
 
     // should the feedback link be enabled (read: is this a beta?)
     public static final boolean ENABLE_FEEDBACK = true;
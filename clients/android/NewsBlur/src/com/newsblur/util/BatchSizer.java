@@ -0,0 +1,109 @@
+package com.newsblur.util;
+
+import android.util.Log;
+
+/**
+ * Picks the size of the next batch for a background fetch loop based upon how the last ones
+ * went. The aim is for each batch to take about a target amount of time: long enough that
+ * per-request overhead like connection setup is amortised, short enough that progress is saved
+ * and shown regularly and that a failed batch doesn't waste much. On a fast connection this
+ * grows batches, and on a slow or lossy one it shrinks them.
+ *
+ * Successful batches move the size towards whatever would have hit the target, but by no more
+ * than double at a time. Failures halve it, so a run of errors quickly drops to small batches,
+ * and batches don't grow again until the failures have been followed by a few successes.
+ * If the size of the fetched data is known, batches are also capped so that one batch won't
+ * fetch more than a set number of bytes.
+ *
+ * Instances are thread-safe, so one can be shared by concurrent fetches of the same kind.
+ */
+public class BatchSizer {
+
+    // how much weight each new measurement gets in the running estimates
+    private static final double SMOOTHING = 0.5;
+    // batches don't grow while the smoothed error rate is above this
+    private static final double MAX_ERROR_RATE_TO_GROW = 0.2;
+
+    private final String name;
+    private final int minSize;
+    private final int maxSize;
+    private final long targetMillis;
+    private final long maxBatchBytes;
+
+    private double size;
+    private double bytesPerItem = 0.0;
+    private double errorRate = 0.0;
+
+    /**
+     * @param maxBatchBytes a cap on the expected bytes fetched per batch, or zero for no cap.
+     */
+    public BatchSizer(String name, int minSize, int initialSize, int maxSize, long targetMillis, long maxBatchBytes) {
+        this.name = name;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.targetMillis = targetMillis;
+        this.maxBatchBytes = maxBatchBytes;
+        this.size = initialSize;
+    }
+
+    public synchronized int getBatchSize() {
+        double cap = maxSize;
+        if ((maxBatchBytes > 0L) && (bytesPerItem > 0.0)) {
+            cap = Math.min(cap, maxBatchBytes / bytesPerItem);
+        }
+        return (int) Math.max(minSize, Math.min(cap, Math.round(size)));
+    }
+
+    /**
+     * Record a batch that was fetched successfully.
+     *
+     * @param itemCount how many items were requested in the batch.
+     * @param connectMillis time spent before the response started arriving.
+     * @param readMillis time spent reading the response.
+     * @param bytes the size of the response, or a negative number if not known.
+     */
+    public synchronized void recordSuccess(int itemCount, long connectMillis, long readMillis, long bytes) {
+        if (itemCount < 1) return;
+        errorRate = (1.0 - SMOOTHING) * errorRate;
+        if (bytes >= 0L) {
+            double observed = ((double) bytes) / itemCount;
+            bytesPerItem = (bytesPerItem > 0.0) ? (SMOOTHING * observed) + ((1.0 - SMOOTHING) * bytesPerItem) : observed;
+        }
+        // the size that would have taken the target time, assuming time scales with item count
+        long elapsed = Math.max(1L, connectMillis + readMillis);
+        double ideal = ((double) itemCount) * targetMillis / elapsed;
+        ideal = Math.min(ideal, itemCount * 2.0);
+        // a quick batch on a connection that keeps failing is luck, not a reason to grow
+        if (errorRate > MAX_ERROR_RATE_TO_GROW) ideal = Math.min(ideal, itemCount);
+        size = (SMOOTHING * ideal) + ((1.0 - SMOOTHING) * size);
+        clamp();
+        if (AppConstants.VERBOSE_LOG_NET) {
+            Log.d(this.getClass().getName(), String.format("%s batch of %d took %dms+%dms, next size %d", name, itemCount, connectMillis, readMillis, getBatchSize()));
+        }
+    }
+
+    /**
+     * Record a batch that failed, in whole or in part.
+     */
+    public synchronized void recordFailure() {
+        errorRate = SMOOTHING + ((1.0 - SMOOTHING) * errorRate);
+        size = size / 2.0;
+        clamp();
+        if (AppConstants.VERBOSE_LOG_NET) {
+            Log.d(this.getClass().getName(), String.format("%s batch failed (error rate %.2f), next size %d", name, errorRate, getBatchSize()));
+        }
+    }
+
+    /**
+     * A smoothed estimate of the fraction of recent batches that failed.
+     */
+    public synchronized double getErrorRate() {
+        return errorRate;
+    }
+
+    private void clamp() {
+        if (size < minSize) size = minSize;
+        if (size > maxSize) size = maxSize;
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.newsblur.util;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * A small, byte-bounded pool of mutable bitmaps that are no longer in use and can have new
+ * images decoded into them via BitmapFactory.Options.inBitmap, instead of every decode
+ * allocating a fresh buffer and leaving the old one to the GC.
+ *
+ * Before KitKat, a bitmap can only be reused for an image of exactly the same dimensions. The
+ * images we decode are mostly icons of a handful of sizes, so this still hits often.
+ */
+public class BitmapPool {
+
+    private final LinkedList<Bitmap> pool = new LinkedList<Bitmap>();
+    private final long limit;
+    private long size = 0L;
+
+    public BitmapPool(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Offers a bitmap that nothing references any more for reuse.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if ((bitmap == null) || (!bitmap.isMutable()) || bitmap.isRecycled()) return;
+        long bytes = getSizeInBytes(bitmap);
+        if (bytes > limit) return;
+        pool.addLast(bitmap);
+        size += bytes;
+        // drop the oldest bitmaps to make room, they just go to the GC as they would have anyway
+        while (size > limit) {
+            size -= getSizeInBytes(pool.removeFirst());
+        }
+    }
+
+    /**
+     * Takes a bitmap from the pool that can be used as the inBitmap for decoding an ARGB_8888
+     * image of the given dimensions, or null if there isn't one.
+     */
+    public Bitmap get(int width, int height) {
+        return take(width, height, false);
+    }
+
+    /**
+     * Takes a bitmap of exactly the given dimensions from the pool, for drawing into, or null if
+     * there isn't one.
+     */
+    public Bitmap getExact(int width, int height) {
+        return take(width, height, true);
+    }
+
+    private synchronized Bitmap take(int width, int height, boolean exact) {
+        Iterator<Bitmap> it = pool.iterator();
+        while (it.hasNext()) {
+            Bitmap candidate = it.next();
+            if (canReuse(candidate, width, height, exact)) {
+                it.remove();
+                size -= getSizeInBytes(candidate);
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void clear() {
+        pool.clear();
+        size = 0L;
+    }
+
+    private static boolean canReuse(Bitmap candidate, int width, int height, boolean exact) {
+        if (candidate.getConfig() != Bitmap.Config.ARGB_8888) return false;
+        if ((!exact) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)) {
+            return (((long) width) * height * 4L) <= candidate.getAllocationByteCount();
+        }
+        return ((candidate.getWidth() == width) && (candidate.getHeight() == height));
+    }
+
+    public static long getSizeInBytes(Bitmap bitmap) {
+        if (bitmap == null) return 0L;
+        // a reused bitmap may hold a larger buffer than its current image needs
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return ((long) bitmap.getRowBytes()) * bitmap.getHeight();
+    }
+
+}
@@ -0,0 +1,540 @@
+package com.newsblur.util;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * A size-bounded cache of files in a dedicated directory, evicting the least recently used
+ * files once a byte budget is exceeded.
+ *
+ * The index of entries lives in memory in access order, so lookups and recency updates are
+ * O(1) and eviction only ever touches as many files as it has to. A journal of additions,
+ * reads and removals is appended to as the cache changes, so that recency and sizes survive a
+ * restart without having to list and stat the whole directory. The journal is compacted once
+ * it is mostly redundant.
+ *
+ * New files are written to a temp file by the caller and then renamed into place by commit(),
+ * so a reader never sees a partial file under a real key. A dirty line is journalled before each
+ * rename and a clean one after it, so a file whose commit was cut short by the process dying is
+ * known at the next load and can be dropped, along with any temp files left behind.
+ *
+ * There is one instance per directory, shared by the whole process. All methods are
+ * thread-safe. The index is loaded on a background thread when the cache is first opened, and
+ * calls that need it wait for that to finish, so the cache may be opened from the UI thread but
+ * should only be used off it.
+ */
+public class DiskLruCache {
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String JOURNAL_HEADER = "nb.disklrucache 1";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String OP_CLEAN = "C";
+    private static final String OP_READ = "R";
+    private static final String OP_REMOVE = "D";
+    private static final String OP_DIRTY = "W";
+
+    // rewrite the journal when it has at least this many redundant lines, and more of them than entries
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // a hex digest, optionally followed by a file extension
+    private static final Pattern KEY_PATTERN = Pattern.compile("[0-9a-f]{40}(\\.[a-zA-Z0-9]+)?");
+
+    private static final Map<String, DiskLruCache> Instances = new HashMap<String, DiskLruCache>();
+    private static final ExecutorService Loader = Executors.newSingleThreadExecutor();
+
+    private final File dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+    private long size = 0L;
+    private Writer journal;
+    private int redundantOps = 0;
+    private boolean loaded = false;
+
+    /**
+     * Gets the cache for a directory, opening it if this is the first use in this process.
+     * The directory should be used for nothing else, since unknown files in it get cleaned up.
+     */
+    public static DiskLruCache open(File dir, long maxBytes) {
+        synchronized (Instances) {
+            String path = dir.getAbsolutePath();
+            DiskLruCache cache = Instances.get(path);
+            if (cache == null) {
+                final DiskLruCache newCache = new DiskLruCache(dir, maxBytes);
+                Instances.put(path, newCache);
+                Loader.execute(new Runnable() {
+                    public void run() {
+                        newCache.load();
+                    }
+                });
+                cache = newCache;
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Makes a key for the cache from an arbitrary string like a URL. Distinct inputs get distinct
+     * keys, and the key is safe to use as a file name.
+     *
+     * @param extension an optional file extension, including the dot, to add to the key.
+     */
+    public static String makeKey(String s, String extension) {
+        String key;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(s.getBytes(UTF8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            key = sb.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            // every Android build has SHA-1
+            throw new IllegalStateException(nsae);
+        }
+        return (extension == null) ? key : key + extension;
+    }
+
+    private DiskLruCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Builds the index. If the journal was cleanly written it is taken at its word, otherwise the
+     * directory is listed to rebuild it.
+     */
+    private synchronized void load() {
+        try {
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            long startTime = System.currentTimeMillis();
+            Set<String> dirty = new HashSet<String>();
+            if (readJournal(dirty)) {
+                openJournal();
+                discardInterrupted(dirty);
+            } else {
+                adoptOrphans();
+                rewriteJournal();
+            }
+            trimToSize();
+            if (AppConstants.VERBOSE_LOG) {
+                Log.d(this.getClass().getName(), String.format("opened %s: %d files, %d bytes in %dms", dir.getName(), entries.size(), size, System.currentTimeMillis() - startTime));
+            }
+        } finally {
+            loaded = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits for load() to finish. Must be called holding the lock on this cache.
+     */
+    private void awaitLoad() {
+        boolean interrupted = false;
+        while (!loaded) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Gets the file cached under a key, or null if there isn't one. Counts as a use of the file
+     * for the purposes of eviction.
+     */
+    public synchronized File get(String key) {
+        awaitLoad();
+        if (!entries.containsKey(key)) return null;
+        File f = new File(dir, key);
+        if (!f.exists()) {
+            // the system is allowed to delete cache files out from under us when low on storage
+            removeEntry(key);
+            return null;
+        }
+        entries.get(key);
+        appendJournal(OP_READ, key, -1L, false);
+        return f;
+    }
+
+    /**
+     * Gets a fresh temp file in the cache directory into which a new file for the given key can
+     * be written. Pass it to commit() once complete, or abort() to discard it. Several threads may
+     * be writing the same key at once, the last one to commit wins.
+     */
+    public File newTempFile(String key) throws IOException {
+        // the directory may not exist until the cache has loaded
+        synchronized (this) {
+            awaitLoad();
+        }
+        return File.createTempFile(key, TEMP_SUFFIX, dir);
+    }
+
+    /**
+     * Moves a complete temp file into place as the file for a key, evicting older files if that
+     * puts the cache over budget.
+     *
+     * @return the cached file, or null if it could not be stored.
+     */
+    public synchronized File commit(String key, File temp) {
+        awaitLoad();
+        File f = new File(dir, key);
+        appendJournal(OP_DIRTY, key, -1L, true);
+        if (!temp.renameTo(f)) {
+            temp.delete();
+            // whatever was there before is untouched, so just close out the dirty line
+            Long old = entries.get(key);
+            if (old != null) {
+                appendJournal(OP_CLEAN, key, old, true);
+                redundantOps++;
+            } else {
+                appendJournal(OP_REMOVE, key, -1L, true);
+            }
+            return null;
+        }
+        Long old = entries.put(key, f.length());
+        if (old != null) {
+            size -= old;
+            redundantOps++;
+        }
+        size += f.length();
+        appendJournal(OP_CLEAN, key, f.length(), true);
+        trimToSize();
+        return entries.containsKey(key) ? f : null;
+    }
+
+    /**
+     * Discards a temp file that won't be committed.
+     */
+    public void abort(File temp) {
+        if (temp != null) temp.delete();
+    }
+
+    public synchronized void remove(String key) {
+        awaitLoad();
+        if (!entries.containsKey(key)) return;
+        new File(dir, key).delete();
+        removeEntry(key);
+    }
+
+    /**
+     * Removes every file whose key is not in the given set.
+     */
+    public synchronized void retainAll(Collection<String> keys) {
+        awaitLoad();
+        List<String> doomed = new ArrayList<String>();
+        for (String key : entries.keySet()) {
+            if (!keys.contains(key)) doomed.add(key);
+        }
+        for (String key : doomed) remove(key);
+        if (AppConstants.VERBOSE_LOG) {
+            Log.d(this.getClass().getName(), String.format("cleaned %d files from %s, %d bytes remain", doomed.size(), dir.getName(), size));
+        }
+    }
+
+    public synchronized void clear() {
+        awaitLoad();
+        for (String key : new ArrayList<String>(entries.keySet())) remove(key);
+    }
+
+    /**
+     * The total size of the cached files, in bytes.
+     */
+    public synchronized long size() {
+        awaitLoad();
+        return size;
+    }
+
+    private void removeEntry(String key) {
+        Long old = entries.remove(key);
+        if (old != null) size -= old;
+        redundantOps++;
+        appendJournal(OP_REMOVE, key, -1L, true);
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        // always keep the newest file, even if it alone is over budget
+        while ((size > maxBytes) && (entries.size() > 1)) {
+            Map.Entry<String, Long> eldest = it.next();
+            String key = eldest.getKey();
+            new File(dir, key).delete();
+            size -= eldest.getValue();
+            it.remove();
+            redundantOps++;
+            appendJournal(OP_REMOVE, key, -1L, false);
+        }
+        flushJournal();
+        if ((redundantOps >= COMPACT_THRESHOLD) && (redundantOps >= entries.size())) {
+            rewriteJournal();
+        }
+    }
+
+    /**
+     * Reads what it can of the journal into the index.
+     *
+     * @param dirty collects the keys whose last op was a dirty line, i.e. whose commit never
+     *        finished.
+     * @return true if the whole journal was read, false if it was missing or damaged and the
+     *         index needs checking against the directory.
+     */
+    private boolean readJournal(Set<String> dirty) {
+        File journalFile = new File(dir, JOURNAL_FILE);
+        if (!journalFile.exists()) return false;
+        BufferedReader reader = null;
+        try {
+            // every op is written as a whole line, so anything else means the last one was torn
+            if (!endsWithNewline(journalFile)) return false;
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8));
+            if (!JOURNAL_HEADER.equals(reader.readLine())) return false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if ((parts.length < 2) || (!KEY_PATTERN.matcher(parts[1]).matches())) return false;
+                String key = parts[1];
+                if (OP_DIRTY.equals(parts[0])) {
+                    dirty.add(key);
+                    redundantOps++;
+                    continue;
+                }
+                dirty.remove(key);
+                if (OP_CLEAN.equals(parts[0]) && (parts.length == 3)) {
+                    Long old = entries.put(key, Long.parseLong(parts[2]));
+                    if (old != null) {
+                        size -= old;
+                        redundantOps++;
+                    }
+                    size += Long.parseLong(parts[2]);
+                } else if (OP_READ.equals(parts[0])) {
+                    entries.get(key);
+                    redundantOps++;
+                } else if (OP_REMOVE.equals(parts[0])) {
+                    Long old = entries.remove(key);
+                    if (old != null) size -= old;
+                    redundantOps++;
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException ioe) {
+            Log.w(this.getClass().getName(), "error reading cache journal, rebuilding", ioe);
+            return false;
+        } catch (NumberFormatException nfe) {
+            Log.w(this.getClass().getName(), "corrupt cache journal, rebuilding", nfe);
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static boolean endsWithNewline(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            if (raf.length() < 1L) return false;
+            raf.seek(raf.length() - 1L);
+            return (raf.read() == '\n');
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Cleans up after writes that were in flight when the process last died, given a journal
+     * that was otherwise read in full: files whose commit never reached the journal are deleted,
+     * since their size isn't known, as are any temp files. Only temp files are listed, nothing
+     * is stat'ed.
+     */
+    private void discardInterrupted(Set<String> dirty) {
+        for (String key : dirty) {
+            new File(dir, key).delete();
+            removeEntry(key);
+        }
+        File[] temps = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(TEMP_SUFFIX);
+            }
+        });
+        if (temps == null) return;
+        for (File f : temps) f.delete();
+    }
+
+    /**
+     * Reconciles the index read from the journal with what is actually on disk: entries whose
+     * files have gone are dropped, files that were committed without making it into the journal
+     * are picked up as least recently used, and leftover temp and unrecognised files are deleted.
+     * This lists and stats the whole directory, so it is only done when the journal is missing
+     * or damaged. Otherwise files deleted by the system are noticed lazily by get().
+     */
+    private void adoptOrphans() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Map<String, File> onDisk = new HashMap<String, File>(files.length);
+        for (File f : files) {
+            String name = f.getName();
+            if (name.equals(JOURNAL_FILE)) continue;
+            if (f.isFile() && KEY_PATTERN.matcher(name).matches()) {
+                onDisk.put(name, f);
+            } else {
+                f.delete();
+            }
+        }
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            File f = onDisk.remove(entry.getKey());
+            if ((f == null) || (f.length() != entry.getValue())) {
+                size -= entry.getValue();
+                it.remove();
+                if (f != null) f.delete();
+            }
+        }
+        if (onDisk.isEmpty()) return;
+        List<File> orphans = new ArrayList<File>(onDisk.values());
+        Collections.sort(orphans, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+            }
+        });
+        LinkedHashMap<String, Long> known = new LinkedHashMap<String, Long>(entries);
+        entries.clear();
+        for (File f : orphans) {
+            entries.put(f.getName(), f.length());
+            size += f.length();
+        }
+        entries.putAll(known);
+    }
+
+    private void appendJournal(String op, String key, long length, boolean flush) {
+        if (journal == null) return;
+        try {
+            journal.write(op);
+            journal.write(' ');
+            journal.write(key);
+            if (length >= 0L) {
+                journal.write(' ');
+                journal.write(Long.toString(length));
+            }
+            journal.write('\n');
+            if (op.equals(OP_READ) || op.equals(OP_DIRTY)) redundantOps++;
+            if (flush) journal.flush();
+        } catch (IOException ioe) {
+            journalFailed(ioe);
+        }
+    }
+
+    private void flushJournal() {
+        if (journal == null) return;
+        try {
+            journal.flush();
+        } catch (IOException ioe) {
+            journalFailed(ioe);
+        }
+    }
+
+    /**
+     * Writes a fresh journal holding just the current entries, in recency order, and swaps it
+     * in for the old one.
+     */
+    private void rewriteJournal() {
+        closeJournal();
+        File tmp = new File(dir, JOURNAL_FILE_TMP);
+        Writer w = null;
+        try {
+            w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+            w.write(JOURNAL_HEADER);
+            w.write('\n');
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                w.write(OP_CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+            w.close();
+            w = null;
+            if (!tmp.renameTo(new File(dir, JOURNAL_FILE))) throw new IOException("could not replace journal");
+            openJournal();
+            redundantOps = 0;
+        } catch (IOException ioe) {
+            journalFailed(ioe);
+        } finally {
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the existing journal to be appended to.
+     */
+    private void openJournal() {
+        try {
+            journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, JOURNAL_FILE), true), UTF8));
+        } catch (IOException ioe) {
+            journalFailed(ioe);
+        }
+    }
+
+    private void closeJournal() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        journal = null;
+    }
+
+    /**
+     * Carries on without a journal if it can't be written. The cache still works for the rest of
+     * this process, and the directory gets reconciled the next time it is opened.
+     */
+    private void journalFailed(IOException ioe) {
+        Log.w(this.getClass().getName(), "cache journal failed for " + dir.getName(), ioe);
+        closeJournal();
+        new File(dir, JOURNAL_FILE).delete();
+    }
+
+}
@@ -49,6 +49,15 @@ public class FeedSet implements Serializable {
         return fs;
     }
 
+    /**
+     * Convenience constructor for multiple feeds.
+     */
+    public static FeedSet multipleFeeds(Set<String> feedIds) {
+        FeedSet fs = new FeedSet();
+        fs.feeds = Collections.unmodifiableSet(feedIds);
+        return fs;
+    }
+
     /**
      * Convenience constructor for a single social feed.
      */
@@ -129,7 +138,19 @@ public class FeedSet implements Serializable {
     }
 
     /** 
-     * Convenience constructor for a folder.
+     * Convenience constructor for a folder. Its feeds are looked up from the folder tables as
+     * needed, see BlurDatabaseHelper.
+     */
+    public static FeedSet folder(String folderName) {
+        FeedSet fs = new FeedSet();
+        fs.feeds = Collections.EMPTY_SET;
+        fs.setFolderName(folderName);
+        return fs;
+    }
+
+    /** 
+     * Convenience constructor for a folder with its feeds spelled out, for API calls that can't
+     * take a folder name.
      */
     public static FeedSet folder(String folderName, Set<String> feedIds) {
         FeedSet fs = new FeedSet();
@@ -168,7 +189,8 @@ public class FeedSet implements Serializable {
     }
 
     public boolean isAllNormal() {
-        return ((feeds != null) && (feeds.size() < 1));
+        // a folder doesn't list its feeds, but it isn't everything
+        return ((folderName == null) && (feeds != null) && (feeds.size() < 1));
     }
 
     public boolean isAllSocial() {
@@ -1,7 +1,5 @@
 package com.newsblur.util;
 
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.Set;
 
 import android.content.Context;
@@ -16,9 +14,9 @@ import com.newsblur.activity.NbActivity;
 import com.newsblur.database.BlurDatabaseHelper;
 import com.newsblur.domain.Classifier;
 import com.newsblur.domain.Feed;
-import com.newsblur.domain.Folder;
 import com.newsblur.domain.SocialFeed;
 import com.newsblur.domain.Story;
+import com.newsblur.domain.StoryBody;
 import com.newsblur.network.APIManager;
 import com.newsblur.network.domain.NewsBlurResponse;
 import com.newsblur.service.NBSyncService;
@@ -157,7 +155,7 @@ public class FeedUtils {
                 if (fs.isAllNormal() && (olderThan != null || newerThan != null)) {
                     // the mark-all-read API doesn't support range bounding, so we need to pass each and every
                     // feed ID to the API instead.
-                    FeedSet newFeedSet = FeedSet.folder("all", dbHelper.getAllFeeds());
+                    FeedSet newFeedSet = FeedSet.multipleFeeds(dbHelper.getAllFeeds());
                     ra = ReadingAction.markFeedRead(newFeedSet, olderThan, newerThan);
                 }
                 dbHelper.enqueueAction(ra);
@@ -262,20 +260,15 @@ public class FeedUtils {
     }
 
     public static FeedSet feedSetFromFolderName(String folderName) {
-        return FeedSet.folder(folderName, getFeedIdsRecursive(folderName));
+        return FeedSet.folder(folderName);
     }
 
-    private static Set<String> getFeedIdsRecursive(String folderName) {
-        Folder folder = dbHelper.getFolder(folderName);
-        if (folder == null) return Collections.emptySet();
-        Set<String> feedIds = new HashSet<String>(folder.feedIds.size());
-        for (String id : folder.feedIds) feedIds.add(id);
-        for (String child : folder.children) feedIds.addAll(getFeedIdsRecursive(child));
-        return feedIds;
+    public static StoryBody getStoryBody(String hash) {
+        return dbHelper.getStoryBody(hash);
     }
 
-    public static String getStoryText(String hash) {
-        return dbHelper.getStoryText(hash);
+    public static StoryBody getStoryTextBody(String hash) {
+        return dbHelper.getStoryTextBody(hash);
     }
 
     public static String getStoryContent(String hash) {
@@ -1,42 +1,71 @@
 package com.newsblur.util;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.util.Log;
 
+/**
+ * A size-bounded LRU cache of the small images like feed icons and avatars that are shown
+ * throughout the UI.
+ */
 public class FileCache {
 
-	private File cacheDir;
+    private static final String CACHE_SUBDIR = "icons";
+    // files in the top-level cache dir named like the hash codes used by the old icon cache
+    private static final Pattern LEGACY_FILE_PATTERN = Pattern.compile("-?[0-9]+");
+
+	private DiskLruCache cache;
 
 	public FileCache(Context context) {
-        cacheDir = context.getCacheDir();
-		if (!cacheDir.exists()) {
-			cacheDir.mkdirs();
-		}
+        cache = DiskLruCache.open(new File(context.getCacheDir(), CACHE_SUBDIR), AppConstants.ICON_CACHE_MAX_BYTES);
 	}
 
+    /**
+     * Gets the cached copy of a file, or null if it isn't cached.
+     */
 	public File getFile(String url){
         if (url == null ) return null;
-		final String filename = String.valueOf(url.hashCode());
-		final File f = new File(cacheDir, filename);
-		return f;
+		return cache.get(DiskLruCache.makeKey(url, null));
 	}
 
+    /**
+     * Fetches a file into the cache under the given URL.
+     *
+     * @param source where to fetch the file from, if different from the key URL.
+     * @return the cached file, or null if nothing could be fetched.
+     */
+    public File cacheFile(String url, URL source) throws IOException {
+        String key = DiskLruCache.makeKey(url, null);
+        File temp = cache.newTempFile(key);
+        long bytesRead = NetworkUtils.loadURL(source, temp);
+        if (bytesRead == 0) {
+            cache.abort(temp);
+            return null;
+        }
+        return cache.commit(key, temp);
+    }
+
 	public void clear() {
-		final File[] files = cacheDir.listFiles();
-		if (files != null) {
-			for (final File f : files) {
-				f.delete();
-			}
-		}
+        cache.clear();
 	}
 
     /**
-     * Looks for and cleans up any remains of the old, mis-located legacy cache directory.
+     * Looks for and cleans up any remains of the old, mis-located legacy cache directory,
+     * and of the old unbounded icon cache.
      */
     public static void cleanUpOldCache(Context context) {
         try {
+            File[] oldIcons = context.getCacheDir().listFiles();
+            if (oldIcons != null) {
+                for (File f : oldIcons) {
+                    if (f.isFile() && LEGACY_FILE_PATTERN.matcher(f.getName()).matches()) f.delete();
+                }
+            }
+
             File dir = new File(android.os.Environment.getExternalStorageDirectory(), "NewsblurCache");
             if (!dir.exists()) return;
             File[] files = dir.listFiles();
@@ -5,6 +5,7 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashSet;
 import java.util.Set;
@@ -13,71 +14,86 @@ import java.util.regex.Pattern;
 
 /**
  * A utility to cache images for offline reading. Takes an image URL and turns it into
- * a local file with a unique name that can be easily re-calculated in the future. Also
- * supports automatic cleanup of old files.
+ * a local file with a unique name that can be easily re-calculated in the future. The
+ * files are kept in a size-bounded LRU cache, and unreferenced ones can be cleaned up.
  */
 public class ImageCache {
 
     private static final String CACHE_SUBDIR = "olimages";
-    private static final long MAX_FILE_AGE_MILLIS = 30L * 24L * 60L * 60L * 1000L;
     private static final long MIN_FREE_SPACE_BYTES = 100L * 1024L * 1024L;
     private static final int MIN_VALID_CACHE_BYTES = 64;
 
     private File cacheDir;
+    private DiskLruCache cache;
     private Pattern postfixPattern;
 
     public ImageCache(Context context) {
         cacheDir = new File(context.getCacheDir(), CACHE_SUBDIR);
-		if (!cacheDir.exists()) {
-			cacheDir.mkdirs();
-		}
+        cache = DiskLruCache.open(cacheDir, AppConstants.IMAGE_CACHE_MAX_BYTES);
 
         postfixPattern = Pattern.compile("(\\.[a-zA-Z0-9]+)[^\\.]*$");
     }
 
-    public void cacheImage(String url) {
+    /**
+     * Checks whether the device is too low on storage for images to be cached. Callers should
+     * check this before each batch of calls to cacheImage().
+     */
+    public boolean isLowOnStorage() {
+        return (cacheDir.getFreeSpace() < MIN_FREE_SPACE_BYTES);
+    }
+
+    /**
+     * Fetches and caches an image, if it isn't already cached. Safe to call from several threads
+     * at once.
+     *
+     * @return the number of bytes fetched, or -1 if the server couldn't be reached or the
+     *         transfer broke off. Error responses and empty images just fetch nothing, since
+     *         they say more about the URL than about the connection.
+     */
+    public long cacheImage(String url) {
+        File temp = null;
         try {
-            // don't be evil and download images if the user is low on storage
-            if (cacheDir.getFreeSpace() < MIN_FREE_SPACE_BYTES) {
-                Log.w(this.getClass().getName(), "device low on storage, not caching images");
-                return;
-            }
-            
             String fileName = getFileName(url);
             if (fileName == null) {
                 Log.w(this.getClass().getName(), "failed to cache image: no file extension");
-                return;
+                return 0L;
             }
 
-            File f = new File(cacheDir, fileName);
-            if (f.exists()) return;
-            long size = NetworkUtils.loadURL(new URL(url), f);
+            if (cache.get(fileName) != null) return 0L;
+            URL source = new URL(url);
+            temp = cache.newTempFile(fileName);
+            long size = NetworkUtils.fetchURL(source, temp);
             // images that are super-small tend to be errors or invisible. don't waste file handles on them
             if (size < MIN_VALID_CACHE_BYTES) {
-                f.delete();
+                cache.abort(temp);
+            } else {
+                cache.commit(fileName, temp);
             }
-        } catch (IOException e) {
+            return size;
+        } catch (MalformedURLException mue) {
+            // a bad URL is the story's fault, not the connection's
+            return 0L;
+        } catch (IOException ioe) {
             // a huge number of things could go wrong fetching and storing an image. don't spam logs with them
+            cache.abort(temp);
+            return -1L;
+        } catch (RuntimeException re) {
+            // the HTTP client rejects some URLs that parse fine, which again says nothing about the connection
+            cache.abort(temp);
+            return 0L;
         }
     }
 
     /**
-     * Gets the cached location of the specified network image, if it has 
-     * been cached.  Fails fast and returns null if for any reason the image
-     * is not available.
+     * Gets the cached copy of the specified network image, or null if it is not cached.
      */
-    public String getCachedLocation(String url) {
+    public File getCachedFile(String url) {
         try {
             String fileName = getFileName(url);
             if (fileName == null) {
                 return null;
             }
-            File f = new File(cacheDir, fileName);
-            if (f.exists()) {
-                return f.getAbsolutePath();
-            } else { 
-                return null;
-            }
+            return cache.get(fileName);
         } catch (Exception e) {
             Log.e(this.getClass().getName(), "image cache error", e);
             return null;
@@ -89,7 +105,7 @@ public class ImageCache {
         if (! m.find()) {
             return null;
         }
-        String fileName = Integer.toString(Math.abs(url.hashCode())) + m.group(1);
+        String fileName = DiskLruCache.makeKey(url, m.group(1));
         return fileName;
     }
 
@@ -100,15 +116,7 @@ public class ImageCache {
 
         Set<String> currentFiles = new HashSet<String>(currentImages.size());
         for (String url : currentImages) currentFiles.add(getFileName(url));
-        File[] files = cacheDir.listFiles();
-        if (files == null) return;
-        for (File f : files) {
-            long timestamp = f.lastModified();
-            if ((System.currentTimeMillis() > (timestamp + MAX_FILE_AGE_MILLIS)) ||
-                (!currentFiles.contains(f.getName()))) {
-                f.delete();
-            }
-        }
+        cache.retainAll(currentFiles);
     }
 
 }
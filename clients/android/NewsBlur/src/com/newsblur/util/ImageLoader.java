@@ -1,20 +1,28 @@
 package com.newsblur.util;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 import android.util.Log;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.newsblur.R;
@@ -24,131 +32,345 @@ public class ImageLoader {
 
 	private final MemoryCache memoryCache = new MemoryCache();
 	private final FileCache fileCache;
-	private final ExecutorService executorService;
+	// the size to decode for when a view doesn't know how big it will be
+	private final int defaultSize;
+	// cache reads and decodes are quick, and must never wait behind slow downloads, so they get
+	// their own threads
+	private final ThreadPoolExecutor localExecutor;
+	private final ThreadPoolExecutor networkExecutor;
+	private final Stats stats = new Stats();
+	// loads that are queued or running, by URL, so that many views wanting the same image share one
+	private final Map<String, LoadJob> jobs = new HashMap<String, LoadJob>();
+	// ever-increasing, so that the most recently requested loads can be run first
+	private long requestSeq = 0L;
 	private final Map<ImageView, String> imageViews = Collections.synchronizedMap(new WeakHashMap<ImageView, String>());
+	// the bitmap each view was last given, so it can be released from the memory cache. UI thread only.
+	private final Map<ImageView, Bitmap> displayedBitmaps = new WeakHashMap<ImageView, Bitmap>();
 
 	public ImageLoader(Context context) {
 		fileCache = new FileCache(context);
-		executorService = Executors.newFixedThreadPool(5);
+		defaultSize = UIUtils.dp2px(context, AppConstants.IMAGE_LOADER_DEFAULT_SIZE_DP);
+		// the queues are ordered by LoadJob priority, so submitted jobs are not run in FIFO order
+		localExecutor = new ThreadPoolExecutor(AppConstants.IMAGE_LOADER_LOCAL_THREADS, AppConstants.IMAGE_LOADER_LOCAL_THREADS, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+		networkExecutor = new ThreadPoolExecutor(AppConstants.IMAGE_LOADER_NETWORK_THREADS, AppConstants.IMAGE_LOADER_NETWORK_THREADS, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+		context.registerComponentCallbacks(new ComponentCallbacks2() {
+			@Override
+			public void onTrimMemory(int level) {
+				memoryCache.onTrimMemory(level);
+			}
+			@Override
+			public void onLowMemory() {
+				memoryCache.clear();
+			}
+			@Override
+			public void onConfigurationChanged(Configuration newConfig) {
+				// nothing cached depends on configuration
+			}
+		});
 	}
 	
 	public void displayImage(String url, ImageView imageView) {
 		displayImage(url, imageView, true);
 	}
 
-    public Bitmap tryGetImage(String url) {
-		Bitmap bitmap = memoryCache.get(url);
-		if ((bitmap == null) && (url != null)) {
-			File f = fileCache.getFile(url);
-			bitmap = decodeBitmap(f);
-		}
-        return bitmap;
-    }
-	
 	public void displayImage(String url, ImageView imageView, boolean doRound) {
+		displayImage(url, imageView, (doRound ? 5f : 0f));
+	}
+
+	/**
+	 * Shows an image in a view, decoded at about the size of the view, with corners rounded to
+	 * the given radius in screen pixels. The final bitmap is what gets cached, so a view that is
+	 * bound again doesn't redo any of the work. Only the memory cache is checked on the calling
+	 * thread; anything else is loaded in the background.
+	 */
+	public void displayImage(String url, ImageView imageView, float roundRadius) {
 		imageViews.put(imageView, url);
-		Bitmap bitmap = tryGetImage(url);
+		PhotoToLoad photo = new PhotoToLoad(url, imageView, getTargetSize(imageView), roundRadius);
+		Bitmap bitmap = memoryCache.getForDisplay(photo.key);
 		if (bitmap != null) {
-			if (doRound) { 
-				bitmap = UIUtils.roundCorners(bitmap, 5);
-            }
-			imageView.setImageBitmap(bitmap);
+			stats.memoryHits.incrementAndGet();
+			setImage(imageView, bitmap);
+			memoryCache.release(bitmap);
 		} else {
-			queuePhoto(url, imageView);
-			imageView.setImageResource(R.drawable.world);
+			if (url != null) queuePhoto(photo);
+			setImage(imageView, null);
 		}
 	}
-	
 
-	public void displayImage(String url, ImageView imageView, float roundRadius) {
-		imageViews.put(imageView, url);
-		Bitmap bitmap = tryGetImage(url);
+	/**
+	 * Queues a load for a view, joining any load already pending for the same URL. Whichever
+	 * load was most recently asked for goes to the front of the queue: when scrolling, those are
+	 * the views on screen, and the ones asked for earlier have likely scrolled away.
+	 */
+	private void queuePhoto(PhotoToLoad photo) {
+		synchronized (jobs) {
+			requestSeq++;
+			LoadJob job = jobs.get(photo.url);
+			if (job == null) {
+				job = new LoadJob(photo.url);
+				job.queuedOn = localExecutor;
+				jobs.put(photo.url, job);
+			} else {
+				// a view re-bound before its load ran only needs the latest request
+				Iterator<PhotoToLoad> it = job.waiters.iterator();
+				while (it.hasNext()) {
+					if (it.next().imageView == photo.imageView) it.remove();
+				}
+				// the queue can't re-sort a job in place, so pull it out to bump its priority
+				if ((job.queuedOn == null) || !job.queuedOn.remove(job)) {
+					job.waiters.add(photo);
+					return;
+				}
+			}
+			job.waiters.add(photo);
+			job.priority = requestSeq;
+			job.queuedOn.execute(job);
+		}
+	}
+
+	/**
+	 * Works out how many pixels wide or tall, whichever is more, a view will be. If it hasn't
+	 * been laid out yet, goes by its layout params, else a default.
+	 */
+	private int getTargetSize(ImageView imageView) {
+		int width = imageView.getWidth();
+		int height = imageView.getHeight();
+		ViewGroup.LayoutParams params = imageView.getLayoutParams();
+		if (params != null) {
+			if (width < 1) width = params.width;
+			if (height < 1) height = params.height;
+		}
+		int size = Math.max(width, height);
+		return (size > 0) ? size : defaultSize;
+	}
+
+	/**
+	 * Sets the image for a view, or the placeholder if the bitmap is null, keeping track of which
+	 * cached bitmaps are on screen. Must be called on the UI thread.
+	 */
+	private void setImage(ImageView imageView, Bitmap bitmap) {
+		Bitmap old = (bitmap == null) ? displayedBitmaps.remove(imageView) : displayedBitmaps.put(imageView, bitmap);
+		if (old != bitmap) {
+			if (old != null) memoryCache.release(old);
+			if (bitmap != null) memoryCache.retain(bitmap);
+		}
 		if (bitmap != null) {
-            if (roundRadius > 0) {
-			    bitmap = UIUtils.roundCorners(bitmap, roundRadius);
-            }
 			imageView.setImageBitmap(bitmap);
 		} else {
-			queuePhoto(url, imageView);
 			imageView.setImageResource(R.drawable.world);
 		}
 	}
-	
-	private void queuePhoto(String url, ImageView imageView) {
-		PhotoToLoad p = new PhotoToLoad(url, imageView);
-		executorService.submit(new PhotosLoader(p));
-	}
-	
-	private Bitmap getBitmap(String url) {
-        if (url == null) return null;
-        File f = fileCache.getFile(url);
-        Bitmap bitmap = decodeBitmap(f);
-		
-		if (bitmap != null) {
-			memoryCache.put(url, bitmap);			
-			bitmap = UIUtils.roundCorners(bitmap, 5);
-			return bitmap;
-		}
 
-		FileInputStream fis = null;
+	private File fetchFile(String url) {
+        String fullUrl = url;
         try {
-			if (url.startsWith("/")) {
-				url = APIConstants.NEWSBLUR_URL + url;
+			if (fullUrl.startsWith("/")) {
+				fullUrl = APIConstants.NEWSBLUR_URL + fullUrl;
 			}
-			long bytesRead = NetworkUtils.loadURL(new URL(url), f);
-			if (bytesRead == 0) return null;
-
-			fis = new FileInputStream(f);
-			bitmap = BitmapFactory.decodeStream(fis);
-			memoryCache.put(url, bitmap);
-            if (bitmap == null) return null;
-			bitmap = UIUtils.roundCorners(bitmap, 5);
-			return bitmap;
+			return fileCache.cacheFile(url, new URL(fullUrl));
 		} catch (Exception e) {
-			Log.e(this.getClass().getName(), "Error loading image from network: " + url, e);
+			Log.e(this.getClass().getName(), "Error loading image from network: " + fullUrl, e);
 			return null;
-		} finally {
-			if (fis != null) {
-				try {
-					fis.close();
-				} catch (IOException e) {
-					// ignore
-				}
-			}
 		}
 	}
 
+	/**
+	 * Decodes an image file at the size wanted for a view, rounds its corners if needed, and
+	 * caches the result, retained for display as per MemoryCache.put().
+	 */
+	private Bitmap prepareBitmap(File f, PhotoToLoad photo) {
+		Bitmap bitmap = decodeBitmap(f, photo.size);
+		if (bitmap == null) return null;
+		if (photo.roundRadius > 0) {
+			// the decode is likely a bit bigger than the view, so scale the radius to match
+			float radius = photo.roundRadius * Math.max(bitmap.getWidth(), bitmap.getHeight()) / photo.size;
+			BitmapPool pool = memoryCache.getPool();
+			Bitmap rounded = UIUtils.roundCorners(bitmap, radius, pool.getExact(bitmap.getWidth(), bitmap.getHeight()));
+			// nothing else ever saw the unrounded decode, so it can be reused right away
+			pool.put(bitmap);
+			bitmap = rounded;
+		}
+		memoryCache.put(photo.key, bitmap);
+		return bitmap;
+	}
+
 	private class PhotoToLoad {
 		public String url;
 		public ImageView imageView;
-		public PhotoToLoad(final String u, final ImageView i) {
+		public int size;
+		public float roundRadius;
+		// the final image for a URL depends on how it is to be shown
+		public String key;
+		public long requestTime = System.currentTimeMillis();
+		public PhotoToLoad(final String u, final ImageView i, final int s, final float r) {
 			url = u; 
 			imageView = i;
+			size = s;
+			roundRadius = r;
+			key = (u == null) ? null : (u + "@" + s + "r" + r);
 		}
 	}
 
-	private class PhotosLoader implements Runnable {
-		PhotoToLoad photoToLoad;
+	/**
+	 * Loads an image for every view waiting on a URL, fetching it at most once. A job starts out
+	 * on the local stage, which serves whatever it can from the file cache. If the file has to be
+	 * downloaded, the job moves to the network stage, then back to the local stage to decode the
+	 * new file. Views that have been re-bound to some other image by then are dropped, and if
+	 * that leaves none, nothing is fetched at all.
+	 */
+	private class LoadJob implements Runnable, Comparable<LoadJob> {
+		final String url;
+		// guarded by the jobs map
+		final List<PhotoToLoad> waiters = new ArrayList<PhotoToLoad>();
+		long priority;
+		// the stage this job is queued on, or null while it is running
+		ThreadPoolExecutor queuedOn;
+		boolean onNetworkStage = false;
+
+		private File file;
+		private boolean fetched = false;
 
-		public PhotosLoader(PhotoToLoad photoToLoad) {
-			this.photoToLoad = photoToLoad;
+		LoadJob(String url) {
+			this.url = url;
+		}
+
+		@Override
+		public int compareTo(LoadJob other) {
+			// newest first
+			return Long.valueOf(other.priority).compareTo(priority);
 		}
 
 		@Override
 		public void run() {
-			if (imageViewReused(photoToLoad)) {
-				return;
+			boolean network;
+			synchronized (jobs) {
+				queuedOn = null;
+				network = onNetworkStage;
+			}
+			if (network) {
+				runNetwork();
+			} else {
+				runLocal();
+			}
+		}
+
+		private void runLocal() {
+			if (!fetched) file = fileCache.getFile(url);
+			List<PhotoToLoad> needFetch = new ArrayList<PhotoToLoad>();
+			// views may keep joining while we work, so drain them until none are left
+			while (true) {
+				List<PhotoToLoad> batch;
+				synchronized (jobs) {
+					if (waiters.isEmpty()) {
+						if (needFetch.isEmpty()) {
+							jobs.remove(url);
+						} else {
+							waiters.addAll(needFetch);
+							onNetworkStage = true;
+							queuedOn = networkExecutor;
+							networkExecutor.execute(this);
+						}
+						break;
+					}
+					batch = new ArrayList<PhotoToLoad>(waiters);
+					waiters.clear();
+				}
+				for (PhotoToLoad photo : batch) {
+					if (imageViewReused(photo)) continue;
+					// another view may have wanted the same image at the same size and beaten us to it
+					Bitmap bmp = memoryCache.getForDisplay(photo.key);
+					if (bmp == null) bmp = prepareBitmap(file, photo);
+					if ((bmp == null) && !fetched) {
+						needFetch.add(photo);
+						continue;
+					}
+					if (bmp != null) {
+						stats.localHits.incrementAndGet();
+					}
+					display(bmp, photo);
+				}
+			}
+		}
+
+		private void runNetwork() {
+			synchronized (jobs) {
+				Iterator<PhotoToLoad> it = waiters.iterator();
+				while (it.hasNext()) {
+					if (imageViewReused(it.next())) it.remove();
+				}
+				if (waiters.isEmpty()) {
+					jobs.remove(url);
+					stats.cancelled.incrementAndGet();
+					return;
+				}
 			}
-			
-			Bitmap bmp = getBitmap(photoToLoad.url);
-			memoryCache.put(photoToLoad.url, bmp);
-			if (imageViewReused(photoToLoad)) {
-				return;
+			long startTime = System.currentTimeMillis();
+			file = fetchFile(url);
+			fetched = true;
+			stats.recordFetch(file != null, System.currentTimeMillis() - startTime);
+			synchronized (jobs) {
+				onNetworkStage = false;
+				queuedOn = localExecutor;
+				localExecutor.execute(this);
 			}
-			
-			BitmapDisplayer bitmapDisplayer = new BitmapDisplayer(bmp, photoToLoad);
-			Activity a = (Activity) photoToLoad.imageView.getContext();
-			a.runOnUiThread(bitmapDisplayer);
+		}
+	}
+
+	/**
+	 * Shows a bitmap got from the memory cache for display, or the placeholder if it is null, and
+	 * releases it once shown.
+	 */
+	private void display(Bitmap bmp, PhotoToLoad photo) {
+		if (imageViewReused(photo)) {
+			if (bmp != null) memoryCache.release(bmp);
+			return;
+		}
+		stats.recordLoad(System.currentTimeMillis() - photo.requestTime);
+		BitmapDisplayer bitmapDisplayer = new BitmapDisplayer(bmp, photo);
+		Activity a = (Activity) photo.imageView.getContext();
+		a.runOnUiThread(bitmapDisplayer);
+	}
+
+	/**
+	 * Counters for how the pipeline is doing. They are cheap enough to always keep, and are
+	 * logged every so often with verbose network logging on.
+	 */
+	private class Stats {
+		// requests served from memory, on the calling thread
+		final AtomicLong memoryHits = new AtomicLong();
+		// requests served by the local stage, from the file cache or a file another view fetched
+		final AtomicLong localHits = new AtomicLong();
+		// network fetches, and how many of those failed
+		final AtomicLong fetches = new AtomicLong();
+		final AtomicLong fetchFailures = new AtomicLong();
+		final AtomicLong fetchMillis = new AtomicLong();
+		// network fetches skipped because every view that wanted the image had moved on
+		final AtomicLong cancelled = new AtomicLong();
+		// requests that went to the background, and how long until they were ready to show
+		final AtomicLong loads = new AtomicLong();
+		final AtomicLong loadMillis = new AtomicLong();
+
+		void recordFetch(boolean success, long millis) {
+			fetches.incrementAndGet();
+			if (!success) fetchFailures.incrementAndGet();
+			fetchMillis.addAndGet(millis);
+		}
+
+		void recordLoad(long millis) {
+			long n = loads.incrementAndGet();
+			loadMillis.addAndGet(millis);
+			if (AppConstants.VERBOSE_LOG_NET && ((n % AppConstants.IMAGE_LOADER_STATS_INTERVAL) == 0)) {
+				Log.d(ImageLoader.class.getName(), toString());
+			}
+		}
+
+		@Override
+		public String toString() {
+			long f = Math.max(1L, fetches.get());
+			long l = Math.max(1L, loads.get());
+			return String.format("image hits: %d memory, %d local; fetches: %d (%d failed, %d skipped, avg %dms); avg background load %dms; queued: %d local, %d network",
+			                     memoryHits.get(), localHits.get(), fetches.get(), fetchFailures.get(), cancelled.get(), fetchMillis.get() / f, loadMillis.get() / l,
+			                     localExecutor.getQueue().size(), networkExecutor.getQueue().size());
 		}
 	}
 
@@ -166,23 +388,46 @@ public class ImageLoader {
 			photoToLoad = p;
 		}
 		public void run() {
-			if (imageViewReused(photoToLoad)) {
-				return;
-			} else if (bitmap != null) {
-				photoToLoad.imageView.setImageBitmap(bitmap);
-			} else {
-				photoToLoad.imageView.setImageResource(R.drawable.world);
+			if (!imageViewReused(photoToLoad)) {
+				setImage(photoToLoad.imageView, bitmap);
 			}
+			// the view holds its own reference now, if it took the bitmap at all
+			if (bitmap != null) memoryCache.release(bitmap);
 		}
 	}
 
-    private Bitmap decodeBitmap(File f) {
+    private Bitmap decodeBitmap(File f, int size) {
         // is is perfectly normal for files not to exist on cache misses or low
         // device memory. this class will handle nulls with a queued action or
         // placeholder image.
-        if (!f.exists()) return null;
+        if (f == null) return null;
         try {
-            return BitmapFactory.decodeFile(f.getAbsolutePath());
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(f.getAbsolutePath(), options);
+            if ((options.outWidth < 1) || (options.outHeight < 1)) return null;
+            // sample down by the largest power of two that still leaves the image at least as big as the view
+            int sampleSize = 1;
+            while (((options.outWidth / (sampleSize * 2)) >= size) && ((options.outHeight / (sampleSize * 2)) >= size)) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inMutable = true;
+            options.inSampleSize = sampleSize;
+            // decode into a spare bitmap of the right size if there is one, rather than allocating.
+            // before KitKat, this only works for decodes that aren't sampled.
+            if ((sampleSize == 1) || (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)) {
+                int width = (options.outWidth + sampleSize - 1) / sampleSize;
+                int height = (options.outHeight + sampleSize - 1) / sampleSize;
+                options.inBitmap = memoryCache.getPool().get(width, height);
+            }
+            try {
+                return BitmapFactory.decodeFile(f.getAbsolutePath(), options);
+            } catch (IllegalArgumentException iae) {
+                // the image wasn't in a format that can be decoded into an existing bitmap
+                options.inBitmap = null;
+                return BitmapFactory.decodeFile(f.getAbsolutePath(), options);
+            }
         } catch (Exception e) {
             return null;
         }
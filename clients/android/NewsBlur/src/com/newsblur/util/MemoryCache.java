@@ -1,75 +1,141 @@
 package com.newsblur.util;
 
-import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
 import android.util.Log;
 
+/**
+ * A byte-bounded LRU cache of decoded bitmaps. All access is synchronized on the cache, so it
+ * is safe to share between the loader threads and the UI.
+ *
+ * Callers that put a cached bitmap on screen should retain() it, and release() it once the
+ * view shows something else. Bitmaps that are evicted while not displayed anywhere are handed
+ * to the reuse pool. Bitmaps that are still displayed when evicted are simply forgotten, so a
+ * view that goes away without releasing its bitmap can never have it reused out from under it.
+ * A bitmap must only be cached under one key.
+ *
+ * Loader threads hand bitmaps to the UI some time after getting or putting them, and the cache
+ * may be trimmed in between, so getForDisplay() and put() retain the bitmap on behalf of that
+ * pending display. The caller must release() it once the view has retained it in turn, or once
+ * the display is given up.
+ */
 public class MemoryCache {
 
 	private static final String TAG = "MemoryCache";
-	private Map<String, Bitmap> cache = Collections.synchronizedMap(new LinkedHashMap<String, Bitmap>(10, 1.5f, true));
+	// the fraction of the heap the cache may use, and the fraction of that the reuse pool may use
+	private static final long HEAP_FRACTION = 8L;
+	private static final long POOL_FRACTION = 4L;
+
+	private final LinkedHashMap<String, Bitmap> cache = new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+	// how many views are showing each cached bitmap
+	private final Map<Bitmap, Integer> displayCounts = new IdentityHashMap<Bitmap, Integer>();
+	private final BitmapPool pool;
 	private long size = 0; //current allocated size
-	private long limit = 1000000; //max memory in bytes
+	private long limit;
 
 	public MemoryCache(){
-		setLimit(Runtime.getRuntime().maxMemory()/4);
+		limit = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+		pool = new BitmapPool(limit / POOL_FRACTION);
+		Log.i(TAG, "MemoryCache will use up to " + limit/1024./1024.+" MB");
 	}
 
-	public void setLimit(final long new_limit){
-		limit = new_limit;
-		Log.i(TAG, "MemoryCache will use up to " + limit/1024./1024.+" MB");
+	public BitmapPool getPool() {
+		return pool;
 	}
 
-	public Bitmap get(final String id){
-		try {
-			if (cache == null || !cache.containsKey(id)) {
-				return null;
-			} else {
-				return cache.get(id);
-			}
-		} catch (NullPointerException ex){
-			return null;
-		}
+	public synchronized Bitmap get(final String id){
+		if (id == null) return null;
+		return cache.get(id);
 	}
 
-	public void put(String id, Bitmap bitmap) {
+	/**
+	 * Gets a cached bitmap, retaining it for a pending display. See put().
+	 */
+	public synchronized Bitmap getForDisplay(String id) {
+		Bitmap bitmap = get(id);
+		if (bitmap != null) retain(bitmap);
+		return bitmap;
+	}
 
-		if (cache.containsKey(id)) {
-			size -= getSizeInBytes(cache.get(id));
+	/**
+	 * Caches a bitmap, retaining it for the display it was loaded for. The caller must release()
+	 * it once that display is done with or given up.
+	 */
+	public synchronized void put(String id, Bitmap bitmap) {
+		if ((id == null) || (bitmap == null)) return;
+		Bitmap old = cache.get(id);
+		// the same bitmap under two keys would get pooled while still cached
+		if ((old == bitmap) || displayCounts.containsKey(bitmap)) {
+			retain(bitmap);
+			return;
+		}
+		if (old != null) {
+			cache.remove(id);
+			evicted(old, true);
 		}
 		cache.put(id, bitmap);
-		size += getSizeInBytes(bitmap);
-		checkSize();
+		displayCounts.put(bitmap, 1);
+		size += BitmapPool.getSizeInBytes(bitmap);
+		trimTo(limit, true);
+	}
+
+	/**
+	 * Notes that a bitmap, which may or may not be one from this cache, is now being displayed.
+	 */
+	public synchronized void retain(Bitmap bitmap) {
+		Integer count = displayCounts.get(bitmap);
+		if (count != null) displayCounts.put(bitmap, count + 1);
 	}
 
-	private void checkSize() {
-		if (size > limit) {
-			final Iterator<Entry<String, Bitmap>> iter = cache.entrySet().iterator();  
-			while (iter.hasNext()) {
-				final Entry<String, Bitmap> entry = iter.next();
-				size -= getSizeInBytes(entry.getValue());
-				iter.remove();
-				if (size <= limit) {
-					break;
-				}
-			}
+	/**
+	 * Notes that a bitmap passed to retain() is no longer being displayed by one of its views.
+	 */
+	public synchronized void release(Bitmap bitmap) {
+		Integer count = displayCounts.get(bitmap);
+		if ((count != null) && (count > 0)) displayCounts.put(bitmap, count - 1);
+	}
+
+	/**
+	 * Reacts to ComponentCallbacks2.onTrimMemory() by giving back some or all of the cache.
+	 */
+	public synchronized void onTrimMemory(int level) {
+		if ((level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) || (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)) {
+			trimTo(0L, false);
+		} else if ((level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) || (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)) {
+			trimTo(limit / 2L, false);
+		}
+		// whatever the level, spare bitmaps that nothing is showing are the first thing to go
+		pool.clear();
+		if (AppConstants.VERBOSE_LOG) {
+			Log.d(TAG, String.format("trimmed for level %d, %d bitmaps (%d bytes) remain", level, cache.size(), size));
 		}
 	}
 
-	public void clear() {
-		cache.clear();
+	public synchronized void clear() {
+		trimTo(0L, false);
 	}
 
-	public long getSizeInBytes(Bitmap bitmap) {
-		if (bitmap == null) {
-			return 0;
-		} else {
-			return (bitmap.getRowBytes() * bitmap.getHeight());
+	private void trimTo(long maxSize, boolean toPool) {
+		final Iterator<Entry<String, Bitmap>> iter = cache.entrySet().iterator();
+		while ((size > maxSize) && iter.hasNext()) {
+			final Entry<String, Bitmap> entry = iter.next();
+			iter.remove();
+			evicted(entry.getValue(), toPool);
 		}
 	}
+
+	private void evicted(Bitmap bitmap, boolean toPool) {
+		size -= BitmapPool.getSizeInBytes(bitmap);
+		Integer count = displayCounts.remove(bitmap);
+		if (toPool && (count != null) && (count == 0)) {
+			pool.put(bitmap);
+		}
+	}
+
 }
@@ -35,18 +35,33 @@ public class NetworkUtils {
 	}
 
     public static long loadURL(URL url, File file) throws IOException {
-        long bytesRead = 0;
         try {
-            Request.Builder requestBuilder = new Request.Builder().url(url);
-            Response response = ImageFetchHttpClient.newCall(requestBuilder.build()).execute();
-            if (response.isSuccessful()) {
-                BufferedSink sink = Okio.buffer(Okio.sink(file));
-                bytesRead = sink.writeAll(response.body().source());
-                sink.close();
-            }
+            return fetchURL(url, file);
         } catch (Throwable t) {
             // a huge number of things could go wrong fetching and storing an image. don't spam logs with them
+            return 0L;
+        }
+    }
+
+    /**
+     * Like loadURL(), but lets failures to reach the server or read its response through, so
+     * callers can tell a bad connection from a bad URL.
+     *
+     * @return the number of bytes written, or zero if the server didn't send the file.
+     */
+    public static long fetchURL(URL url, File file) throws IOException {
+        Request.Builder requestBuilder = new Request.Builder().url(url);
+        Response response = ImageFetchHttpClient.newCall(requestBuilder.build()).execute();
+        try {
+            if (!response.isSuccessful()) return 0L;
+            BufferedSink sink = Okio.buffer(Okio.sink(file));
+            try {
+                return sink.writeAll(response.body().source());
+            } finally {
+                sink.close();
+            }
+        } finally {
+            response.body().close();
         }
-        return bytesRead;
     }
 }
@@ -120,6 +120,32 @@ public class ReadingAction {
         return ra;
     }
 
+    /**
+     * The hash of the story this action sets the read state of, or null if it doesn't set
+     * the read state of a single story.
+     */
+    public String getReadStateStoryHash() {
+        if ((type == ActionType.MARK_READ) || (type == ActionType.MARK_UNREAD)) return storyHash;
+        return null;
+    }
+
+    /**
+     * The hash of the story this action sets the saved state of, or null if it doesn't.
+     */
+    public String getSavedStateStoryHash() {
+        if ((type == ActionType.SAVE) || (type == ActionType.UNSAVE)) return storyHash;
+        return null;
+    }
+
+    /**
+     * The hash of the single story this action marks read, if it is that kind of action. Such
+     * actions can be sent to the API in batches.
+     */
+    public String getMarkReadStoryHash() {
+        if (type == ActionType.MARK_READ) return storyHash;
+        return null;
+    }
+
 	public ContentValues toContentValues() {
 		ContentValues values = new ContentValues();
         values.put(DatabaseConstants.ACTION_TIME, time);
@@ -251,14 +277,14 @@ public class ReadingAction {
     /**
      * Execute this action remotely via the API.
      */
-    public NewsBlurResponse doRemote(APIManager apiManager) {
+    public NewsBlurResponse doRemote(APIManager apiManager, BlurDatabaseHelper dbHelper) {
         switch (type) {
 
             case MARK_READ:
                 if (storyHash != null) {
                     return apiManager.markStoryAsRead(storyHash);
                 } else if (feedSet != null) {
-                    return apiManager.markFeedsAsRead(feedSet, olderThan, newerThan);
+                    return apiManager.markFeedsAsRead(dbHelper.getApiFeedSet(feedSet), olderThan, newerThan);
                 }
                 break;
                 
@@ -4,8 +4,14 @@ import android.content.Context;
 import android.text.format.DateFormat;
 
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Created by mark on 04/02/2014.
@@ -143,4 +149,88 @@ public class StoryUtils {
             return shortDateFormat.get().format(storyDate) +", " + timeFormat.format(storyDate);
         }
     }
+
+    private static final Pattern altSniff1 = Pattern.compile("<img[^>]*src=(['\"])((?:(?!\\1).)*)\\1[^>]*alt=(['\"])((?:(?!\\3).)*)\\3[^>]*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern altSniff2 = Pattern.compile("<img[^>]*alt=(['\"])((?:(?!\\1).)*)\\1[^>]*src=(['\"])((?:(?!\\3).)*)\\3[^>]*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern altSniff3 = Pattern.compile("<img[^>]*src=(['\"])((?:(?!\\1).)*)\\1[^>]*title=(['\"])((?:(?!\\3).)*)\\3[^>]*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern altSniff4 = Pattern.compile("<img[^>]*title=(['\"])((?:(?!\\1).)*)\\1[^>]*src=(['\"])((?:(?!\\3).)*)\\3[^>]*>", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Finds images with alt or title text in some story HTML, for use on long-press. This is
+     * slow for long stories, so it is done once when a story is stored rather than on display.
+     *
+     * @return a map of image URLs to their title or, failing that, alt text.
+     */
+    public static Map<String,String> sniffAltTexts(String html) {
+        //   NOTE: if doing this via regex has a smell, you have a good nose!  This method is far from perfect
+        //   and may miss valid cases or trucate tags, but it works for popular feeds (read: XKCD) and doesn't
+        //   require us to import a proper parser lib of hundreds of kilobytes just for this one feature.
+        Map<String,String> imageAltTexts = new HashMap<String,String>();
+        if (html == null) return imageAltTexts;
+        // sniff for alts first
+        Matcher imgTagMatcher = altSniff1.matcher(html);
+        while (imgTagMatcher.find()) {
+            imageAltTexts.put(imgTagMatcher.group(2), imgTagMatcher.group(4));
+        }
+        imgTagMatcher = altSniff2.matcher(html);
+        while (imgTagMatcher.find()) {
+            imageAltTexts.put(imgTagMatcher.group(4), imgTagMatcher.group(2));
+        }
+        // then sniff for 'title' tags, so they will overwrite alts and take precedence
+        imgTagMatcher = altSniff3.matcher(html);
+        while (imgTagMatcher.find()) {
+            imageAltTexts.put(imgTagMatcher.group(2), imgTagMatcher.group(4));
+        }
+        imgTagMatcher = altSniff4.matcher(html);
+        while (imgTagMatcher.find()) {
+            imageAltTexts.put(imgTagMatcher.group(4), imgTagMatcher.group(2));
+        }
+        return imageAltTexts;
+    }
+
+    private static final Pattern htmlHiddenBlocks = Pattern.compile("<(script|style)\\b.*?</\\1\\s*>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern htmlTags = Pattern.compile("<[^>]*>");
+    private static final Pattern htmlEntities = Pattern.compile("&(#[0-9]+|#[xX][0-9a-fA-F]+|[a-zA-Z]+);");
+
+    /**
+     * Reduces some story HTML to its words, for the local search index. This is much cheaper than
+     * Html.fromHtml() and good enough for tokenising, but the result isn't fit for display.
+     */
+    public static String htmlToSearchText(String html) {
+        if (html == null) return null;
+        String text = htmlHiddenBlocks.matcher(html).replaceAll(" ");
+        text = htmlTags.matcher(text).replaceAll(" ");
+        Matcher entityMatcher = htmlEntities.matcher(text);
+        StringBuffer decoded = new StringBuffer(text.length());
+        while (entityMatcher.find()) {
+            entityMatcher.appendReplacement(decoded, Matcher.quoteReplacement(decodeEntity(entityMatcher.group(1))));
+        }
+        entityMatcher.appendTail(decoded);
+        return decoded.toString();
+    }
+
+    // the named entities for U+00C0 to U+00FF, which covers the accented letters that turn up in words
+    private static final List<String> latin1Entities = Arrays.asList((
+        "Agrave Aacute Acirc Atilde Auml Aring AElig Ccedil Egrave Eacute Ecirc Euml Igrave Iacute Icirc Iuml " +
+        "ETH Ntilde Ograve Oacute Ocirc Otilde Ouml times Oslash Ugrave Uacute Ucirc Uuml Yacute THORN szlig " +
+        "agrave aacute acirc atilde auml aring aelig ccedil egrave eacute ecirc euml igrave iacute icirc iuml " +
+        "eth ntilde ograve oacute ocirc otilde ouml divide oslash ugrave uacute ucirc uuml yacute thorn yuml").split(" "));
+
+    private static String decodeEntity(String entity) {
+        try {
+            if (entity.startsWith("#x") || entity.startsWith("#X")) {
+                return new String(Character.toChars(Integer.parseInt(entity.substring(2), 16)));
+            } else if (entity.startsWith("#")) {
+                return new String(Character.toChars(Integer.parseInt(entity.substring(1))));
+            }
+        } catch (IllegalArgumentException e) {
+            return " ";
+        }
+        int latin1 = latin1Entities.indexOf(entity);
+        if (latin1 >= 0) return String.valueOf((char) (0xC0 + latin1));
+        // other named entities are all punctuation or symbols as far as the index cares
+        if (entity.equals("amp")) return "&";
+        if (entity.equals("apos")) return "'";
+        return " ";
+    }
 }
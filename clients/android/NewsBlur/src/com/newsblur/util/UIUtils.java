@@ -1,18 +1,18 @@
 package com.newsblur.util;
 
 import static android.graphics.Bitmap.Config.ARGB_8888;
-import static android.graphics.Color.WHITE;
-import static android.graphics.PorterDuff.Mode.DST_IN;
 
 import android.app.Activity;
 import android.app.ActionBar;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.PorterDuffXfermode;
 import android.graphics.RectF;
+import android.graphics.Shader;
 import android.os.Handler;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -35,24 +35,31 @@ public class UIUtils {
 	 */
 	
 	public static Bitmap roundCorners(Bitmap source, final float radius) {
+        return roundCorners(source, radius, null);
+    }
+
+    /**
+     * Draws a copy of a bitmap with rounded corners, in a single pass through a shader.
+     *
+     * @param dest a mutable ARGB_8888 bitmap of the same size as the source to draw into, or
+     *             null to allocate a new one.
+     */
+	public static Bitmap roundCorners(Bitmap source, final float radius, Bitmap dest) {
         int width = source.getWidth();
         int height = source.getHeight();
 
+        Bitmap rounded = dest;
+        if (rounded == null) {
+            rounded = Bitmap.createBitmap(width, height, ARGB_8888);
+        } else {
+            rounded.eraseColor(Color.TRANSPARENT);
+        }
+
         Paint paint = new Paint();
         paint.setAntiAlias(true);
-        paint.setColor(WHITE);
-
-        Bitmap clipped = Bitmap.createBitmap(width, height, ARGB_8888);
-        Canvas canvas = new Canvas(clipped);
+        paint.setShader(new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+        Canvas canvas = new Canvas(rounded);
         canvas.drawRoundRect(new RectF(0, 0, width, height), radius, radius, paint);
-        paint.setXfermode(new PorterDuffXfermode(DST_IN));
-        
-        Bitmap rounded = Bitmap.createBitmap(width, height, ARGB_8888);
-        canvas = new Canvas(rounded);
-        canvas.drawBitmap(source, 0, 0, null);
-        canvas.drawBitmap(clipped, 0, 0, paint);
-
-        clipped.recycle();
 
         return rounded;
     }
@@ -9,7 +9,9 @@ import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.ViewGroup;
+import android.webkit.MimeTypeMap;
 import android.webkit.WebChromeClient;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
@@ -17,11 +19,17 @@ import android.widget.FrameLayout;
 
 import com.newsblur.activity.Reading;
 import com.newsblur.fragment.ReadingItemFragment;
+import com.newsblur.util.ImageCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 
 public class NewsblurWebview extends WebView {
 
     private NewsblurWebChromeClient webChromeClient;
     private boolean isCustomViewShowing;
+    private final ImageCache imageCache;
 
     public ReadingItemFragment fragment;
     // we need the less-abstract activity class in order to manipulate the overlay widgets
@@ -43,6 +51,8 @@ public class NewsblurWebview extends WebView {
 
         this.setScrollBarStyle(SCROLLBARS_INSIDE_OVERLAY);
 
+        imageCache = new ImageCache(context);
+
         // as of v43.0.2357.121 of the system WebView, links no longer open in the user's chosen
         // browser, but open in-app.  Override the default behaviour so it works as expected on
         // all devices.
@@ -59,6 +69,29 @@ public class NewsblurWebview extends WebView {
                 }
                 return true;
             }
+
+            /**
+             * Serves images that were prefetched for offline reading straight from the image cache,
+             * so story HTML can be loaded as-is. Called on a WebView background thread.
+             */
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+                if (!(url.startsWith("http://") || url.startsWith("https://"))) return null;
+                File f = imageCache.getCachedFile(url);
+                // the WebView un-escapes entities in src attributes, but the URLs we cached were not
+                if ((f == null) && (url.indexOf('&') >= 0)) {
+                    f = imageCache.getCachedFile(url.replace("&", "&amp;"));
+                }
+                if (f == null) return null;
+                String extension = MimeTypeMap.getFileExtensionFromUrl(f.getName());
+                String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+                try {
+                    return new WebResourceResponse(mimeType, null, new FileInputStream(f));
+                } catch (FileNotFoundException fnfe) {
+                    // evicted since we looked it up, so just let the WebView fetch it
+                    return null;
+                }
+            }
         });
 
         // do the minimum handling of view swapping so that fullscreen HTML5 works, for videos.
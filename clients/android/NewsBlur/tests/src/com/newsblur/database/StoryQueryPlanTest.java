@@ -0,0 +1,207 @@
+package com.newsblur.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import junit.framework.TestCase;
+
+import com.newsblur.util.AppConstants;
+import com.newsblur.util.FeedSet;
+import com.newsblur.util.ReadFilter;
+import com.newsblur.util.StateFilter;
+
+/**
+ * Checks that the story table indices cover every story query the app makes. Builds an
+ * in-memory DB with the real schema and a large synthetic set of stories, then asks SQLite for
+ * the plan of each query and fails if it would scan the story table at all, even by index,
+ * rather than search it.
+ */
+public class StoryQueryPlanTest extends TestCase {
+
+    private static final int STORY_COUNT = 100000;
+    private static final int FEED_COUNT = 500;
+    private static final int FOLDER_FEED_COUNT = 20;
+    private static final int SOCIAL_USER_COUNT = 20;
+    private static final int SESSION_SIZE = 500;
+
+    private SQLiteDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create(null);
+        BlurDatabase.createSchema(db);
+        populate(db);
+        db.execSQL("ANALYZE");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    public void testStorySelections() {
+        List<String> failures = new ArrayList<String>();
+        for (FeedSet fs : getFeedSets()) {
+            for (ReadFilter readFilter : ReadFilter.values()) {
+                for (StateFilter stateFilter : StateFilter.values()) {
+                    StringBuilder sel = new StringBuilder();
+                    List<String> selArgs = new ArrayList<String>();
+                    BlurDatabaseHelper.getLocalStorySelectionAndArgs(sel, selArgs, fs, stateFilter, readFilter);
+                    checkPlan(sel.toString(), selArgs, failures);
+                }
+            }
+        }
+        assertTrue(failures.size() + " story selections scan the story table: " + failures, failures.isEmpty());
+    }
+
+    public void testStoryListQueries() {
+        List<String> failures = new ArrayList<String>();
+        List<String> pageArgs = new ArrayList<String>();
+        pageArgs.add(Long.toString(System.currentTimeMillis()));
+        pageArgs.add("hash1000");
+        for (boolean descending : new boolean[]{true, false}) {
+            checkPlan(DatabaseConstants.getStoryPageQuery(descending, false, AppConstants.STORY_PAGE_SIZE), null, failures);
+            checkPlan(DatabaseConstants.getStoryPageQuery(descending, true, AppConstants.STORY_PAGE_SIZE), pageArgs, failures);
+        }
+
+        List<String> positionArgs = new ArrayList<String>();
+        positionArgs.add("hash1000");
+        checkPlan(DatabaseConstants.getSessionPositionQuery(true, DatabaseConstants.SESSION_TARGET_HASH + " = ?"), positionArgs, failures);
+        checkPlan(DatabaseConstants.getSessionPositionQuery(true, DatabaseConstants.STORY_TABLE + "." + DatabaseConstants.STORY_READ + " = 0"), null, failures);
+
+        assertTrue(failures.size() + " story list queries scan the story table: " + failures, failures.isEmpty());
+    }
+
+    public void testCleanupQueries() {
+        List<String> failures = new ArrayList<String>();
+        // mirrors cleanupReadStories() and cleanupVeryOldStories()
+        String sessionHashes = "( SELECT " + DatabaseConstants.READING_SESSION_STORY_HASH + " FROM " + DatabaseConstants.READING_SESSION_TABLE + ")";
+        checkPlan("SELECT " + DatabaseConstants.STORY_HASH + " FROM " + DatabaseConstants.STORY_TABLE +
+                  " WHERE " + DatabaseConstants.STORY_READ + " = 1" +
+                  " AND " + DatabaseConstants.STORY_HASH + " NOT IN " + sessionHashes,
+                  null, failures);
+        checkPlan("SELECT " + DatabaseConstants.STORY_HASH + " FROM " + DatabaseConstants.STORY_TABLE +
+                  " WHERE " + DatabaseConstants.STORY_TIMESTAMP + " < 1" +
+                  " AND " + DatabaseConstants.STORY_HASH + " NOT IN " + sessionHashes,
+                  null, failures);
+        assertTrue(failures.size() + " cleanup queries scan the story table: " + failures, failures.isEmpty());
+    }
+
+    /**
+     * Every shape of FeedSet that can back a story list, each with and without a search.
+     */
+    private static List<FeedSet> getFeedSets() {
+        List<FeedSet> sets = new ArrayList<FeedSet>();
+        sets.add(FeedSet.singleFeed("7"));
+        sets.add(FeedSet.folder("folder"));
+        sets.add(FeedSet.allFeeds());
+        sets.add(FeedSet.singleSocialFeed("3", "user"));
+        sets.add(FeedSet.allSocialFeeds());
+        sets.add(FeedSet.globalShared());
+        sets.add(FeedSet.allRead());
+        sets.add(FeedSet.allSaved());
+        sets.add(FeedSet.singleSavedTag("tag"));
+
+        int plainCount = sets.size();
+        for (int i=0; i<plainCount; i++) {
+            // FeedSets have no copy constructor, but a round trip through the serial form will do
+            FeedSet searchFs = FeedSet.fromCompactSerial(sets.get(i).toCompactSerial());
+            searchFs.setSearchQuery("query");
+            sets.add(searchFs);
+        }
+        return sets;
+    }
+
+    private void checkPlan(String q, List<String> selArgs, List<String> failures) {
+        String[] args = (selArgs == null) ? null : selArgs.toArray(new String[selArgs.size()]);
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + q, args);
+        try {
+            int detailCol = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                String detail = c.getString(detailCol);
+                // older engines say "SCAN TABLE stories", newer ones just "SCAN stories"
+                if (detail.matches("SCAN (TABLE )?" + DatabaseConstants.STORY_TABLE + "\\b.*")) {
+                    failures.add(detail + " for: " + q);
+                    return;
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void populate(SQLiteDatabase db) {
+        Random random = new Random(0L);
+        long now = System.currentTimeMillis();
+        SQLiteStatement storyInsert = db.compileStatement("INSERT INTO " + DatabaseConstants.STORY_TABLE + " (" +
+                                                          DatabaseConstants.STORY_HASH + ", " +
+                                                          DatabaseConstants.STORY_ID + ", " +
+                                                          DatabaseConstants.STORY_FEED_ID + ", " +
+                                                          DatabaseConstants.STORY_TIMESTAMP + ", " +
+                                                          DatabaseConstants.STORY_READ + ", " +
+                                                          DatabaseConstants.STORY_INTELLIGENCE_TOTAL + ", " +
+                                                          DatabaseConstants.STORY_STARRED + ", " +
+                                                          DatabaseConstants.STORY_STARRED_DATE + ", " +
+                                                          DatabaseConstants.STORY_USER_TAGS + ", " +
+                                                          DatabaseConstants.STORY_LAST_READ_DATE + ", " +
+                                                          DatabaseConstants.STORY_SEARCH_HIT +
+                                                          ") VALUES (?,?,?,?,?,?,?,?,?,?,?)");
+        SQLiteStatement mapInsert = db.compileStatement("INSERT OR IGNORE INTO " + DatabaseConstants.SOCIALFEED_STORY_MAP_TABLE + " (" +
+                                                        DatabaseConstants.SOCIALFEED_STORY_STORYID + ", " +
+                                                        DatabaseConstants.SOCIALFEED_STORY_USER_ID +
+                                                        ") VALUES (?,?)");
+        db.beginTransaction();
+        try {
+            for (int i=0; i<FEED_COUNT; i++) {
+                db.execSQL("INSERT INTO " + DatabaseConstants.FEED_TABLE + " (" + DatabaseConstants.FEED_ID + ", " + DatabaseConstants.FEED_TITLE + ") VALUES (?, ?)",
+                           new Object[]{i, "feed " + i});
+            }
+            for (int i=0; i<FOLDER_FEED_COUNT; i++) {
+                db.execSQL("INSERT INTO " + DatabaseConstants.FOLDER_FEEDS_TABLE + " (" + DatabaseConstants.FOLDER_FEEDS_FOLDER_NAME + ", " + DatabaseConstants.FOLDER_FEEDS_FEED_ID + ") VALUES (?, ?)",
+                           new Object[]{"folder", i});
+            }
+            for (int i=0; i<STORY_COUNT; i++) {
+                // roughly: most stories read, a few negative or focus, very few saved or searched
+                boolean read = random.nextInt(10) < 7;
+                boolean starred = random.nextInt(100) == 0;
+                int intel = random.nextInt(10);
+                String storyId = "id" + i;
+                storyInsert.bindString(1, "hash" + i);
+                storyInsert.bindString(2, storyId);
+                storyInsert.bindLong(3, random.nextInt(FEED_COUNT));
+                storyInsert.bindLong(4, now - (random.nextInt(30 * 24 * 60) * 60000L));
+                storyInsert.bindLong(5, read ? 1L : 0L);
+                storyInsert.bindLong(6, (intel == 0) ? -1L : ((intel == 1) ? 1L : 0L));
+                storyInsert.bindLong(7, starred ? 1L : 0L);
+                storyInsert.bindLong(8, starred ? now : 0L);
+                if (starred) storyInsert.bindString(9, "tag"); else storyInsert.bindNull(9);
+                storyInsert.bindLong(10, (read && (random.nextInt(3) == 0)) ? now : 0L);
+                if (random.nextInt(1000) == 0) storyInsert.bindString(11, "query"); else storyInsert.bindNull(11);
+                storyInsert.executeInsert();
+                if (random.nextInt(10) == 0) {
+                    mapInsert.bindString(1, storyId);
+                    mapInsert.bindLong(2, random.nextInt(SOCIAL_USER_COUNT));
+                    mapInsert.executeInsert();
+                }
+            }
+            for (int i=0; i<SESSION_SIZE; i++) {
+                db.execSQL("INSERT INTO " + DatabaseConstants.READING_SESSION_TABLE + " (" +
+                           DatabaseConstants.READING_SESSION_STORY_HASH + ", " + DatabaseConstants.READING_SESSION_SORT_KEY + ") VALUES (?, ?)",
+                           new Object[]{"hash" + (i * 200), now - i});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            storyInsert.close();
+            mapInsert.close();
+        }
+    }
+
+}
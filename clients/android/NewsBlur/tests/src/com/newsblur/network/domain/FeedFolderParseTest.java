@@ -0,0 +1,168 @@
+package com.newsblur.network.domain;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+
+import junit.framework.TestCase;
+
+import com.newsblur.domain.Feed;
+import com.newsblur.domain.Folder;
+import com.newsblur.util.AppConstants;
+
+/**
+ * Checks the streaming feed/folder parser against the old DOM parser on a large synthetic
+ * response, and benchmarks the two. Timings go to the log, they aren't asserted on.
+ */
+public class FeedFolderParseTest extends TestCase {
+
+    private static final String TAG = FeedFolderParseTest.class.getName();
+
+    private static final int FOLDER_COUNT = 50;
+    private static final int FEEDS_PER_FOLDER = 40;
+    private static final int SOCIAL_FEED_COUNT = 200;
+    private static final int BENCHMARK_ROUNDS = 5;
+
+    private Gson gson;
+    private String json;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        gson = new Gson();
+        json = makeResponse();
+    }
+
+    public void testStreamingParserMatchesDom() throws IOException {
+        FeedFolderResponse dom = new FeedFolderResponse(json, gson);
+        FeedFolderResponse stream = new FeedFolderResponse(new StringReader(json), gson);
+
+        assertEquals(dom.isAuthenticated, stream.isAuthenticated);
+        assertEquals(dom.isPremium, stream.isPremium);
+        assertEquals(dom.isStaff, stream.isStaff);
+        assertEquals(dom.starredCount, stream.starredCount);
+        // feeds don't hash by value, so match them up by ID
+        assertEquals(dom.feeds.size(), stream.feeds.size());
+        Map<String,Feed> streamFeeds = new HashMap<String,Feed>(stream.feeds.size());
+        for (Feed feed : stream.feeds) streamFeeds.put(feed.feedId, feed);
+        for (Feed feed : dom.feeds) {
+            Feed other = streamFeeds.get(feed.feedId);
+            assertNotNull(feed.feedId, other);
+            assertEquals(feed.feedId, feed, other);
+            assertEquals(feed.feedId, feed.title, other.title);
+        }
+        assertEquals(dom.socialFeeds.size(), stream.socialFeeds.size());
+        assertEquals(dom.starredCounts.size(), stream.starredCounts.size());
+
+        // folder equality is by name only, so also check the contents of each
+        assertEquals(dom.folders.size(), stream.folders.size());
+        Map<String,Folder> streamFolders = new HashMap<String,Folder>(stream.folders.size());
+        for (Folder folder : stream.folders) streamFolders.put(folder.name, folder);
+        for (Folder folder : dom.folders) {
+            Folder other = streamFolders.get(folder.name);
+            assertNotNull(folder.name, other);
+            assertTrue(folder.name, same(folder.parents, other.parents));
+            assertTrue(folder.name, same(folder.children, other.children));
+            assertTrue(folder.name, same(folder.feedIds, other.feedIds));
+        }
+    }
+
+    public void testRootFolderIsAlwaysPresent() throws IOException {
+        String noFolders = "{\"authenticated\":true,\"folders\":[],\"feeds\":[]}";
+        FeedFolderResponse stream = new FeedFolderResponse(new StringReader(noFolders), gson);
+        Folder root = new Folder();
+        root.name = AppConstants.ROOT_FOLDER;
+        assertTrue(stream.folders.contains(root));
+        assertTrue(stream.feeds.isEmpty());
+    }
+
+    public void testBenchmark() throws IOException {
+        // warm up both paths once so class loading and JIT don't skew the first round
+        new FeedFolderResponse(json, gson);
+        new FeedFolderResponse(new StringReader(json), gson);
+
+        long domNanos = 0L;
+        long streamNanos = 0L;
+        for (int i=0; i<BENCHMARK_ROUNDS; i++) {
+            System.gc();
+            long startTime = System.nanoTime();
+            new FeedFolderResponse(json, gson);
+            domNanos += System.nanoTime() - startTime;
+
+            System.gc();
+            startTime = System.nanoTime();
+            new FeedFolderResponse(new StringReader(json), gson);
+            streamNanos += System.nanoTime() - startTime;
+        }
+
+        Log.i(TAG, String.format("parsed %dB of feeds/folders over %d rounds", json.length(), BENCHMARK_ROUNDS));
+        Log.i(TAG, String.format("DOM:    avg %dms", (domNanos / BENCHMARK_ROUNDS) / 1000000L));
+        Log.i(TAG, String.format("stream: avg %dms", (streamNanos / BENCHMARK_ROUNDS) / 1000000L));
+    }
+
+    /**
+     * Builds a response shaped like the real one: top-level feeds, a few levels of nested
+     * folders, social feeds and starred counts.
+     */
+    private static String makeResponse() {
+        StringBuilder s = new StringBuilder();
+        s.append("{\"authenticated\":true,\"is_staff\":false,\"starred_count\":42,");
+        s.append("\"user_profile\":{\"is_premium\":true,\"username\":\"test\"},");
+
+        int feedId = 1;
+        s.append("\"folders\":[");
+        for (int i=0; i<FEEDS_PER_FOLDER; i++) {
+            s.append(feedId++).append(',');
+        }
+        for (int f=0; f<FOLDER_COUNT; f++) {
+            s.append("{\"Folder ").append(f).append("\":[");
+            for (int i=0; i<FEEDS_PER_FOLDER; i++) {
+                s.append(feedId++).append(',');
+            }
+            // every other folder has a subfolder, to exercise the recursion
+            if ((f % 2) == 0) {
+                s.append("{\"Subfolder ").append(f).append("\":[").append(feedId++).append("]},");
+            }
+            s.setLength(s.length() - 1);
+            s.append("]},");
+        }
+        s.setLength(s.length() - 1);
+        s.append("],");
+
+        s.append("\"feeds\":{");
+        for (int i=1; i<feedId; i++) {
+            s.append('"').append(i).append("\":{\"id\":").append(i);
+            s.append(",\"feed_title\":\"Feed ").append(i).append('"');
+            s.append(",\"feed_address\":\"http://example.com/").append(i).append("/rss\"");
+            s.append(",\"feed_link\":\"http://example.com/").append(i).append('"');
+            s.append(",\"active\":true,\"ps\":").append(i % 3).append(",\"nt\":").append(i % 7).append(",\"ng\":0");
+            s.append(",\"favicon_color\":\"ffffff\",\"favicon_url\":null,\"updated_seconds_ago\":600},");
+        }
+        s.setLength(s.length() - 1);
+        s.append("},");
+
+        s.append("\"social_feeds\":[");
+        for (int i=0; i<SOCIAL_FEED_COUNT; i++) {
+            s.append("{\"id\":\"social:").append(i).append("\",\"user_id\":").append(i);
+            s.append(",\"feed_title\":\"Blurblog ").append(i).append("\",\"ps\":1,\"nt\":2,\"ng\":0},");
+        }
+        s.setLength(s.length() - 1);
+        s.append("],");
+
+        s.append("\"starred_counts\":[{\"tag\":\"\",\"count\":40},{\"tag\":\"recipes\",\"count\":2}]");
+        s.append('}');
+        return s.toString();
+    }
+
+    // the synthetic root folder has null lists, so be careful comparing them
+    private static boolean same(List<String> a, List<String> b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+}